@@ -0,0 +1,190 @@
+package jest.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import clojure.lang.RT;
+import clojure.lang.Var;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import jest.compiler.BytecodeCompiler;
+import jest.compiler.LegacyClojureSourceGenerator;
+import jest.compiler.Validator;
+import jest.grammar.JestLexer;
+import jest.grammar.JestParser;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures each stage of compiling and running a Jest
+ * program separately.  Each stage starts from the output
+ * of the previous stage, which is computed once in setup.
+ *
+ * Programs are either a program bundled in resources/
+ * (named by its file) or a synthetic program, named
+ * "synthetic:KIND" and sized by the size parameter
+ * (see SyntheticPrograms).
+ *
+ * Run with the gc profiler to report allocation rates:
+ *
+ *    lein with-profile +bench run -m org.openjdk.jmh.Main -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerBenchmark {
+
+    @Param({"example1.jst", "example2.jst", "example3.jst", "math.jst", "pipeline.jst",
+            "synthetic:nesting", "synthetic:elif", "synthetic:map", "synthetic:defn"})
+    public String program;
+
+    @Param({"200"})
+    public int size;
+
+    private String source;
+
+    private List<? extends Token> tokens;
+
+    private JestParser.SourceCodeContext tree;
+
+    private Object forms;
+
+    private IFn translate;
+
+    private IFn executeForms;
+
+    private static final Writer NULL_WRITER = new Writer() {
+        @Override
+        public void write(char[] buffer, int offset, int length) {}
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    };
+
+
+    static String loadProgram(String program, int size) throws IOException {
+        if (program.startsWith("synthetic:")) {
+            String kind = program.substring("synthetic:".length());
+            String source = SyntheticPrograms.generate(kind, size);
+            if (source == null) {
+                throw new IllegalArgumentException("No synthetic program of kind: " + kind);
+            }
+            return source;
+        }
+
+        InputStream in = CompilerBenchmark.class.getClassLoader().getResourceAsStream(program);
+        if (in == null) {
+            throw new IllegalArgumentException("No program named: " + program);
+        }
+        try {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        source = loadProgram(program, size);
+
+        IFn require = Clojure.var("clojure.core", "require");
+        require.invoke(Clojure.read("jest.parser"));
+        translate = Clojure.var("jest.parser", "parse-tree->clojure");
+        executeForms = Clojure.var("jest.parser", "execute-forms");
+
+        tokens = lex();
+        tree = parse();
+        forms = translate();
+    }
+
+
+    @Benchmark
+    public List<? extends Token> lex() {
+        return new JestLexer(new ANTLRInputStream(source)).getAllTokens();
+    }
+
+
+    @Benchmark
+    public JestParser.SourceCodeContext parse() {
+        JestParser parser = new JestParser(new CommonTokenStream(new ListTokenSource(tokens)));
+        return parser.sourceCode();
+    }
+
+
+    @Benchmark
+    public Validator validate() {
+        Validator validator = new Validator(true);
+        ParseTreeWalker.DEFAULT.walk(validator, tree);
+        return validator;
+    }
+
+
+    @Benchmark
+    public Object translate() {
+        return translate.invoke(tree);
+    }
+
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public Object generateLegacySource() {
+        return new LegacyClojureSourceGenerator().visit(tree);
+    }
+
+
+    @Benchmark
+    public Object eval() {
+        // Programs print their results, which
+        // should not be part of the measurement
+        Var.pushThreadBindings(RT.map(RT.OUT, NULL_WRITER));
+        try {
+            return executeForms.invoke(forms);
+        } finally {
+            Var.popThreadBindings();
+        }
+    }
+
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public Object evalBytecode() {
+        Var.pushThreadBindings(RT.map(RT.OUT, NULL_WRITER));
+        try {
+            return BytecodeCompiler.compile((List<Object>) forms).run();
+        } finally {
+            Var.popThreadBindings();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package jest.bench;
+
+
+/**
+ * Generators of large Jest programs that stress
+ * particular parts of the compiler
+ */
+public class SyntheticPrograms {
+
+    /**
+     * Jest names may only contain letters, so
+     * number the generated names in base 26
+     */
+    static String name(String prefix, int i) {
+        StringBuilder name = new StringBuilder(prefix);
+        do {
+            name.append((char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        return name.toString();
+    }
+
+
+    /**
+     * Deeply nested blocks, conditionals,
+     * and parenthesized expressions
+     */
+    public static String deepNesting(int depth) {
+        StringBuilder code = new StringBuilder("def x = 1;\n");
+
+        for (int i = 0; i < depth; ++i) {
+            code.append("if (x > ").append(i).append(") {");
+        }
+        for (int i = 0; i < depth; ++i) {
+            code.append("(");
+        }
+        code.append("x");
+        for (int i = 0; i < depth; ++i) {
+            code.append(" + 1)");
+        }
+        code.append(";");
+        for (int i = 0; i < depth; ++i) {
+            code.append("}");
+        }
+        code.append(";\n");
+
+        return code.toString();
+    }
+
+
+    /**
+     * A conditional with a long chain of elif branches
+     */
+    public static String longElifChain(int branches) {
+        StringBuilder code = new StringBuilder("def x = ").append(branches / 2).append(";\n");
+
+        code.append("if (x == 0) {0}");
+        for (int i = 1; i < branches; ++i) {
+            code.append("\nelif (x == ").append(i).append(") {").append(i * 2).append("}");
+        }
+        code.append("\nelse {0 - 1};\n");
+
+        return code.toString();
+    }
+
+
+    /**
+     * A single map literal with many entries
+     */
+    public static String wideMap(int entries) {
+        StringBuilder code = new StringBuilder("def m = {");
+
+        for (int i = 0; i < entries; ++i) {
+            if (i > 0) {
+                code.append(",\n");
+            }
+            code.append("\"key").append(i).append("\": ").append(i);
+        }
+        code.append("};\n");
+
+        return code.toString();
+    }
+
+
+    /**
+     * Many function definitions, each
+     * calling the one defined before it
+     */
+    public static String manyDefns(int count) {
+        StringBuilder code = new StringBuilder();
+
+        code.append("defn ").append(name("f", 0)).append("(x) { x + 1; }\n");
+        for (int i = 1; i < count; ++i) {
+            code.append("defn ").append(name("f", i)).append("(x, y) {\n")
+                .append("    def z = x * y;\n")
+                .append("    ").append(name("f", i - 1)).append(i == 1 ? "(z);\n" : "(z, y);\n")
+                .append("}\n");
+        }
+        code.append(name("f", count - 1)).append(count == 1 ? "(2);\n" : "(2, 3);\n");
+
+        return code.toString();
+    }
+
+
+    /**
+     * Return a synthetic program of the given
+     * kind and size, or null if there is no such kind
+     */
+    public static String generate(String kind, int size) {
+        if (kind.equals("nesting")) {
+            return deepNesting(size);
+        } else if (kind.equals("elif")) {
+            return longElifChain(size);
+        } else if (kind.equals("map")) {
+            return wideMap(size);
+        } else if (kind.equals("defn")) {
+            return manyDefns(size);
+        } else {
+            return null;
+        }
+    }
+}
@@ -16,6 +16,16 @@ options
 package jest.grammar;
 }
 
+@parser::members {
+  /* Whether the next token is the given word.  The
+     modifiers of for loops and functions (such as
+     parallel and memo) are only keywords where they
+     are checked for, so they can still be names. */
+  private boolean isWord(String word) {
+      return _input.LT(1).getText().equals(word);
+  }
+}
+
 // A file is a list of statements
 // followed by an EOF
 sourceCode
@@ -165,7 +175,17 @@ lambda
 
 /* NEW SCOPE */
 functionDef
-    : DEFN name=ID functionDefParams (COLON a=funcTypeAnnotation ARROW c=typeAnnotation)? block (SEMICOLON)?
+    : DEFN name=ID functionDefParams (COLON a=funcTypeAnnotation ARROW c=typeAnnotation)? memoModifier? block (SEMICOLON)?
+    ;
+
+/* Cache the results of a function, keyed by its arguments:
+   defn fib(n) memo(maxSize = 1000, eviction = lfu, ttl = 60000) { ... } */
+memoModifier
+    : {isWord("memo")}? ID ('(' first=memoOption (COMMA rest+=memoOption)* ')')?
+    ;
+
+memoOption
+    : key=ID '=' value=(NUMBER | ID)
     ;
 
 /* NEW SCOPE */
@@ -211,7 +231,7 @@ methodParams
 
 /* NEW SCOPE */
 forLoop
-    : FOR '(' a=ID (COMMA b+=ID )* COLON c=expression (COMMA d+=expression)* ')' (LAZY)? block
+    : FOR '(' a=ID (COMMA b+=ID )* COLON c=expression (COMMA d+=expression)* ')' (LAZY | {isWord("parallel")}? parallel=ID)? block
     ;
 
 /* NEW SCOPE */
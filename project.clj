@@ -42,6 +42,17 @@
   :antlr-options {:verbose true :report true}
 
   :profiles {:dev     {:env {:verbose false}}
-             :verbose {:env {:verbose true}}}
+             :verbose {:env {:verbose true}}
+             ;; Run the tests on the bytecode backend:
+             ;; lein with-profile +bytecode test
+             :bytecode {:env {:backend "bytecode"}}
+             ;; Run the tests with the interpreter:
+             ;; lein with-profile +interpret test
+             :interpret {:env {:backend "interpret"}}
+             ;; JMH benchmarks of each compiler stage:
+             ;; lein with-profile +bench run -m org.openjdk.jmh.Main -prof gc
+             :bench   {:java-source-paths ["bench/java"]
+                       :dependencies [[org.openjdk.jmh/jmh-core "1.11.3"]
+                                      [org.openjdk.jmh/jmh-generator-annprocess "1.11.3"]]}}
 
   )
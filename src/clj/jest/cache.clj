@@ -0,0 +1,151 @@
+(ns jest.cache
+  (:require [clojure.java.io :as io]
+            [jest.parser :refer :all])
+  (:import (jest.compiler JestCompiler)
+           (java.io File PushbackReader)
+           (java.util Properties)))
+
+
+(def default-cache-dir
+  (str (System/getProperty "user.home") File/separator ".jest" File/separator "cache"))
+
+
+(defn jest-version
+  "Return the version of Jest that is running.
+  Compiled programs are only valid for the version
+  of Jest that compiled them."
+  []
+  (or (System/getProperty "jest.version")
+      (if-let [props (io/resource "META-INF/maven/jest/jest/pom.properties")]
+        (with-open [reader (io/reader props)]
+          (.getProperty (doto (new Properties) (.load reader)) "version")))
+      "unknown"))
+
+
+(defn- form-options
+  "The options of a run that change the forms
+  of the program, with their defaults filled in"
+  [options]
+  {:tree-shake (boolean (:tree-shake options))
+   :optimize (not (false? (:optimize options)))})
+
+
+(defn cache-key
+  "Return the key of the given source code in
+  the cache.  The key includes the Jest version so
+  that a new version never loads stale programs,
+  and the options that change the compiled forms
+  (:tree-shake and :optimize)."
+  ([jest-src-str] (cache-key jest-src-str {}))
+  ([jest-src-str options]
+   (. JestCompiler (hashSourceCode (str (jest-version) "\n"
+                                        (pr-str (form-options options)) "\n"
+                                        jest-src-str)))))
+
+
+(defn cache-file
+  ([cache-dir jest-src-str] (cache-file cache-dir jest-src-str {}))
+  ([cache-dir jest-src-str options]
+   (io/file cache-dir (str (cache-key jest-src-str options) ".clj"))))
+
+
+(defn- read-entry
+  [text]
+  (binding [*read-eval* false]
+    (let [entry (read-string text)]
+      (if (and (map? entry) (vector? (:forms entry)))
+        entry
+        (throw (new IllegalStateException "Not a compiled program"))))))
+
+
+(defn- read-cached-entry
+  "Read the compiled program stored in the given cache
+  file, as a map of its :forms and :warnings, or return
+  nil if there is none.  A file that can't be read back
+  is reported and removed, so it is written again."
+  [^File file]
+  (if (.exists file)
+    (try
+      (read-entry (slurp file))
+      (catch Exception e
+        (binding [*out* *err*]
+          (println (str "Removing unreadable cached program " file ": " (.getMessage e))))
+        (.delete file)
+        nil))))
+
+
+(defn- write-cached-entry
+  "Write a compiled program to the given cache file,
+  unless its forms can't be read back (such as forms
+  that hold objects with no printed form).  The program
+  is written to a temporary file which is then renamed,
+  so a reader never sees a partially written file."
+  [^File file entry]
+  (let [text (binding [*print-meta* true
+                       *print-length* nil
+                       *print-level* nil]
+               (pr-str entry))
+        readable (try (read-entry text) true (catch Exception _ false))]
+    (if readable
+      (let [dir (.getParentFile file)
+            _ (.mkdirs dir)
+            tmp (File/createTempFile "jest" ".tmp" dir)]
+        (spit tmp text)
+        (if (not (.renameTo tmp file))
+          (.delete tmp))))))
+
+
+(defn compile-jest-cached
+  "Take a string of Jest source code and return
+  its Clojure forms.  If the source has been compiled
+  before (by this version of Jest, with the same
+  options) the forms are read from the cache directory,
+  skipping lexing, parsing, validation and translation.
+  Otherwise the source is compiled and, if valid, its
+  optimized forms are cached.
+  Returns nil (and prints the errors) if the
+  source is invalid.
+
+  Takes the options of compile-parse-tree and
+  optimize-forms, and :warn-reflection, which prints
+  the reflection warnings of the program (which are
+  cached with it).  With :dump-passes, the program
+  is always compiled, so its passes are printed."
+  ([jest-src-str cache-dir] (compile-jest-cached jest-src-str cache-dir {}))
+  ([jest-src-str cache-dir options]
+   (let [file (cache-file cache-dir jest-src-str options)
+         entry (or (if-not (:dump-passes options) (read-cached-entry file))
+                   (let [result (compile-jest jest-src-str options)]
+                     (if (. result isValid)
+                       (let [entry {:forms (vec (optimize-forms (. result getForms) options))
+                                    :warnings (vec (. result getWarnings))}]
+                         (write-cached-entry file entry)
+                         entry)
+                       (print-errors result))))]
+     (when entry
+       (if (:warn-reflection options)
+         (binding [*out* *err*]
+           (doseq [warning (:warnings entry)]
+             (println warning))))
+       (:forms entry)))))
+
+
+(defn execute-jest-cached
+  "Like validate-and-execute-jest, but uses the
+  compile cache in the given directory.  The
+  interpreter runs the parse tree, so it doesn't
+  use the cache."
+  ([jest-src-str cache-dir] (execute-jest-cached jest-src-str cache-dir {}))
+  ([jest-src-str cache-dir options]
+   (if (= :interpret (:backend options))
+     (validate-and-execute-jest jest-src-str options)
+     (if-let [forms (compile-jest-cached jest-src-str cache-dir options)]
+       (run-forms forms (assoc options :optimize false :dump-passes false))))))
+
+
+(defn clear-cache
+  "Remove every compiled program from the cache directory"
+  [cache-dir]
+  (doseq [^File file (.listFiles (io/file cache-dir))]
+    (if (.endsWith (.getName file) ".clj")
+      (.delete file))))
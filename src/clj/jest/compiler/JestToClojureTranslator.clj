@@ -14,15 +14,88 @@
                          JestParser$RecordDefContext JestParser$ImplementationDefContext
                          JestParser$MethodParamsContext JestParser$ForLoopContext
                          JestParser$BlockContext JestParser$VarScopeContext
-                         JestParser$ClojureVectorContext JestParser$ClojureMapContext JestParser$ClojureGetContext)
-           (jest.compiler LegacyClojureSourceGenerator$BadSource)
+                         JestParser$ClojureVectorContext JestParser$ClojureMapContext JestParser$ClojureGetContext
+                         JestParser$ImportStatementContext JestParser$MemoModifierContext)
+           (jest.compiler LegacyClojureSourceGenerator$BadSource Validator SymbolTable SymbolTable$Binding
+                          MemoOptions)
+           (jest.runtime MemoizedFunction)
            (sun.reflect.generics.reflectiveObjects NotImplementedException)
+           (clojure.lang RT IObj Keyword IPersistentVector IPersistentMap)
+           (org.antlr.v4.runtime Token ParserRuleContext)
+           (java.lang.reflect Method Constructor Field Modifier)
            (java.util List))
   (:gen-class
     :extends jest.grammar.JestBaseVisitor
     :prefix "-"
+    :init init
+    :state state
+    :constructors {[] [] [jest.compiler.Validator] []}
     :main false))
 
+
+(defn -init
+  "The translator checks scope as it generates
+  forms, so a program is only walked once.  Errors
+  are recorded in the translator's validator."
+  ([] (-init (new Validator true)))
+  ([validator] [[] {:validator validator
+                    :reflection (atom [])
+                    :records (atom {})}]))
+
+
+(defn validator
+  "Return the validator that checks the
+  code visited by this translator"
+  [this]
+  (:validator (.state this)))
+
+
+(defn reflection-warnings
+  "Return a warning for each Java method call or
+  constructor in the code visited by this translator
+  that Clojure can only resolve at runtime, by
+  reflection"
+  [this]
+  @(:reflection (.state this)))
+
+
+(defn- records
+  "The records defined so far in the code visited
+  by this translator, as a map of the name of each
+  record to the names of its fields"
+  [this]
+  @(:records (.state this)))
+
+
+(defn declare-records
+  "Add records that are defined outside the code this
+  translator visits (by the statements before it, when
+  statements are translated on their own), as a map of
+  the name of each record to the names of its fields"
+  [this records]
+  (swap! (:records (.state this)) into (for [[name fields] records] [name (vec fields)])))
+
+
+(defn- warn-reflection
+  [this ^Token token message]
+  (swap! (:reflection (.state this)) conj
+         (format "Reflection warning - Line %d: %s" (. token getLine) message)))
+
+
+(defmacro with-validation
+  "Evaluate the body between the validator's
+  enter and exit callbacks for the given context,
+  returning the value of the body.  The body must
+  visit its children eagerly (mapv, into, etc.), as
+  a lazy sequence would visit them after the exit
+  callback had already closed the context's scope."
+  [this ctx & body]
+  `(let [validator# (validator ~this)]
+     (. ~ctx (enterRule validator#))
+     (let [result# (do ~@body)]
+       (. ~ctx (exitRule validator#))
+       result#)))
+
 (defn- make-seqable
   [x]
   `(seq ~x))
@@ -104,11 +177,17 @@
              (map #(. this visitStatementTerm %) (. ctx statementTerm)))))
 
 
+(defn- import-name
+  "The full name of the class imported
+  by an import statement"
+  [^JestParser$ImportStatementContext ctx]
+  (clojure.string/join "." (map #(. % getText) (merge-items (.. ctx a) (.. ctx b)))))
+
+
 (defn -visitImportStatement
-  [this ^JestParser$StatementTermContext ctx]
-  (let [to-import (clojure.string/join "."
-                                       (map #(. % getText) (merge-items (.. ctx a) (.. ctx b))))]
-    `(import ~(symbol to-import))))
+  [this ^JestParser$ImportStatementContext ctx]
+  (with-validation this ctx
+    `(import ~(symbol (import-name ctx)))))
 
 
 (defn -visitStatementTerm
@@ -137,15 +216,425 @@
     :else (throw (new LegacyClojureSourceGenerator$BadSource ctx))))
 
 
+(def primitive-hints
+  "The primitive JVM types used for function
+  parameters and return values annotated with
+  these Jest types.  Clojure functions only take
+  and return primitive longs and doubles."
+  {"Long" 'long "Int" 'long "Integer" 'long
+   "Double" 'double "Float" 'double})
+
+
+(def boxed-hints
+  "The classes of global variables annotated
+  with these Jest types (Jest integers are
+  always Longs)"
+  {"Long" 'java.lang.Long "Int" 'java.lang.Long "Integer" 'java.lang.Long
+   "Double" 'java.lang.Double "Float" 'java.lang.Double})
+
+
+(defn- type-name
+  "The name of a simple type annotation,
+  or nil for any other annotation"
+  [^JestParser$TypeAnnotationContext ctx]
+  (if (and ctx (. ctx singleType))
+    (.. ctx singleType getText)))
+
+
+(defn- hint
+  "Add a type hint to a symbol or
+  vector, unless the tag is nil"
+  [x tag]
+  (if tag (vary-meta x assoc :tag tag) x))
+
+
+(defn- primitive-signature
+  "Take a function definition and its number of
+  parameters and return [param-tags return-tag],
+  the primitive type hints of its parameters and
+  its return value, or nil if its annotation has
+  none.  Clojure only compiles functions of at
+  most 4 parameters to primitive functions."
+  [^JestParser$FunctionDefContext ctx num-params]
+  (if (and (. ctx funcTypeAnnotation) (<= num-params 4))
+    (let [types (merge-items (.. ctx a first) (.. ctx a next))]
+      (if (= (count types) num-params)
+        [(mapv #(get primitive-hints (type-name %)) types)
+         (get primitive-hints (type-name (. ctx c)))]))))
+
+
+(defn- symbol-table
+  ^SymbolTable [this]
+  (. ^Validator (validator this) getSymbolTable))
+
+
+(defn- load-class
+  "Find the class with the given name, without
+  initializing it, or return nil if there is none"
+  [name]
+  (try
+    (Class/forName name false (RT/baseLoader))
+    (catch ClassNotFoundException _ nil)))
+
+
+(defn- resolve-class
+  "The Java class that a name refers to in the
+  current scope: a class imported by the program,
+  or a java.lang class that no variable or record
+  shadows.  Returns nil for any other name."
+  [this name]
+  (let [^SymbolTable$Binding binding (. (symbol-table this) (resolve name))]
+    (cond
+      (nil? binding) (if (and (Validator/isJavaLangClass name)
+                              (not (contains? (records this) name)))
+                       (load-class (str "java.lang." name)))
+      (instance? JestParser$ImportStatementContext (.declaration binding))
+      (load-class (import-name (.declaration binding)))
+      :else nil)))
+
+
+(def ^:private primitive-classes
+  {'long Long/TYPE 'int Integer/TYPE 'short Short/TYPE 'byte Byte/TYPE
+   'double Double/TYPE 'float Float/TYPE 'boolean Boolean/TYPE 'char Character/TYPE})
+
+
+(def ^:private boxed-classes
+  {Long/TYPE Long Integer/TYPE Integer Short/TYPE Short Byte/TYPE Byte
+   Double/TYPE Double Float/TYPE Float Boolean/TYPE Boolean Character/TYPE Character})
+
+
+(defn- class-symbol
+  [^Class klass]
+  (symbol (. klass getName)))
+
+
+(defn- with-type
+  "Record the class of the value of a generated form
+  in its metadata, for the Java calls that use it.
+  The class is kept as a symbol, so that the forms
+  can still be printed and read back."
+  [form ^Class klass]
+  (if (and klass (instance? IObj form) (not (. klass isArray)) (not= klass Void/TYPE))
+    (vary-meta form assoc ::type (class-symbol klass))
+    form))
+
+
+(defn- with-line
+  "Tag a generated form with the source line of a token,
+  so Clojure's own warnings and errors point at Jest code"
+  [form ^Token token]
+  (vary-meta form assoc :line (. token getLine)))
+
+
+(defn- form-type
+  "The class of the value of a generated form,
+  as far as it is known at compile time, or nil.
+  Literal numbers are primitives, as they are to
+  the Clojure compiler."
+  ^Class [this form]
+  (cond
+    (string? form) String
+    (instance? Long form) Long/TYPE
+    (instance? Double form) Double/TYPE
+    (instance? Boolean form) Boolean
+    (keyword? form) Keyword
+    (vector? form) IPersistentVector
+    (map? form) IPersistentMap
+    (symbol? form) (if-let [binding (. (symbol-table this) (resolve (name form)))]
+                     (let [tag (. binding getTag)]
+                       (if (instance? Class tag) tag)))
+    :else (if-let [type (::type (meta form))]
+            (or (primitive-classes type) (load-class (str type))))))
+
+
+(defn- record-tag
+  "The record of the value of a generated form, as a
+  symbol naming the record, as far as it is known at
+  compile time, or nil.  Records have no class until
+  the program runs, so their names are recorded where
+  other forms and bindings record a class."
+  [this form]
+  (let [tag (cond
+              (symbol? form) (if-let [binding (. (symbol-table this) (resolve (name form)))]
+                               (. binding getTag))
+              (instance? IObj form) (::type (meta form)))]
+    (if (and (symbol? tag) (contains? (records this) (name tag)))
+      tag)))
+
+
+(defn- value-tag
+  "The class or the record of the value of a form"
+  [this form]
+  (or (form-type this form) (record-tag this form)))
+
+
+(defn- tag-binding
+  "Record the class of a variable's value
+  in its binding, for the Java calls that use
+  the variable later in its scope"
+  [this name klass]
+  (if klass
+    (if-let [binding (. (symbol-table this) (resolve name))]
+      (. binding (setTag klass)))))
+
+
+(defn- annotation-class
+  "The class named by a simple type annotation
+  (a Jest number type, a class imported by the
+  program or a java.lang class), or nil"
+  [this ctx]
+  (if-let [name (type-name ctx)]
+    (if-let [boxed (boxed-hints name)]
+      (load-class (str boxed))
+      (resolve-class this name))))
+
+
+(defn- annotation-record
+  "The record named by a simple type annotation, or nil"
+  [this ctx]
+  (if-let [name (type-name ctx)]
+    (if (contains? (records this) name)
+      (symbol name))))
+
+
+(defn- param-classes
+  "The classes (or records) of the parameters of a
+  function definition that are annotated with a Java
+  class (or a record), or nil.  Those annotated with
+  a Jest number type are left to primitive-signature."
+  [this ^JestParser$FunctionDefContext ctx num-params]
+  (if (. ctx funcTypeAnnotation)
+    (let [types (merge-items (.. ctx a first) (.. ctx a next))]
+      (if (= (count types) num-params)
+        (mapv #(let [name (type-name %)]
+                 (if (and name (not (primitive-hints name)))
+                   (or (resolve-class this name) (annotation-record this %))))
+              types)))))
+
+
+(defn- param-accepts?
+  "Whether Clojure passes an argument of the
+  given class to a parameter of the given class
+  without reflection (see Reflector.paramArgTypeMatch)"
+  [^Class param ^Class arg]
+  (cond
+    (or (= param arg) (. param (isAssignableFrom arg))) true
+    (= param Integer/TYPE) (contains? #{Integer Long/TYPE Long Short/TYPE Byte/TYPE} arg)
+    (= param Long/TYPE) (contains? #{Long Integer/TYPE Short/TYPE Byte/TYPE} arg)
+    (= param Float/TYPE) (contains? #{Float Double/TYPE} arg)
+    (= param Double/TYPE) (contains? #{Double Float/TYPE} arg)
+    (= param Character/TYPE) (= arg Character)
+    (= param Short/TYPE) (= arg Short)
+    (= param Byte/TYPE) (= arg Byte)
+    (= param Boolean/TYPE) (= arg Boolean)
+    :else false))
+
+
+(defn- subsumes?
+  "Whether one list of parameter
+  types is more specific than another"
+  [left right]
+  (and (not= left right)
+       (every? true? (map (fn [^Class l ^Class r]
+                            (or (= l r)
+                                (and (not (. l isPrimitive)) (. r isPrimitive))
+                                (. r (isAssignableFrom l))))
+                          left right))))
+
+
+(defn- pick-overload
+  "Take the overloads of a method or constructor
+  with the right number of parameters, as pairs of
+  [parameter-types member], and return the member
+  that Clojure calls for arguments of the given
+  classes.  Returns nil if Clojure can only pick
+  one at runtime, by reflection.  This follows
+  Compiler.getMatchingParams, where an argument of
+  unknown type is an Object."
+  [overloads arg-types]
+  (if (= 1 (count overloads))
+    (second (first overloads))
+    (let [arg-types (mapv #(or % Object) arg-types)
+          exact (filter #(= (first %) arg-types) overloads)
+          matching (filter #(every? true? (map param-accepts? (first %) arg-types)) overloads)
+          best (filter (fn [o] (every? #(or (identical? o %) (subsumes? (first o) (first %))) matching))
+                       matching)]
+      (cond
+        (seq exact) (second (first exact))
+        (= 1 (count best)) (second (first best))
+        :else nil))))
+
+
+(defn- method-overloads
+  "The public methods of a class with the given name and
+  number of parameters, one per list of parameter types.
+  A bridge method is only kept when it is the only method
+  with its parameters, as the public methods inherited
+  from a package-private class (like StringBuilder's
+  length) are bridges."
+  [^Class klass method num-args static?]
+  (->> (. klass getMethods)
+       (filter (fn [^Method m] (and (= method (. m getName))
+                                    (= num-args (count (. m getParameterTypes)))
+                                    (= static? (Modifier/isStatic (. m getModifiers))))))
+       (map (fn [^Method m] [(vec (. m getParameterTypes)) m]))
+       (group-by first)
+       (map (fn [[_ overloads]]
+              (or (first (remove #(. ^Method (second %) isBridge) overloads))
+                  (first overloads))))))
+
+
+(defn- constructor-overloads
+  [^Class klass num-args]
+  (->> (. klass getConstructors)
+       (map (fn [^Constructor c] [(vec (. c getParameterTypes)) c]))
+       (filter #(= num-args (count (first %))))))
+
+
+(defn- hint-form
+  "Hint a symbol or a call with the given class,
+  unless it is primitive (Clojure only allows
+  primitive hints on function signatures)"
+  [form ^Class klass]
+  (if (and klass (not (. klass isPrimitive)) (not (. klass isArray)) (instance? IObj form))
+    (vary-meta form assoc :tag (class-symbol klass))
+    form))
+
+
+(defn- receiver-form
+  "The receiver of a Java method call, hinted with its
+  class.  A primitive is boxed explicitly, as Clojure
+  can't find the methods of a primitive's class."
+  [obj ^Class klass]
+  (if (and klass (. klass isPrimitive))
+    `(. ~(class-symbol (boxed-classes klass)) (~'valueOf ~obj))
+    (hint-form obj klass)))
+
+
+(defn- class-named
+  "The class named by the receiver of a
+  method call, if it is the name of a class"
+  [this ctx]
+  (if (instance? JestParser$ExpressionAtomContext ctx)
+    (let [^JestParser$ExpressionAtomContext atom ctx]
+      (if (. atom ID)
+        (resolve-class this (.. atom ID getText))))))
+
+
+(defn- undeclared-root?
+  "Whether the receiver of a method call starts with
+  an undeclared name, such as y in y.foo().bar().  The
+  validator reports the undeclared name."
+  [this ctx]
+  (let [undeclared? #(not (or (. (symbol-table this) (isInScope %))
+                              (resolve-class this %)))]
+    (cond
+      (instance? JestParser$MethodCallChainContext ctx)
+      (let [^JestParser$MethodCallChainContext chain ctx]
+        (if (. chain methodCall)
+          (recur this (.. chain methodCall obj))
+          (recur this (. chain chain))))
+
+      (instance? JestParser$ExpressionAtomContext ctx)
+      (let [^JestParser$ExpressionAtomContext atom ctx]
+        (cond
+          (. atom ID) (undeclared? (.. atom ID getText))
+          (. atom functionCall) (undeclared? (.. atom functionCall ID getText))
+          :else false))
+
+      :else false)))
+
+
+(defn- java-method-call
+  "Compile obj.method(args) to a call of the Java
+  method of that name.  The class of obj (or the class
+  that obj names, for a static method) is inferred at
+  compile time and the receiver and arguments are
+  hinted, so that Clojure calls the method directly.
+  A call whose class or overload can't be inferred is
+  made by reflection, and is reported.  When the class
+  is known but the overload isn't, the call goes
+  through clojure.lang.Reflector, as Clojure refuses
+  to compile a call that matches several overloads."
+  [this ^Token token obj-ctx obj args]
+  (let [method (. token getText)
+        static-class (class-named this obj-ctx)
+        obj-type (form-type this obj)
+        receiver (or static-class (get boxed-classes obj-type obj-type))
+        arg-types (mapv #(form-type this %) args)
+        ^Method resolved (if receiver
+                           (pick-overload (method-overloads receiver method (count args) (boolean static-class))
+                                          arg-types))]
+
+    (cond
+      (nil? receiver) (warn-reflection this token (format "call to %s can't be resolved (the type of its receiver is unknown)"
+                                                          method))
+      (nil? resolved) (warn-reflection this token (format "call to %s on %s can't be resolved (no single overload matches its arguments)"
+                                                          method (. ^Class receiver getName))))
+
+    (with-line
+      (cond
+        (nil? receiver) `(. ~obj (~(symbol method) ~@args))
+
+        (nil? resolved) (if static-class
+                          `(clojure.lang.Reflector/invokeStaticMethod
+                             ~(class-symbol static-class) ~method (object-array [~@args]))
+                          `(clojure.lang.Reflector/invokeInstanceMethod
+                             ~obj ~method (object-array [~@args])))
+
+        static-class (with-type `(. ~(class-symbol static-class) (~(symbol method) ~@(map hint-form args arg-types)))
+                                (. resolved getReturnType))
+
+        :else (with-type `(. ~(receiver-form obj obj-type) (~(symbol method) ~@(map hint-form args arg-types)))
+                         (. resolved getReturnType)))
+      token)))
+
+
+(defn- method-call
+  "Compile obj.method(args).  A method that names
+  a function in scope is called with obj as its
+  first argument, as is any method of an undeclared
+  receiver.  Any other method, and any method of a
+  class name (Math.max), is a Java method."
+  [this ^Token token obj-ctx obj args]
+  (if (and (not (class-named this obj-ctx))
+           (or (. (symbol-table this) (isInScope (. token getText)))
+               (undeclared-root? this obj-ctx)))
+    `(~(symbol (. token getText)) ~obj ~@args)
+    (java-method-call this token obj-ctx obj args)))
+
+
+(defn- java-constructor
+  "Compile new X(args) for a Java class X,
+  hinted with the class of the new object"
+  [this ^Token token ^Class klass args]
+  (let [arg-types (mapv #(form-type this %) args)
+        resolved (pick-overload (constructor-overloads klass (count args)) arg-types)]
+    (if-not resolved
+      (warn-reflection this token (format "constructor of %s can't be resolved (no single overload matches its arguments)"
+                                          (. klass getName))))
+    (with-type (with-line (if resolved
+                            `(new ~(class-symbol klass) ~@(map hint-form args arg-types))
+                            `(clojure.lang.Reflector/invokeConstructor
+                               ~(class-symbol klass) (object-array [~@args])))
+                          token)
+               klass)))
+
+
 (defn -visitDefAssignment
   [this ^JestParser$DefAssignmentContext ctx]
+  (with-validation this ctx
 
-  (let [type (. ctx type)
-        name (get-symbol ctx name)
-        expr (self-visit this ctx expression)]
+    (let [tag (get boxed-hints (type-name (. ctx type)))
+          name (hint (get-symbol ctx name) tag)
+          expr (self-visit this ctx expression)
+          klass (or (annotation-class this (. ctx type)) (annotation-record this (. ctx type))
+                    (value-tag this expr))]
 
-    (if type (println type))
-    `(def ~name ~expr)))
+      ;; A global always holds a boxed value
+      (tag-binding this (.. ctx name getText) (get boxed-classes klass klass))
+
+      `(def ~name ~expr))))
 
 
 (defn -visitExpression
@@ -207,6 +696,67 @@
     :else (throw (new LegacyClojureSourceGenerator$BadSource ctx))))
 
 
+(def ^:private pipeline-steps
+  "The lazy sequence functions that can be fused into
+  a single pass, and the jest.runtime transducer that
+  does the work of each"
+  '{map jest.runtime/mapping
+    filter jest.runtime/filtering
+    remove jest.runtime/removing
+    keep jest.runtime/keeping
+    mapcat jest.runtime/mapcatting
+    take jest.runtime/taking
+    take-while jest.runtime/taking-while})
+
+
+(defn- side-effect-free?
+  "Whether evaluating a form can't have side effects,
+  so it may be evaluated before a form written ahead
+  of it"
+  [form]
+  (or (symbol? form) (keyword? form) (number? form) (string? form)
+      (nil? form) (true? form) (false? form)
+      (and (seq? form) (= `fn (first form)))))
+
+
+(defn- pipeline-step
+  "The transducer of a call such as (map f coll), or nil
+  if the call isn't a step that a pipeline can fuse.  The
+  function must be the one of clojure.core, and its
+  argument must be free of side effects, as a fused
+  pipeline evaluates it after the collection instead of
+  before."
+  [this form]
+  (if (and (seq? form) (= 3 (count form)))
+    (let [[op arg] form
+          transducer (get pipeline-steps op)]
+      (if (and transducer
+               (side-effect-free? arg)
+               (nil? (. (symbol-table this) (resolve (name op)))))
+        (list transducer arg)))))
+
+
+(defn- fuse-pipeline
+  "Fuse a call of a lazy sequence function on the result
+  of another, such as (take n (map f (filter p coll))),
+  into a single jest.runtime/pipeline that runs every
+  step on each item in turn, instead of making a lazy
+  sequence for each step"
+  [this form]
+  (let [step (pipeline-step this form)
+        inner (last form)]
+    (cond
+      (nil? step) form
+
+      (and (seq? inner) (= 'jest.runtime/pipeline (first inner)))
+      (apply list (concat inner [step]))
+
+      (pipeline-step this inner)
+      `(jest.runtime/pipeline ~(last inner) ~(pipeline-step this inner) ~step)
+
+      :else form)))
+
+
 (defn -visitMethodCallChain
   [this ^JestParser$MethodCallChainContext ctx]
 
@@ -214,15 +764,14 @@
 
     (. ctx methodCall) (self-visit this ctx methodCall)
 
-    (. ctx PERIOD) (let [left (get-symbol ctx a)
-                         right (self-visit this ctx methodCallChain)
+    (. ctx PERIOD) (let [right (self-visit this ctx methodCallChain)
                          params (.. this (visitMethodParams (. ctx b)))]
-                     `(~left ~right ~@params))
+                     (method-call this (. ctx a) (. ctx chain) right params))
 
     (. ctx ARROW) (let [left (get-symbol ctx c)
                         right (self-visit this ctx methodCallChain)
                         params (.. this (visitMethodParams (. ctx d)))]
-                    `(~left ~@params ~right))
+                    (fuse-pipeline this `(~left ~@params ~right)))
 
     :else (throw (new LegacyClojureSourceGenerator$BadSource ctx))))
 
@@ -231,65 +780,65 @@
   [this ^JestParser$MethodCallContext ctx]
 
   (cond
-    (. ctx PERIOD) (let [a (get-symbol ctx func)
-                         b (.. this (visitExpressionAtom (. ctx obj)))
+    (. ctx PERIOD) (let [b (.. this (visitExpressionAtom (. ctx obj)))
                          params (self-visit this ctx methodParams)]
-                     `(~a ~b ~@params))
+                     (method-call this (. ctx func) (. ctx obj) b params))
 
 
     (. ctx ARROW) (let [a (get-symbol ctx func)
                         b (.. this (visitExpressionAtom (. ctx obj)))
                         params (self-visit this ctx methodParams)]
-                    `(~a ~@params ~b))
+                    (fuse-pipeline this `(~a ~@params ~b)))
 
     :else (throw (new LegacyClojureSourceGenerator$BadSource ctx))))
 
 
 (defn -visitExpressionAtom
   [this ^JestParser$ExpressionAtomContext ctx]
+  (with-validation this ctx
 
-  (cond
-    (. ctx NUMBER) (read-string (.. ctx NUMBER getText))
+    (cond
+      (. ctx NUMBER) (read-string (.. ctx NUMBER getText))
 
-    (. ctx TRUE) true
+      (. ctx TRUE) true
 
-    (. ctx FALSE) false
+      (. ctx FALSE) false
 
-    (. ctx NIL) nil
+      (. ctx NIL) nil
 
-    (. ctx ID) (symbol (.. ctx ID getText))
+      (. ctx ID) (symbol (.. ctx ID getText))
 
-    (. ctx STRING) (read-string (.. ctx STRING getText))
+      (. ctx STRING) (read-string (.. ctx STRING getText))
 
-    ;; TODO: Rename 'symbol' to 'keyword'
-    (. ctx SYMBOL) (keyword (subs (.. ctx SYMBOL getText) 1)) ;;(keyword (.. ctx SYMBOL getText))
+      ;; TODO: Rename 'symbol' to 'keyword'
+      (. ctx SYMBOL) (keyword (subs (.. ctx SYMBOL getText) 1)) ;;(keyword (.. ctx SYMBOL getText))
 
-    (. ctx clojureVector) (self-visit this ctx clojureVector)
+      (. ctx clojureVector) (self-visit this ctx clojureVector)
 
-    (. ctx clojureMap) (self-visit this ctx clojureMap)
+      (. ctx clojureMap) (self-visit this ctx clojureMap)
 
-    (. ctx functionCall) (self-visit this ctx functionCall)
+      (. ctx functionCall) (self-visit this ctx functionCall)
 
-    (. ctx clojureGet) (self-visit this ctx clojureGet)
+      (. ctx clojureGet) (self-visit this ctx clojureGet)
 
-    (. ctx forLoop) (self-visit this ctx forLoop)
+      (. ctx forLoop) (self-visit this ctx forLoop)
 
-    (. ctx conditional) (self-visit this ctx conditional)
+      (. ctx conditional) (self-visit this ctx conditional)
 
-    (. ctx lambda) (self-visit this ctx lambda)
+      (. ctx lambda) (self-visit this ctx lambda)
 
-    (. ctx memberGetChain) (self-visit this ctx memberGetChain)
+      (. ctx memberGetChain) (self-visit this ctx memberGetChain)
 
-    (. ctx recordConstructor) (self-visit this ctx recordConstructor)
+      (. ctx recordConstructor) (self-visit this ctx recordConstructor)
 
-    ;; A block, when used as an expression, must consist of a
-    ;; single expression or otherwise must be wrapped
-    ;; in a do statement
-    (. ctx block) (wrap-in-do (self-visit this ctx block))
+      ;; A block, when used as an expression, must consist of a
+      ;; single expression or otherwise must be wrapped
+      ;; in a do statement
+      (. ctx block) (wrap-in-do (self-visit this ctx block))
 
-    (. ctx expression) (self-visit this ctx expression)
+      (. ctx expression) (self-visit this ctx expression)
 
-    :else (throw (new LegacyClojureSourceGenerator$BadSource ctx))))
+      :else (throw (new LegacyClojureSourceGenerator$BadSource ctx)))))
 
 
 (defn -visitMemberGetChain
@@ -301,22 +850,69 @@
     (self-visit this ctx memberGet)))
 
 
+(defn- static-field
+  ^Field [^Class klass name]
+  (try
+    (let [field (. klass (getField name))]
+      (if (Modifier/isStatic (. field getModifiers)) field))
+    (catch NoSuchFieldException _ nil)))
+
+
+(defn- record-field?
+  "Whether a record has a field of the given name that
+  can be read directly (names ending in ? are munged)"
+  [this record-name member]
+  (and (some #{member} (get (records this) (name record-name)))
+       (not (. ^String member (endsWith "?")))))
+
+
 (defn -visitMemberGet
+  "record.member gets a member of a record, or
+  reads a static field if record names a class.
+  The field of a record whose type is known is read
+  directly, rather than by looking up its keyword."
   [this ^JestParser$MemberGetContext ctx]
-  `(~(keyword (.. ctx member getText)) ~(symbol (.. ctx record getText))))
+  (let [record (.. ctx record getText)
+        member (.. ctx member getText)
+        klass (resolve-class this record)
+        field (if klass (static-field klass member))
+        record-type (record-tag this (symbol record))]
+    (cond
+      field (with-type `(. ~(class-symbol klass) ~(symbol member)) (. field getType))
+
+      (and record-type (record-field? this record-type member))
+      `(. ~(hint (symbol record) record-type) ~(symbol (str "-" member)))
+
+      :else `(~(keyword member) ~(symbol record)))))
+
+
+(defn- record-form
+  "Record the record that a constructor makes
+  in the metadata of its form, if it is known"
+  [this ^JestParser$RecordConstructorContext ctx form]
+  (let [name (.. ctx name getText)]
+    (if (contains? (records this) name)
+      (vary-meta form assoc ::type (symbol name))
+      form)))
 
 
 (defn -visitRecordConstructor
+  "new X(args) constructs a record, or
+  an object of a Java class"
   [this ^JestParser$RecordConstructorContext ctx]
 
   (if (nil? (. ctx firstKey))
 
-    `(~(symbol (str "->" (.. ctx name getText))) ~@(self-visit this ctx methodParams))
+    (let [params (self-visit this ctx methodParams)]
+      (if-let [klass (resolve-class this (.. ctx name getText))]
+        (java-constructor this (. ctx name) klass params)
+        (record-form this ctx `(~(symbol (str "->" (.. ctx name getText))) ~@params))))
 
-    `(~(symbol (str "map->" (.. ctx name getText)))
-       ~(apply array-map (alternate
-         (map #(keyword (. % getText)) (merge-items (. ctx firstKey) (. ctx key)))
-         (map #(.. this (visitExpression %)) (merge-items (. ctx firstExp) (. ctx exp))))))))
+    (record-form this ctx
+     `(~(symbol (str "map->" (.. ctx name getText)))
+        ~(apply array-map (alternate
+          (map #(keyword (. % getText)) (merge-items (. ctx firstKey) (. ctx key)))
+          (map #(.. this (visitExpression %)) (merge-items (. ctx firstExp) (. ctx exp)))))))))
 
 
 (defn -visitExpressionList
@@ -338,42 +934,150 @@
 
 (defn -visitLambda
   [this ^JestParser$LambdaContext ctx]
-  (let [params (self-visit this ctx functionDefParams)
-        body  (self-visit this ctx block)]
-  `(fn [~@params] ~@body)))
+  (with-validation this ctx
+    (let [params (self-visit this ctx functionDefParams)
+          body  (self-visit this ctx block)]
+    `(fn [~@params] ~@body))))
+
+
+(def ^:private prim-coercions
+  "The function that converts a recur argument
+  to the type of a primitive parameter"
+  {'long `long 'double `double})
+
+
+(defn- rebinds?
+  "Whether a form defines or locally binds the given name"
+  [form name]
+  (some #(and (seq? %)
+              (or (and (= 'def (first %)) (= name (second %)))
+                  (and (= `let (first %)) (some #{name} (take-nth 2 (second %))))))
+        (tree-seq coll? seq form)))
+
+
+(defn- recur-tail-calls
+  "Replace each call of the named function, with the
+  given number of arguments, that is in tail position
+  in the given form with a recur, so the function loops
+  instead of growing the stack.  Tail position extends
+  into the branches of if, cond and case and the last form
+  of do and let, but not into nested functions (whose
+  recur would jump to themselves).  Arguments passed
+  to primitive parameters are converted to their
+  types, which recur requires."
+  [form fn-name param-tags]
+  (let [tail #(recur-tail-calls % fn-name param-tags)
+        keep-meta #(with-meta % (meta form))
+        arity (count param-tags)]
+    (if (seq? form)
+      (let [head (first form)]
+        (cond
+          (and (= fn-name head) (= arity (count (rest form))))
+          (keep-meta `(recur ~@(map (fn [arg tag] (if-let [coerce (prim-coercions tag)]
+                                                     (list coerce arg)
+                                                     arg))
+                                     (rest form) param-tags)))
+
+          (= 'if head)
+          (keep-meta (apply list head (second form) (map tail (drop 2 form))))
+
+          (= `cond head)
+          (keep-meta (apply list head (mapcat (fn [[test result]] [test (tail result)])
+                                              (partition 2 (rest form)))))
+
+          (= `case head)
+          (let [[_ subject & clauses] form]
+            (keep-meta (apply list head subject
+                              (concat (mapcat (fn [[test result]] [test (tail result)])
+                                              (partition 2 clauses))
+                                      (if (odd? (count clauses)) [(tail (last clauses))])))))
+
+          (or (= 'do head) (= `let head))
+          (keep-meta (apply list (concat (butlast form) [(tail (last form))])))
+
+          :else form))
+      form)))
+
+
+(defn- eliminate-self-tail-calls
+  "Turn the self calls in tail position of a function
+  body into recurs, unless the body rebinds the
+  function's name (in which case they aren't self calls)"
+  [body fn-name params param-tags]
+  (if (or (some #{fn-name} params) (rebinds? body fn-name))
+    body
+    (let [param-tags (or param-tags (repeat (count params) nil))]
+      (concat (butlast body) [(recur-tail-calls (last body) fn-name (vec param-tags))]))))
 
 
 (defn -visitFunctionDef
   [this ^JestParser$FunctionDefContext ctx]
-
-  ;if (ctx.funcTypeAnnotation() != null) {
-  ;                                       code += String.format("(t/ann %s [%s -> %s])\n",
-  ;                                                              ctx.name.getText(),
-  ;                                                              this.visitFuncTypeAnnotation(ctx.funcTypeAnnotation()).getSingleLine(),
-  ;                                                              this.visitTypeAnnotation(ctx.typeAnnotation()).getSingleLine());
-  ;                                       }
-
-  `(defn
-     ~(get-symbol ctx name)
-     [~@(self-visit this ctx functionDefParams)]
-     ~@(self-visit this ctx block)))
+  (with-validation this ctx
+
+    ;if (ctx.funcTypeAnnotation() != null) {
+    ;                                       code += String.format("(t/ann %s [%s -> %s])\n",
+    ;                                                              ctx.name.getText(),
+    ;                                                              this.visitFuncTypeAnnotation(ctx.funcTypeAnnotation()).getSingleLine(),
+    ;                                                              this.visitTypeAnnotation(ctx.typeAnnotation()).getSingleLine());
+    ;                                       }
+
+    ;; Parameters and return values annotated as Long or
+    ;; Double are hinted as primitives, so the function's
+    ;; arithmetic and comparisons are compiled unboxed
+    (let [params (vec (self-visit this ctx functionDefParams))
+          [param-tags return-tag] (primitive-signature ctx (count params))
+          classes (param-classes this ctx (count params))]
+
+      ;; Parameters annotated with a Java class are hinted
+      ;; where they are used as the receiver of a Java call
+      (doseq [[i param] (map-indexed vector params)]
+        (tag-binding this (name param) (or (primitive-classes (get param-tags i))
+                                           (get classes i))))
+
+      (if-let [memo (. ctx memoModifier)]
+
+        ;; A memo function is an anonymous function wrapped in
+        ;; a cache, so its recursive calls go through the Var
+        ;; (and the cache) rather than straight to itself
+        (let [^MemoOptions options (. this (visitMemoModifier memo))]
+          (tag-binding this (.. ctx name getText) MemoizedFunction)
+          `(def ~(get-symbol ctx name)
+             (jest.runtime.MemoizedFunction/create
+              (fn ~(hint (if param-tags (mapv hint params param-tags) params) return-tag)
+                ~@(self-visit this ctx block))
+              ~(. options getMaxSize) ~(. options getEviction) ~(. options getTtl))))
+
+        ;; Self calls in tail position loop rather than
+        ;; recursing, so they run in constant stack space
+        `(defn
+           ~(get-symbol ctx name)
+           ~(hint (if param-tags (mapv hint params param-tags) params) return-tag)
+           ~@(eliminate-self-tail-calls (self-visit this ctx block) (get-symbol ctx name)
+                                        params param-tags))))))
+
+
+(defn -visitMemoModifier
+  [this ^JestParser$MemoModifierContext ctx]
+  (with-validation this ctx
+    (new MemoOptions ctx)))
 
 
 (defn -visitMethodDef
   [this ^JestParser$MethodDefContext ctx]
+  (with-validation this ctx
 
-  ;
-  ;if (ctx.typeAnnotation() != null) {
-  ;                                   annotation = String.format("(t/ann %s [%s ->%s])\n",
-  ;                                                               ctx.name.getText(),
-  ;                                                               this.visitFuncTypeAnnotation(ctx.a).getSingleLine(),
-  ;                                                               this.visitTypeAnnotation(ctx.c).getSingleLine());
-  ;                                   }
+    ;
+    ;if (ctx.typeAnnotation() != null) {
+    ;                                   annotation = String.format("(t/ann %s [%s ->%s])\n",
+    ;                                                               ctx.name.getText(),
+    ;                                                               this.visitFuncTypeAnnotation(ctx.a).getSingleLine(),
+    ;                                                               this.visitTypeAnnotation(ctx.c).getSingleLine());
+    ;                                   }
 
 
-  `(~(symbol (.. ctx name getText))
-     [~@(self-visit this ctx functionDefParams)]
-     ~@(self-visit this ctx block)))
+    `(~(symbol (.. ctx name getText))
+       [~@(self-visit this ctx functionDefParams)]
+       ~@(self-visit this ctx block))))
 
 
 (defn -visitFunctionDefParams
@@ -385,15 +1089,19 @@
 
 (defn -visitFunctionCall
   [this ^JestParser$FunctionCallContext ctx]
-  `(~(get-symbol ctx ID) ~@(.. this (visitMethodParams (. ctx methodParams)))))
+  (with-validation this ctx
+    `(~(get-symbol ctx ID) ~@(.. this (visitMethodParams (. ctx methodParams))))))
 
 
 (defn -visitRecordDef
   [this ^JestParser$RecordDefContext ctx]
 
+  (swap! (:records (.state this)) assoc (.. ctx name getText)
+         (mapv #(. % getText) (merge-items (. ctx first) (. ctx field))))
+
   `(defrecord ~(get-symbol ctx name)
      [~@(map #(symbol (.. % getText)) (merge-items (. ctx first) (. ctx field)))]
-     ~@(apply concat (map #(.. this (visitImplementationDef %)) (. ctx implementationDef)))))
+     ~@(into [] (mapcat #(.. this (visitImplementationDef %)) (. ctx implementationDef)))))
 
 
 (defn -visitImplementationDef
@@ -416,17 +1124,132 @@
 
 
 
+(def ^:private ^:dynamic *discarded-loop*
+  "The for loop being translated as a statement
+  whose value is discarded, or nil"
+  nil)
+
+
+(defn- lone-for-loop
+  "The for loop that is the whole of a statement
+  (other than its semicolon), or nil if there is none"
+  [^ParserRuleContext ctx]
+  (if (instance? JestParser$ForLoopContext ctx)
+    ctx
+    (let [children (map #(. ctx getChild %) (range (. ctx getChildCount)))
+          rules (filter #(instance? ParserRuleContext %) children)]
+      (if (and (= 1 (count rules))
+               (every? #(or (instance? ParserRuleContext %) (= ";" (. % getText))) children))
+        (recur (first rules))))))
+
+
+(defn- visit-terms
+  "Translate the statements of a block.  The value of
+  every statement but the last is discarded, so a for
+  loop that is one of those statements doesn't collect
+  the values of its body."
+  [this terms]
+  (let [last-term (last terms)]
+    (mapv (fn [term]
+            (binding [*discarded-loop* (if-not (identical? term last-term) (lone-for-loop term))]
+              (. this (visitStatementTerm term))))
+          terms)))
+
+
+(defn- eager-for
+  "Run the body of an eager for loop over the items of
+  its collections in lock-step, until the shortest
+  runs out, and collect its values in a vector.  The
+  collections are walked with iterators and the values
+  are added to a transient vector, so no sequence is
+  made.  A loop whose value is discarded only runs its
+  body."
+  [names colls body discard?]
+  (let [iters (mapv #(hint (symbol (str "iter-" %)) 'java.util.Iterator) (range (count colls)))
+        more? (if (= 1 (count iters))
+                `(.hasNext ~(first iters))
+                `(and ~@(map (fn [iter] `(.hasNext ~iter)) iters)))
+        item `(let [~@(mapcat (fn [name iter] [name `(.next ~iter)]) names iters)]
+                ~@body)]
+    `(let [~@(mapcat (fn [iter coll] [iter `(jest.runtime/iterator ~coll)]) iters colls)]
+       ~(if discard?
+          `(loop []
+             (when ~more?
+               ~item
+               (recur)))
+          `(loop [~'values- (transient [])]
+             (if ~more?
+               (recur (conj! ~'values- ~item))
+               (persistent! ~'values-)))))))
+
+
+(def ^:private integral-classes
+  #{Long/TYPE Long Integer/TYPE Integer Short/TYPE Short Byte/TYPE Byte})
+
+
+(defn- counted-range
+  "Take the collections of a for loop and return the
+  [start end step] of the range they are, if the loop
+  is over a single call of range whose bounds are known
+  to be integers and whose step is a literal other than
+  0 (as its sign decides when the loop stops), or nil"
+  [this colls]
+  (if (= 1 (count colls))
+    (let [[coll] colls]
+      (if (and (seq? coll)
+               (= 'range (first coll))
+               (nil? (. (symbol-table this) (resolve "range"))))
+        (let [[start end step] (case (count (rest coll))
+                                 1 [0 (second coll) 1]
+                                 2 [(second coll) (nth coll 2) 1]
+                                 3 (rest coll)
+                                 nil)]
+          (if (and (integer? step) (not (zero? step))
+                   (every? #(integral-classes (form-type this %)) [start end]))
+            [start end step]))))))
+
+
+(defn- counted-for
+  "A for loop over a range of integers, counted with a
+  primitive long (so no range is made and the loop
+  variable isn't boxed), whose values are collected
+  as eager-for collects them"
+  [name [start end step] body discard?]
+  (let [more? (if (pos? step) `(< ~name ~'end-) `(> ~name ~'end-))
+        step-form `(+ ~name ~step)
+        item (wrap-in-do body)]
+    `(let [~'start- (long ~start)
+           ~'end- (long ~end)]
+       ~(if discard?
+          `(loop [~name ~'start-]
+             (when ~more?
+               ~item
+               (recur ~step-form)))
+          `(loop [~name ~'start-
+                  ~'values- (transient [])]
+             (if ~more?
+               (recur ~step-form (conj! ~'values- ~item))
+               (persistent! ~'values-)))))))
+
+
 (defn -visitForLoop
   [this ^JestParser$ForLoopContext ctx]
+  (with-validation this ctx
 
-  (let [func-args (into [] (map #(symbol (. % getText)) (merge-items (. ctx a) (. ctx b))))
-        func `(fn [~@func-args] ~@(self-visit this ctx block))
-        seq-items (map #(.. this (visitExpression %)) (merge-items (. ctx c) (. ctx d)))
-        iterator (into [] (map make-seqable seq-items))]
+    (let [func-args (into [] (map #(symbol (. % getText)) (merge-items (. ctx a) (. ctx b))))
+          seq-items (mapv #(.. this (visitExpression %)) (merge-items (. ctx c) (. ctx d)))
+          counted (if-not (or (. ctx LAZY) (. ctx parallel)) (counted-range this seq-items))
+          _ (if counted (tag-binding this (name (first func-args)) Long/TYPE))
+          body (self-visit this ctx block)
+          func `(fn [~@func-args] ~@body)
+          iterator (into [] (map make-seqable seq-items))
+          discard? (identical? ctx *discarded-loop*)]
 
-    (if (. ctx LAZY)
-      `(map ~func ~@iterator)
-      `(doall (map ~func ~@iterator)))))
+      (cond
+        (. ctx LAZY) `(map ~func ~@iterator)
+        (. ctx parallel) `(jest.runtime/parallel-map ~func ~@seq-items)
+        counted (counted-for (first func-args) counted body discard?)
+        :else (eager-for func-args seq-items body discard?)))))
 
 
 (defn -visitBlock
@@ -462,39 +1285,104 @@
   having all the expressions inline an an unwrapped list, so we here
   return a list and leave the unwrapping of the list to the consumer."
   [this ^JestParser$BlockContext ctx]
+  (with-validation this ctx
 
-  (cond
-    (. ctx expression) [(self-visit this ctx expression)]
+    (cond
+      (. ctx expression) [(self-visit this ctx expression)]
 
-    (. ctx term) (into [] (map #(.. this (visitStatementTerm %)) (. ctx term)))
+      (. ctx term) (visit-terms this (. ctx term))
 
-    (. ctx scope) (into [] (map #(.. this (visitVarScope %)) (. ctx scope)))
+      (. ctx scope) (into [] (map #(.. this (visitVarScope %)) (. ctx scope)))
 
-    :else (throw (new LegacyClojureSourceGenerator$BadSource ctx))))
+      :else (throw (new LegacyClojureSourceGenerator$BadSource ctx)))))
 
 
 (defn -visitVarScope
   [this ^JestParser$VarScopeContext ctx]
-  (let [names (into [] (map #(symbol (. % getText)) (. ctx name)))
-        vals (into [] (map #(.. this (visitExpression %)) (. ctx exp)))
-        bindings (alternate names vals)
-        expressions (map #(. this (visitStatementTerm %)) (. ctx terms))]
-    `(let [~@bindings] ~@expressions)))
+  (with-validation this ctx
+    (let [names (into [] (map #(symbol (. % getText)) (. ctx name)))
+          vals (mapv (fn [name exp]
+                       (let [val (. this (visitExpression exp))]
+                         (tag-binding this (str name) (value-tag this val))
+                         val))
+                     names (. ctx exp))
+          bindings (alternate names vals)
+          expressions (visit-terms this (. ctx terms))]
+      `(let [~@bindings] ~@expressions))))
+
+
+(defn- case-literal?
+  "Whether a form is a literal that case can dispatch on"
+  [form]
+  (or (number? form) (string? form) (keyword? form)))
+
+
+(defn- literal-comparison
+  "The [subject literal] of a condition that compares
+  an expression to a number, string or symbol literal
+  with ==, or nil for any other condition"
+  [condition]
+  (if (and (seq? condition) (= '= (first condition)) (= 3 (count condition)))
+    (let [[_ left right] condition]
+      (cond
+        (and (case-literal? right) (not (case-literal? left))) [left right]
+        (and (case-literal? left) (not (case-literal? right))) [right left]))))
+
+
+(defn- pure-read?
+  "Whether a form only reads a variable, or a field
+  or key of one, so evaluating it once has the same
+  value and effects as evaluating it each time"
+  [form]
+  (or (symbol? form)
+      (and (seq? form)
+           (or (and (keyword? (first form)) (= 2 (count form)))
+               (and (= '. (first form)) (= 3 (count form))
+                    (symbol? (nth form 2)) (.startsWith (name (nth form 2)) "-")))
+           (pure-read? (second form)))))
+
+
+(defn- constant-dispatch
+  "Compile an if/elif chain whose conditions all compare
+  the same expression to distinct literals into a case,
+  which evaluates the expression once and jumps to the
+  matching branch by its hash, or return nil if the chain
+  isn't one.  case matches with the same equality as ==.
+  Short chains are left as conds, which are as fast, as
+  are chains over a call, which the cond calls again
+  for each condition it tests."
+  [conditions results else]
+  (let [comparisons (map literal-comparison conditions)
+        subject (ffirst comparisons)
+        literals (map second comparisons)]
+    (if (and (>= (count conditions) 3)
+             (every? some? comparisons)
+             (pure-read? subject)
+             (every? #(= subject (first %)) comparisons)
+             (apply distinct? literals))
+      (let [local (if (symbol? subject) subject 'subject-)
+            dispatch `(case ~local ~@(alternate literals results) ~else)]
+        (if (symbol? subject)
+          dispatch
+          `(let [~local ~subject] ~dispatch))))))
 
 
 (defn -visitConditional
   [this ^JestParser$ConditionalContext ctx]
+  (with-validation this ctx
 
-  (let [conditions (map #( .. this (visitExpression %)) (merge-items (. ctx ifCondition) (. ctx elifExpression)))
-        results (map #(wrap-in-do (.. this (visitBlock %))) (merge-items (. ctx iftrue) (. ctx elifBlock)))
-        else (if (. ctx elseBlock) (wrap-in-do (.. this (visitBlock (. ctx elseBlock)))) nil)
-        single-if (= (. conditions size) 1)]
+    (let [conditions (mapv #( .. this (visitExpression %)) (merge-items (. ctx ifCondition) (. ctx elifExpression)))
+          results (mapv #(wrap-in-do (.. this (visitBlock %))) (merge-items (. ctx iftrue) (. ctx elifBlock)))
+          else (if (. ctx elseBlock) (wrap-in-do (.. this (visitBlock (. ctx elseBlock)))) nil)
+          single-if (= (. conditions size) 1)
+          dispatch (constant-dispatch conditions results else)]
 
-    (cond
-      (and single-if (not (nil? else))) `(if ~(. conditions (get 0)) ~(. results (get 0)) ~else)
-      single-if `(if ~(. conditions (get 0)) ~(. results (get 0)))
-      (not else) `(cond ~@(alternate conditions results))
-      :else `(cond ~@(alternate conditions results) :else ~else))))
+      (cond
+        (and single-if (not (nil? else))) `(if ~(. conditions (get 0)) ~(. results (get 0)) ~else)
+        single-if `(if ~(. conditions (get 0)) ~(. results (get 0)))
+        dispatch dispatch
+        (not else) `(cond ~@(alternate conditions results))
+        :else `(cond ~@(alternate conditions results) :else ~else)))))
 
 
 (defn -visitClojureVector
@@ -520,5 +1408,15 @@
 
 
 (defn -visitClojureGet
+  "a[b] gets an item of a collection.  An item of
+  a vector at an integer index is read with nth,
+  directly from the vector, rather than with get."
   [this ^JestParser$ClojureGetContext ctx]
-  `(get ~(symbol (.. ctx a getText)) ~(.. this (visitExpression (. ctx b)))))
\ No newline at end of file
+  (let [coll (symbol (.. ctx a getText))
+        index (.. this (visitExpression (. ctx b)))
+        coll-type (form-type this coll)]
+    (if (and coll-type
+             (isa? coll-type IPersistentVector)
+             (integral-classes (form-type this index)))
+      `(.nth ~(hint coll 'clojure.lang.Indexed) (int ~index) nil)
+      `(get ~coll ~index))))
\ No newline at end of file
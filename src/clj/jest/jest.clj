@@ -1,8 +1,12 @@
 (ns jest.jest
   (:require [clojure.tools.cli :refer [parse-opts]]
             [clojure.string :as str]
+            [clojure.java.io :as io]
             [jest.parser :refer :all]
+            [jest.cache :refer [execute-jest-cached clear-cache default-cache-dir]]
+            [jest.server :refer [start-server default-port]]
             [cljfmt.core :as cljfmt])
+  (:import (jest.compiler JestCompiler))
   (:gen-class))
 
 
@@ -11,6 +15,26 @@
    ["-v" "--verbose" :flag true]
    ["-c" "--clojure" "Print the Clojure representation of the Jest source code" :flag true]
    ["-t" "--type-check" "Type check the Jest code" :flag true]
+   ["-P" "--parallel" "Compile the program's top-level statements in parallel" :flag true]
+   ["-j" "--jobs N" "The number of files checked at once by 'jest compile'"
+    :default (.availableProcessors (Runtime/getRuntime))
+    :parse-fn #(Integer/parseInt %)]
+   ["-b" "--backend NAME" "Run programs by evaluating their Clojure forms (clojure), by compiling them directly to JVM bytecode (bytecode), or with the interpreter (interpret)"
+    :default :clojure
+    :parse-fn keyword
+    :validate [#{:clojure :bytecode :interpret} "Must be clojure, bytecode or interpret"]]
+   [nil "--tree-shake" "Leave out the functions, records and defs that the program never uses" :flag true]
+   [nil "--[no-]optimize" "Simplify the program (fold constants, remove dead branches, ...) before running it"
+    :default true]
+   [nil "--dump-passes" "Print the program's Clojure forms after each optimizer pass" :flag true]
+   [nil "--warn-reflection" "Print every line of the program that calls Java by reflection" :flag true]
+   ["-s" "--stream" "Execute the program one statement at a time, without reading the whole file into memory" :flag true]
+   ["-d" "--cache-dir DIR" "Cache compiled programs in DIR and reuse them when the program is unchanged"]
+   [nil "--clear-cache" "Remove all compiled programs from the cache directory (--cache-dir or ~/.jest/cache)" :flag true]
+   [nil "--server" "Run a resident Jest server that runs programs sent by jest.client.JestClient, with the run options (--backend, --optimize, ...) given to the server" :flag true]
+   ["-p" "--port PORT" "The loopback port used by --server"
+    :default default-port
+    :parse-fn #(Integer/parseInt %)]
    ["-h" "--help"]])
 
 
@@ -18,6 +42,8 @@
   (->> ["This is the main Jest executable."
         ""
         "Usage: jest /path/to/source/file.jst [options]"
+        "       jest --server [--port PORT]"
+        "       jest compile /path/to/source/dir [--jobs N]"
         ""
         "Options:"
         options-summary
@@ -43,30 +69,88 @@
 
 (defn verbose-print-jest-source
   ""
-  [jest-src-str]
+  [jest-src-str tree]
   (println (separator "Jest Source" 80))
   (println jest-src-str)
   (println (separator "Compiled Clojure" 80))
-  (doall (map println (jest->clojure jest-src-str)))
+  (doall (map println (parse-tree->clojure tree)))
   (println (separator 80)))
 
 
+(defn compile-directory
+  "Parse and validate every Jest source file in
+  the directory, print a report of the results,
+  and exit with an error status if any are invalid"
+  [dir jobs]
+  (let [report (. JestCompiler (checkSourceDirectory (io/file dir) jobs))]
+    (print (str report))
+    (flush)
+    (System/exit (if (. report isValid) 0 1))))
+
+
+(defn- run-options
+  "The options of validate-and-execute-jest
+  among the command line options"
+  [options]
+  (select-keys options [:parallel :tree-shake :backend :warn-reflection :optimize :dump-passes]))
+
+
+(def ^:private whole-program-options
+  "The options that need the whole program at
+  once, which --stream can't be used with"
+  {:parallel "--parallel" :tree-shake "--tree-shake" :cache-dir "--cache-dir"})
+
+
+(defn run-stream
+  "Run a source file one statement at a time (see
+  execute-jest-stream) and exit, with an error
+  status if a statement is invalid"
+  [source-file options]
+  (let [unsupported (concat (keep #(if (% options) (whole-program-options %)) (keys whole-program-options))
+                            (if (= :interpret (:backend options)) ["--backend interpret"]))]
+    (if (seq unsupported)
+      (exit 1 (str "--stream can't be used with " (str/join ", " unsupported)))))
+  (try
+    (with-open [reader (io/reader source-file)]
+      (execute-jest-stream reader (select-keys options [:backend :optimize :dump-passes :warn-reflection])))
+    (System/exit 0)
+    (catch clojure.lang.ExceptionInfo e
+      (if-let [errors (:errors (ex-data e))]
+        (exit 1 (str/join \newline errors))
+        (throw e)))))
+
+
 (defn -main [& args]
   (let [{:keys [options arguments errors summary]} (parse-opts args cli-options)]
     ;; Read the main file and parse it
     ;; Print the results
 
     (cond
-     (:help options) (exit 0 (usage summary)))
+     (:help options) (exit 0 (usage summary))
+     (:clear-cache options) (do (clear-cache (or (:cache-dir options) default-cache-dir))
+                                (System/exit 0))
+     (:server options) (start-server (:port options) (run-options options))
+     (= "compile" (first arguments)) (compile-directory (second arguments) (:jobs options)))
 
 
-    (let [source-file (first arguments)
-          source-code (slurp source-file)]
+    (let [source-file (first arguments)]
 
-      ;; Print some helpful output for testing/debugging
+      ;; Large programs can be run without
+      ;; holding the whole program in memory
       (cond
-        (:verbose options) (verbose-print-jest-source source-code)
-        (:clojure options) (exit 0 (-> source-code jest->clojure println)))
-
-      ;; Run all the things!
-      (validate-and-execute-jest source-code))))
+        (:stream options) (run-stream source-file options))
+
+      (let [source-code (slurp source-file)
+            ;; Only parsed here if it is printed, so
+            ;; cached programs are never parsed at all
+            tree (delay (parse-source-code source-code))]
+
+        ;; Print some helpful output for testing/debugging
+        (cond
+          (:verbose options) (verbose-print-jest-source source-code @tree)
+          (:clojure options) (exit 0 (-> @tree parse-tree->clojure println)))
+
+        ;; Run all the things!
+        (if-let [cache-dir (:cache-dir options)]
+          (execute-jest-cached source-code cache-dir (run-options options))
+          (validate-and-execute-jest source-code (run-options options)))))))
@@ -0,0 +1,250 @@
+(ns jest.optimizer
+  "Passes that simplify the Clojure forms of a Jest
+  program before it is run.  A pass is a function of
+  an environment (what is known about the whole
+  program) and a single form, and is applied to every
+  form of the program from the inside out.  The passes
+  of the pipeline can be replaced with the :passes
+  option of optimize.")
+
+
+(defn- walk
+  "Apply f to every form inside the given form, from
+  the inside out, as clojure.walk/postwalk does.  Unlike
+  postwalk, this keeps the metadata of every form (the
+  type hints and source lines of the translator) and
+  leaves quoted forms, and the method name of a Java
+  call, alone."
+  [f form]
+  (let [inner #(walk f %)]
+    (f (cond
+         (and (seq? form) (= 'quote (first form))) form
+
+         (and (seq? form) (= '. (first form)))
+         (let [[dot target member & args] form
+               member (if (seq? member)
+                        (with-meta (apply list (first member) (map inner (rest member))) (meta member))
+                        member)]
+           (with-meta (apply list dot (inner target) member (map inner args)) (meta form)))
+
+         (seq? form) (with-meta (apply list (map inner form)) (meta form))
+         (vector? form) (with-meta (mapv inner form) (meta form))
+         (map? form) (with-meta (into (empty form) (map (fn [[k v]] [(inner k) (inner v)]) form))
+                       (meta form))
+         :else form))))
+
+
+(def ^:private fn-forms '#{fn clojure.core/fn defn clojure.core/defn})
+
+(def ^:private binding-forms '#{let clojure.core/let loop clojure.core/loop
+                                for clojure.core/for doseq clojure.core/doseq})
+
+
+(defn- bound-names
+  "Every name that the program defines or binds
+  (globals, function parameters, local variables
+  and records), any of which may shadow a core
+  function.  This errs on the side of including
+  too many names."
+  [forms]
+  (let [symbols-in (fn [x] (filter symbol? (tree-seq coll? seq x)))]
+    (set (mapcat (fn [form]
+                   (if (seq? form)
+                     (let [head (first form)]
+                       (cond
+                         (fn-forms head) (concat (if (symbol? (second form)) [(second form)])
+                                                 (mapcat symbols-in (filter vector? form)))
+                         (= 'def head) [(second form)]
+                         (binding-forms head) (symbols-in (second form))
+                         ('#{defrecord clojure.core/defrecord} head) (symbols-in form)
+                         :else nil))))
+                 (tree-seq coll? seq forms)))))
+
+
+(defn- core-op
+  "The name of the core function that a form calls, or
+  nil if the form isn't a call of a core function (or
+  the program binds that name to something else)"
+  [env form]
+  (if (and (seq? form) (symbol? (first form)))
+    (let [head (first form)]
+      (if (and (not (contains? (:shadowed env) head))
+               (contains? #{nil "clojure.core"} (namespace head)))
+        (symbol (name head))))))
+
+
+(defn- constant?
+  "Whether a form is a literal that evaluates to itself"
+  [form]
+  (or (number? form) (string? form) (keyword? form)
+      (true? form) (false? form) (nil? form)))
+
+
+(def ^:private left-folded-ops
+  "Arithmetic whose variadic form is the same
+  as a chain of binary calls from the left"
+  '#{+ - * /})
+
+
+(defn flatten-arithmetic
+  "Flatten chains of binary arithmetic into a
+  single variadic call: (+ (+ a b) c) is (+ a b c),
+  which the Clojure compiler inlines just the same"
+  [env form]
+  (let [op (core-op env form)]
+    (if (contains? left-folded-ops op)
+      (let [[_ left & more] form]
+        ;; (- (- a) b) is not (- a b), so only
+        ;; binary and longer calls are flattened
+        (if (and (= op (core-op env left)) (> (count left) 2))
+          (with-meta (apply list (first form) (concat (rest left) more)) (meta form))
+          form))
+      form)))
+
+
+(def ^:private pure-ops
+  "Core functions without side effects, whose
+  calls can be computed at compile time"
+  '#{+ - * / inc dec quot rem mod max min
+     < > <= >= = == not= not zero? pos? neg? even? odd? str})
+
+
+(defn- compute
+  "Call the core function of the given name, returning
+  nil if the call fails or its result isn't a constant
+  that can be written into the forms"
+  [op args]
+  (try
+    (let [value (apply @(find-var (symbol "clojure.core" (name op))) args)]
+      (if (and (constant? value)
+               (not (and (float? value) (or (Double/isNaN value) (Double/isInfinite value)))))
+        [value]))
+    (catch Throwable _ nil)))
+
+
+(defn fold-constants
+  "Compute calls of pure core functions whose arguments
+  are constants, such as (* 60 60 24).  The leading
+  constants of an arithmetic call are computed as well,
+  so (* 60 60 x) is (* 3600 x).  A call that throws (such
+  as a division by zero) is left to throw at runtime."
+  [env form]
+  (let [op (core-op env form)]
+    (if (contains? pure-ops op)
+      (let [args (rest form)
+            leading (take-while constant? args)]
+        (cond
+          (every? constant? args) (if-let [[value] (compute op args)] value form)
+
+          (and (contains? left-folded-ops op) (> (count leading) 1))
+          (if-let [[value] (compute op leading)]
+            (with-meta (apply list (first form) value (drop (count leading) args)) (meta form))
+            form)
+
+          :else form))
+      form)))
+
+
+(def ^:private identities
+  "The argument of each arithmetic function that
+  leaves its other arguments unchanged.  Only Long
+  identities are removed, as a Double would change
+  the type of the result."
+  {'+ 0 '* 1 '- 0 '/ 1})
+
+
+(defn- identity-arg?
+  [op arg]
+  (and (instance? Long arg) (== arg (identities op))))
+
+
+(defn simplify-algebra
+  "Remove the identity arguments of arithmetic, such as
+  the 0 of (+ x 0) or the 1 of (* x 1 y).  Arithmetic
+  checks that its arguments are numbers, so a call is
+  only replaced by its one remaining argument if that
+  argument is arithmetic itself."
+  [env form]
+  (let [op (core-op env form)]
+    (if (contains? identities op)
+      (let [[head first-arg & more] form
+            ;; Only the first argument of - and / can't be
+            ;; removed, as (- x) negates x and (/ x) inverts it
+            args (if (#{'- '/} op)
+                   (cons first-arg (remove #(identity-arg? op %) more))
+                   (remove #(identity-arg? op %) (rest form)))
+            [only] args]
+        (cond
+          (= (count args) (count (rest form))) form
+          (> (count args) 1) (with-meta (apply list head args) (meta form))
+          (and (= 1 (count args)) (contains? left-folded-ops (core-op env only))) only
+          :else form))
+      form)))
+
+
+(defn- prune-cond
+  "Remove the clauses of a cond whose tests are
+  false constants, and every clause after the first
+  whose test is a true constant"
+  [form]
+  (let [clauses (->> (partition 2 (rest form))
+                     (remove (fn [[test _]] (and (constant? test) (not test)))))
+        [live dead] (split-with (fn [[test _]] (not (constant? test))) clauses)
+        clauses (concat live (take 1 dead))]
+    (cond
+      (= (* 2 (count clauses)) (count (rest form))) form
+      (empty? clauses) nil
+      (and (empty? live) (seq dead)) (second (first dead))
+      :else (with-meta (apply list (first form) (apply concat clauses)) (meta form)))))
+
+
+(defn prune-branches
+  "Remove the branches of if and elif chains
+  whose conditions are constants"
+  [env form]
+  (if (seq? form)
+    (let [[head test then else] form]
+      (cond
+        (and (= 'if head) (constant? test)) (if test then else)
+        (contains? '#{cond clojure.core/cond} head) (prune-cond form)
+        :else form))
+    form))
+
+
+(def default-passes
+  "The passes of the optimizer, in the
+  order that they are run"
+  [[:flatten flatten-arithmetic]
+   [:fold fold-constants]
+   [:simplify simplify-algebra]
+   [:prune prune-branches]])
+
+
+(defn print-pass
+  "Print the forms of a program after an optimizer
+  pass (for the :dump option of optimize)"
+  [pass forms]
+  (println (str ";; After " (name pass) ":"))
+  (doseq [form forms]
+    (prn form)))
+
+
+(defn optimize
+  "Run the optimizer passes over the top-level forms
+  of a program and return the optimized forms.
+
+  Options:
+  :passes - The passes to run, as [name pass] pairs
+            (default-passes)
+  :dump   - A function called with the name of each
+            pass and the forms after it (see print-pass)"
+  ([forms] (optimize forms {}))
+  ([forms options]
+   (let [env {:shadowed (bound-names forms)}
+         dump (or (:dump options) (fn [_ _]))]
+     (reduce (fn [forms [pass-name pass]]
+               (let [result (mapv #(walk (partial pass env) %) forms)]
+                 (dump pass-name result)
+                 result))
+             (vec forms)
+             (or (:passes options) default-passes)))))
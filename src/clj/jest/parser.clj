@@ -1,15 +1,49 @@
 (ns jest.parser
   (:require [clojure.core.typed :as t]
-            [jest.compiler.JestToClojureTranslator])
-  (:import (jest.compiler JestToClojureTranslator)))
+            [clojure.string :as str]
+            [jest.compiler.JestToClojureTranslator :refer [reflection-warnings declare-records]]
+            [jest.optimizer :refer [optimize print-pass]]
+            ;; Loaded for the forms of the programs it runs
+            [jest.runtime])
+  (:import (jest.compiler JestToClojureTranslator Validator Validator$ValidationError CompilationResult
+                          StatementStream StatementStream$SyntaxError
+                          TopLevelDeclarations BytecodeCompiler TreeShaker SymbolTable SymbolTable$Binding)
+           (jest.interpreter Interpreter)
+           (jest.grammar JestParser$SourceCodeContext)
+           (org.antlr.v4.runtime.tree ParseTreeWalker)
+           (java.util.concurrent ForkJoinPool Future)))
 
 (import 'jest.compiler.JestCompiler)
 
 
+(defn parse-source-code
+  "Parse a string of Jest source code and
+  return the root of its parse tree.  The tree
+  is shared by every later compilation stage
+  and is cached by the hash of the source, so
+  the same source is only lexed and parsed once."
+  [jest-src-str] (. JestCompiler (parseSourceCode jest-src-str)))
+
+
+(defn validate-parse-tree
+  "Validate a Jest parse tree, returning
+  true if it is valid and false if invalid"
+  [tree] (. JestCompiler (validateParseTree tree)))
+
+
 (defn validate-source-code
   "Validate jest source code, returning
   true if it is valid and false if invalid"
-  [jest-code] (. JestCompiler (validateSourceCode jest-code)))
+  [jest-code] (validate-parse-tree (parse-source-code jest-code)))
+
+
+(defn parse-tree->clojure
+  "Take the root of a Jest parse tree and
+  return a list of Clojure forms representing
+  the execution representation of that tree"
+  [tree]
+  (let [parser (new JestToClojureTranslator)]
+    (.. parser (visit tree))))
 
 
 (defn jest->clojure
@@ -18,18 +52,269 @@
   representing the execution representation
   of the given Jest code"
   [jest-src-str]
-  (let [tree (. JestCompiler (compileSourceCodeToParseTree jest-src-str))
-        parser (new JestToClojureTranslator)]
-    (.. parser (visit tree))))
+  (parse-tree->clojure (parse-source-code jest-src-str)))
+
+
+(defn translate-in-program
+  "Translate a part of the top-level statement at the
+  given index of a program (or the statement itself), with
+  the globals, imports and records that the statements
+  before it declare in scope, as compile-parallel
+  translates each statement.  A statement index of -1
+  (an import) sees only the program's imports."
+  [^TopLevelDeclarations declarations statement tree]
+  (let [translator (new JestToClojureTranslator (new Validator true declarations statement))]
+    (declare-records translator (. declarations (recordsBefore statement)))
+    (. translator (visit tree))))
+
+
+(defn- compile-serial
+  [tree]
+  (let [validator (new Validator true)
+        translator (new JestToClojureTranslator validator)
+        forms (.. translator (visit tree))]
+    (new CompilationResult forms (. validator getErrors) (reflection-warnings translator))))
+
+
+(defonce ^ForkJoinPool compile-pool (new ForkJoinPool))
+
+
+(defn- compile-parallel
+  "Top-level statements only depend on each other through
+  the global names they declare.  Collect those names (and
+  the records of each statement) first, then validate and
+  translate every statement as its own task on a fork-join
+  pool, and put the results back together in source order.
+  The imports are translated first, with a validator of
+  their own whose errors come before the statements'.
+
+  The class of a global is only known once the statement
+  that defines it has been translated, so the statements
+  that refer to a global whose class was found are then
+  translated again, until no more classes are found.  This
+  gives the same forms as translating the statements in
+  order, as each statement sees the classes of the globals
+  before it."
+  [^JestParser$SourceCodeContext tree]
+  (let [declarations (new TopLevelDeclarations tree)
+        statements (vec (. tree statementTerm))
+        import-validator (new Validator true)
+        imports (let [translator (new JestToClojureTranslator import-validator)]
+                  (mapv #(. translator (visitImportStatement %)) (. tree importStatement)))
+        translate (fn [i]
+                    (fn []
+                      (let [validator (new Validator true declarations i)
+                            translator (new JestToClojureTranslator validator)
+                            _ (declare-records translator (. declarations (recordsBefore i)))
+                            form (.. translator (visit (statements i)))
+                            ^SymbolTable symbols (. validator getSymbolTable)]
+                        {:form form
+                         :errors (. validator getErrors)
+                         :warnings (reflection-warnings translator)
+                         :tags (into {} (for [name (. declarations (declaredBy i))
+                                              :let [^SymbolTable$Binding binding (. symbols (resolve name))]
+                                              :when (and binding (. binding getTag))]
+                                          [name (. binding getTag)]))})))
+        run (fn [indices]
+              (zipmap indices (map #(. ^Future % get)
+                                   (. compile-pool (invokeAll (mapv translate indices))))))
+        references (mapv #(delay (TopLevelDeclarations/referencedNames %)) statements)
+        results (loop [results (run (range (count statements)))
+                       rounds (count statements)]
+                  ;; Tasks only read the tags of the shared bindings,
+                  ;; which are set here between rounds
+                  (let [found (for [[_ result] results
+                                    [name tag] (:tags result)
+                                    :let [^SymbolTable$Binding binding (. declarations (getBinding name))]
+                                    :when (not= tag (. binding getTag))]
+                                (do (. binding (setTag tag)) name))
+                        found (set (doall found))
+                        stale (filter #(some found @(references %)) (range (count statements)))]
+                    (if (or (empty? stale) (zero? rounds))
+                      results
+                      (recur (merge results (run stale)) (dec rounds)))))]
+    (new CompilationResult
+         (into imports (map #(:form (results %)) (range (count statements))))
+         (concat (. import-validator getErrors)
+                 (mapcat #(:errors (results %)) (range (count statements))))
+         (mapcat #(:warnings (results %)) (range (count statements))))))
+
+
+(defn- compile-tree-shaken
+  "Validate the whole program, then translate only
+  the top-level statements that are needed to run it
+  (see jest.compiler.TreeShaker)"
+  [^JestParser$SourceCodeContext tree]
+  (let [checker (doto (new Validator true) (.setRecordResolutions true))]
+    (. ParseTreeWalker/DEFAULT (walk checker tree))
+    (if (. checker hasErrors)
+      (new CompilationResult [] (. checker getErrors))
+      (let [validator (new Validator true)
+            translator (new JestToClojureTranslator validator)
+            imports (mapv #(. translator (visitImportStatement %)) (. tree importStatement))
+            statements (. (new TreeShaker tree checker) neededStatementTerms)
+            forms (into imports (map #(. translator (visit %)) statements))]
+        (new CompilationResult forms (. validator getErrors) (reflection-warnings translator))))))
+
+
+(defn compile-parse-tree
+  "Take the root of a Jest parse tree and,
+  in a single walk of the tree, check its scope
+  and generate its Clojure forms.  Returns a
+  CompilationResult holding the forms and every
+  validation error that was found.
+
+  Options:
+  :parallel   - Compile the top-level statements
+                in parallel on all cores
+  :tree-shake - Leave out the functions, records
+                and defs that the program never uses"
+  ([tree] (compile-parse-tree tree {}))
+  ([tree options]
+   (cond
+     (:tree-shake options) (compile-tree-shaken tree)
+     (:parallel options) (compile-parallel tree)
+     :else (compile-serial tree))))
+
+
+(defn compile-jest
+  "Take a string of Jest source code and return
+  a CompilationResult for it (see compile-parse-tree)"
+  ([jest-src-str] (compile-jest jest-src-str {}))
+  ([jest-src-str options]
+   (compile-parse-tree (parse-source-code jest-src-str) options)))
+
+
+(defn print-errors
+  "Print the validation errors of a CompilationResult"
+  [^CompilationResult result]
+  (doseq [error (. result getErrors)]
+    (println (. error getMessage))))
+
+
+(defn print-warnings
+  "Print the warnings of a CompilationResult,
+  such as the lines that call Java by reflection,
+  to standard error"
+  [^CompilationResult result]
+  (binding [*out* *err*]
+    (doseq [warning (. result getWarnings)]
+      (println warning))))
+
+
+(defn execute-forms
+  "Evaluate a list of Clojure forms in order,
+  returning the value of the last form"
+  [forms]
+  (last (map eval forms)))
+
+
+(defn execute-bytecode
+  "Compile a list of Clojure forms directly to
+  JVM bytecode, without Clojure's eval, and run
+  them in order, returning the value of the
+  last form (see jest.compiler.BytecodeCompiler)"
+  [forms]
+  (. (BytecodeCompiler/compile forms) run))
+
+
+(defn optimize-forms
+  "Simplify a list of Clojure forms with the
+  optimizer (see jest.optimizer), unless the
+  :optimize option is false.  The :dump-passes
+  option prints the forms after each pass."
+  [forms options]
+  (if (false? (:optimize options))
+    forms
+    (optimize forms (if (:dump-passes options) {:dump print-pass} {}))))
+
+
+(defn run-forms
+  "Optimize a list of Clojure forms (see
+  optimize-forms) and run them using the
+  backend named by the :backend option: :clojure
+  (eval each form, the default) or :bytecode"
+  ([forms] (run-forms forms {}))
+  ([forms options]
+   (let [forms (optimize-forms forms options)]
+     (case (or (:backend options) :clojure)
+       :clojure (execute-forms forms)
+       :bytecode (execute-bytecode forms)))))
+
+
+(defn interpret-parse-tree
+  "Run a Jest parse tree with the interpreter,
+  without generating or evaluating Clojure forms
+  (see jest.interpreter.Interpreter).  Returns the
+  value of the last statement."
+  [tree]
+  (. (new Interpreter) (execute tree)))
 
 
 (defn execute-jest
   "Takes a string of Kest source code,
   converts it into a list of clojure forms,
   and executes the clojure forms.
-  Returns the value of the last executed form."
-  [jest-source-str]
-  (last (map eval (jest->clojure jest-source-str))))
+  Returns the value of the last executed form.
+  Takes the :backend option of run-forms, which
+  may also be :interpret to run the parse tree
+  with the interpreter instead."
+  ([jest-source-str] (execute-jest jest-source-str {}))
+  ([jest-source-str options]
+   (if (= :interpret (:backend options))
+     (interpret-parse-tree (parse-source-code jest-source-str))
+     (run-forms (jest->clojure jest-source-str) options))))
+
+
+(defn- validate-and-interpret-jest
+  [jest-src-str]
+  (let [tree (parse-source-code jest-src-str)
+        validator (new Validator true)]
+    (. ParseTreeWalker/DEFAULT (walk validator tree))
+    (if (. validator hasErrors)
+      (print-errors (new CompilationResult [] (. validator getErrors)))
+      (interpret-parse-tree tree))))
+
+
+(defn execute-jest-stream
+  "Takes a Reader of Jest source code and
+  executes it one top-level statement at a time:
+  each statement is parsed, validated, converted
+  to a Clojure form, and run before the next one
+  is read.  Only a single statement is held in
+  memory at a time (the validator keeps only the
+  name of each global).  Takes the :backend
+  (:clojure or :bytecode), :optimize, :dump-passes
+  and :warn-reflection options of
+  validate-and-execute-jest; the other options
+  need the whole program.  Execution stops at the
+  first statement that can't be parsed or is
+  invalid, by throwing an ExceptionInfo whose
+  message and :errors are its errors.  Returns
+  the value of the last executed form."
+  ([reader] (execute-jest-stream reader {}))
+  ([reader options]
+   (let [statements (new StatementStream reader)
+         validator (doto (new Validator true) (.setKeepDeclarations false))
+         translator (new JestToClojureTranslator validator)
+         invalid (fn [messages]
+                   (ex-info (str/join "\n" messages) {:errors (vec messages)}))]
+     (loop [value nil
+            warned 0]
+       (if (. statements hasNext)
+         (let [form (try
+                      (.. translator (visit (. statements next)))
+                      (catch StatementStream$SyntaxError e
+                        (throw (invalid [(. e getMessage)]))))
+               warnings (reflection-warnings translator)]
+           (if (:warn-reflection options)
+             (binding [*out* *err*]
+               (doseq [warning (drop warned warnings)]
+                 (println warning))))
+           (if (. validator hasErrors)
+             (throw (invalid (map #(. ^Validator$ValidationError % getMessage) (. validator getErrors)))))
+           (recur (run-forms [form] options) (count warnings)))
+         value)))))
 
 
 (defn validate-and-execute-jest
@@ -37,16 +322,27 @@
   validates that the code is legitimate
   (scope checking, type checking),
   converts it to the Clojure execution
-  representation, and evaluates that code"
-  [jest-src-str]
-  (if (validate-source-code jest-src-str)
-    (do
-      (execute-jest jest-src-str))
-    (println "FUCK")))
+  representation, and evaluates that code.
+  Validation and translation happen in a single
+  walk of the parse tree, and every validation
+  error is printed if the code is invalid.
+  Takes the same options as compile-parse-tree
+  and run-forms, and:
+  :warn-reflection - Print every line of the program
+                     that calls Java by reflection"
+  ([jest-src-str] (validate-and-execute-jest jest-src-str {}))
+  ([jest-src-str options]
+   (if (= :interpret (:backend options))
+     (validate-and-interpret-jest jest-src-str)
+     (let [result (compile-jest jest-src-str options)]
+       (if (:warn-reflection options)
+         (print-warnings result))
+       (if (. result isValid)
+         (run-forms (. result getForms) options)
+         (print-errors result))))))
 
 
 (defn type-check-clojure [clj]
   "Type check the given clojure source code"
   (let [clj-form (read-string clj)]
     (t/check-form* clj-form)))
-
@@ -0,0 +1,175 @@
+(ns jest.runtime
+  "Functions that the Clojure forms of Jest programs
+  call when they run, for the constructs that don't
+  translate to a single call of a core function"
+  (:require [clojure.core.reducers :as r]))
+
+
+(defn iterator
+  "An iterator over the items of a collection, in
+  the order that seq gives them.  Clojure's collections
+  (and nil) are walked without making a sequence."
+  ^java.util.Iterator [coll]
+  (if (instance? Iterable coll)
+    (.iterator ^Iterable coll)
+    (.iterator ^Iterable (or (seq coll) []))))
+
+
+(def ^:private batch-size
+  "The number of items of a collection that isn't
+  a vector that parallel-map reads at a time: a
+  chunk of 512 for each core"
+  (* 512 (.availableProcessors (Runtime/getRuntime))))
+
+
+(defn- map-batches
+  [f items]
+  (persistent!
+   (reduce (fn [results batch]
+             (reduce conj! results (r/foldcat (r/map f (vec batch)))))
+           (transient [])
+           (partition-all batch-size items))))
+
+
+(defn parallel-map
+  "Apply f to the items of the given collections, as
+  map does, spread across the cores of the machine,
+  and return a vector of the results in order.
+
+  Reducers fold splits a vector into chunks of 512
+  items that a fork-join pool maps in parallel.  Any
+  other collection (a lazy sequence, say) is read a
+  batch of such chunks at a time, and each batch is
+  mapped before the next one is read, so only the
+  results are held in memory and not a copy of the
+  whole collection.  Like a for loop that isn't lazy,
+  it never returns for an infinite collection.
+  Collections of fewer items are mapped on the
+  calling thread.  f runs with the dynamic bindings
+  of the caller (such as *out*), as it may run on a
+  thread of the pool."
+  ([f coll]
+   (let [f (bound-fn* f)]
+     (if (vector? coll)
+       (into [] (r/foldcat (r/map f coll)))
+       (map-batches f coll))))
+  ([f coll & colls]
+   (let [f (bound-fn* f)]
+     (map-batches #(apply f %) (apply map vector coll colls)))))
+
+
+;; Transducers for the steps of a pipeline, which
+;; Clojure 1.6 doesn't have.  A transducer takes a
+;; reducing function and returns one that runs the
+;; step on each item before passing it on.
+
+(defn- ensure-reduced
+  [x]
+  (if (reduced? x) x (reduced x)))
+
+
+(defn mapping
+  [f]
+  (fn [rf]
+    (fn
+      ([acc] (rf acc))
+      ([acc x] (rf acc (f x))))))
+
+
+(defn filtering
+  [pred]
+  (fn [rf]
+    (fn
+      ([acc] (rf acc))
+      ([acc x] (if (pred x) (rf acc x) acc)))))
+
+
+(defn removing
+  [pred]
+  (filtering (complement pred)))
+
+
+(defn keeping
+  [f]
+  (fn [rf]
+    (fn
+      ([acc] (rf acc))
+      ([acc x] (let [v (f x)]
+                 (if (nil? v) acc (rf acc v)))))))
+
+
+(defn mapcatting
+  [f]
+  (fn [rf]
+    (fn
+      ([acc] (rf acc))
+      ;; An inner reduced stops the outer reduction as well
+      ([acc x] (reduce (fn [acc y]
+                         (let [result (rf acc y)]
+                           (if (reduced? result) (reduced result) result)))
+                       acc (f x))))))
+
+
+(defn taking
+  [n]
+  (fn [rf]
+    (let [left (java.util.concurrent.atomic.AtomicLong. n)]
+      (fn
+        ([acc] (rf acc))
+        ([acc x] (if (pos? (.get left))
+                   (let [result (rf acc x)]
+                     (if (pos? (.decrementAndGet left))
+                       result
+                       (ensure-reduced result)))
+                   (reduced acc)))))))
+
+
+(defn taking-while
+  [pred]
+  (fn [rf]
+    (fn
+      ([acc] (rf acc))
+      ([acc x] (if (pred x) (rf acc x) (reduced acc))))))
+
+
+(defn pipeline
+  "Run the items of a collection through the given
+  transducers, in order, and return the results as a
+  lazy sequence.  This is the value of a chain of
+  lazy sequence functions, such as
+  (take n (map f (filter pred coll))), computed in a
+  single pass: as the chain of sequences would, it
+  reads the collection a chunk at a time (or an item
+  at a time, if its sequence isn't chunked) and
+  produces the results of each chunk together, but
+  without a sequence between each step.  Like the
+  chain, it stops reading the collection once a step
+  (such as taking) has finished."
+  [coll & xforms]
+  (let [buffer (java.util.ArrayList.)
+        rf ((apply comp xforms) (fn
+                                  ([acc] acc)
+                                  ([acc x] (.add buffer x) acc)))
+        flush (fn [more]
+                (if (.isEmpty buffer)
+                  more
+                  (let [chunk (clojure.lang.ArrayChunk. (.toArray buffer))]
+                    (.clear buffer)
+                    (chunk-cons chunk more))))
+        step (fn step [s]
+               (lazy-seq
+                (loop [s (seq s)]
+                  (if (nil? s)
+                    (do (rf nil) (flush nil))
+                    (let [chunked (chunked-seq? s)
+                          result (if chunked
+                                   (.reduce ^clojure.lang.IChunk (chunk-first s) rf nil)
+                                   (rf nil (first s)))
+                          more (if chunked (chunk-rest s) (rest s))]
+                      (cond
+                        (reduced? result) (do (rf nil) (flush nil))
+                        ;; The results of an input chunk are produced
+                        ;; before the next chunk is read
+                        (.isEmpty buffer) (recur (seq more))
+                        :else (flush (step more))))))))]
+    (step coll)))
@@ -0,0 +1,164 @@
+(ns jest.server
+  (:require [clojure.java.io :as io]
+            [jest.parser :refer :all])
+  (:import (java.net InetAddress ServerSocket Socket)
+           (java.io BufferedInputStream BufferedOutputStream
+                    DataInputStream DataOutputStream InputStreamReader)
+           (clojure.lang LineNumberingPushbackReader)
+           (jest.client JestClient JestClient$FrameWriter)
+           (jest.compiler JestCompiler)
+           (jest.grammar JestParser$MethodCallContext JestParser$MethodCallChainContext)
+           (org.antlr.v4.runtime ParserRuleContext Token)
+           (org.antlr.v4.runtime.tree TerminalNode)))
+
+
+(def default-port 7888)
+
+
+(def warm-up-programs
+  "Bundled programs that are compiled when the server
+  starts, so that the parser's prediction caches are
+  filled before the first request arrives"
+  ["example1.jst" "example2.jst" "example3.jst" "example4.jst"
+   "pipeline.jst" "math.jst" "map.jst" "list.jst" "conditional.jst"])
+
+
+(defn warm-up
+  []
+  (. JestCompiler warmUp)
+  (doseq [program warm-up-programs]
+    (if-let [resource (io/resource program)]
+      (compile-jest (slurp resource)))))
+
+
+(defn run-in-fresh-namespace
+  "Call f with *ns* bound to a new namespace that refers
+  clojure.core, so that definitions made by one program
+  are never seen by another.  The namespace is removed
+  once f returns."
+  [f]
+  (let [ns (create-ns (gensym "jest.run"))]
+    (try
+      (binding [*ns* ns]
+        (refer 'clojure.core)
+        (f))
+      (finally
+        (remove-ns (ns-name ns))))))
+
+
+(defn- stopping-calls
+  "The tokens of the calls of a method named exit or
+  halt in a parse tree, which may be calls of System or
+  Runtime that would stop the server's JVM"
+  [tree]
+  (for [node (tree-seq #(instance? ParserRuleContext %)
+                       #(map (fn [i] (.getChild ^ParserRuleContext % (int i)))
+                             (range (.getChildCount ^ParserRuleContext %)))
+                       tree)
+        :when (and (instance? TerminalNode node)
+                   (or (instance? JestParser$MethodCallContext (.getParent ^TerminalNode node))
+                       (instance? JestParser$MethodCallChainContext (.getParent ^TerminalNode node)))
+                   (#{"exit" "halt"} (.getText ^TerminalNode node)))]
+    (.getSymbol ^TerminalNode node)))
+
+
+(defn- run-program
+  "Compile and run the program at the given path with
+  the server's run options (see validate-and-execute-jest),
+  returning its exit status.  A program that calls exit
+  or halt is refused, as it would stop the server."
+  [path options]
+  (let [tree (parse-source-code (slurp path))
+        stops (stopping-calls tree)]
+    (if (seq stops)
+      (do (doseq [^Token token stops]
+            (println (format "Error - Line %s: The Jest server can't run a program that calls %s"
+                             (.getLine token) (.getText token))))
+          1)
+      (let [result (compile-parse-tree tree options)]
+        (if (:warn-reflection options)
+          (print-warnings result))
+        (if (. result isValid)
+          (do (if (= :interpret (:backend options))
+                (interpret-parse-tree tree)
+                (run-forms (. result getForms) options))
+              0)
+          (do (print-errors result) 1))))))
+
+
+(defn- run-request
+  "Run the program of a request with the client's
+  arguments and stdin, and send its output and exit
+  status back to the client"
+  [^DataInputStream in ^DataOutputStream out options]
+  (let [path (.readUTF in)
+        args (doall (repeatedly (.readInt in) #(.readUTF in)))
+        stdout (new JestClient$FrameWriter out JestClient/STDOUT)
+        stderr (new JestClient$FrameWriter out JestClient/STDERR)
+        status (binding [*out* stdout
+                         *err* stderr
+                         *in* (new LineNumberingPushbackReader (new InputStreamReader in "UTF-8"))
+                         *command-line-args* args]
+                 (try
+                   (run-in-fresh-namespace #(run-program path options))
+                   (catch Throwable e
+                     (binding [*out* *err*]
+                       (println (str e)))
+                     1)
+                   (finally
+                     (flush))))]
+    (JestClient/writeExit out status)))
+
+
+(defn- reject
+  "Answer a request whose token is wrong, without
+  reading the rest of it"
+  [^DataOutputStream out]
+  (binding [*out* (new JestClient$FrameWriter out JestClient/STDERR)]
+    (println "Jest server: the request's token is not the server's token")
+    (flush))
+  (JestClient/writeExit out 2))
+
+
+(defn handle-connection
+  "Read a request from a JestClient and, if it holds
+  the server's token, run the requested program with the
+  client's arguments and stdin and the given run options,
+  and send its output and exit status back to the client"
+  [^Socket socket ^String token options]
+  (with-open [socket socket]
+    (let [in (new DataInputStream (new BufferedInputStream (.getInputStream socket)))
+          out (new DataOutputStream (new BufferedOutputStream (.getOutputStream socket)))]
+      (if (JestClient/isToken (.readUTF in) token)
+        (run-request in out options)
+        (reject out)))))
+
+
+(defn start-server
+  "Start a resident Jest server listening on the loopback
+  interface.  Any local user can connect to the port, so
+  the server writes a new token to a file that only its own
+  user can read (see JestClient/tokenFile), and only runs
+  the requests that send it.  Each connection is handled
+  on its own thread.  This function never returns.
+
+  Every program is run with the given run options (those
+  of validate-and-execute-jest, such as :backend), as a
+  request only holds the program and its arguments.  The
+  programs share the server's JVM, so:
+   - A program that calls exit or halt is refused, but
+     one could still stop the JVM by other means (such as
+     eval), or change its global state
+   - Each program's namespace is removed when it returns,
+     so a future or agent it started that is still running
+     can't find the namespace by name (its Vars still work)"
+  ([port] (start-server port {}))
+  ([port options]
+   (warm-up)
+   (let [server (new ServerSocket port 50 (InetAddress/getLoopbackAddress))
+         token (JestClient/createToken (.getLocalPort server))]
+     (println "Jest server listening on port" (.getLocalPort server))
+     (loop []
+       (let [socket (.accept server)]
+         (future (handle-connection socket token options)))
+       (recur)))))
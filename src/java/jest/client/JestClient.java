@@ -0,0 +1,231 @@
+package jest.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+
+/**
+ * A thin client for a resident Jest server (jest --server).
+ * It does not load Clojure or the Jest compiler, so it starts
+ * as quickly as the JVM itself.
+ *
+ * The client sends the server's token, the absolute path of
+ * a script, its arguments, and then its own stdin.  The token
+ * is a secret that the server writes, readable by its own user
+ * only, to a file named after its port in ~/.jest, so only that
+ * user's clients can have the server run a script.  The server runs the
+ * script and answers with a stream of frames, each a type
+ * byte followed by a length and that many bytes: stdout and
+ * stderr text frames, and a final frame holding the exit status.
+ */
+public class JestClient {
+
+    public static final byte STDOUT = 'o';
+
+    public static final byte STDERR = 'e';
+
+    public static final byte EXIT = 'x';
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+    /**
+     * A Writer that sends everything written
+     * to it as frames of the given type
+     */
+    public static class FrameWriter extends Writer {
+
+        private final DataOutputStream out;
+
+        private final byte type;
+
+        public FrameWriter(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            byte[] bytes = new String(buffer, offset, length).getBytes(UTF8);
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+
+    /**
+     * The file that holds the token of the
+     * server listening on the given port
+     */
+    public static File tokenFile(int port) {
+        return new File(new File(System.getProperty("user.home"), ".jest"), "server-" + port + ".token");
+    }
+
+    /**
+     * Create a new random token for the server on the given
+     * port and write it to its token file, which only the
+     * current user may read
+     */
+    public static String createToken(int port) throws IOException {
+        String token = new BigInteger(256, new SecureRandom()).toString(16);
+
+        File file = tokenFile(port);
+        file.getParentFile().mkdirs();
+        Path path = file.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+            Files.createFile(path);
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+        }
+        Files.write(path, token.getBytes(UTF8));
+        file.deleteOnExit();
+        return token;
+    }
+
+    public static String readToken(int port) throws IOException {
+        return new String(Files.readAllBytes(tokenFile(port).toPath()), UTF8).trim();
+    }
+
+    /**
+     * Compare a token sent by a client with the server's
+     * token, in time that doesn't depend on where they differ
+     */
+    public static boolean isToken(String sent, String token) {
+        return MessageDigest.isEqual(sent.getBytes(UTF8), token.getBytes(UTF8));
+    }
+
+
+    public static void writeExit(DataOutputStream out, int status) throws IOException {
+        synchronized (out) {
+            out.writeByte(EXIT);
+            out.writeInt(status);
+            out.flush();
+        }
+    }
+
+
+    /**
+     * Read frames from the server until the exit frame,
+     * writing their text to stdout and stderr, and
+     * return the exit status
+     */
+    static int readFrames(DataInputStream in, PrintStream stdout, PrintStream stderr) throws IOException {
+        while (true) {
+            byte type = in.readByte();
+            int length = in.readInt();
+
+            if (type == EXIT) {
+                stdout.flush();
+                stderr.flush();
+                return length;
+            }
+
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+
+            if (type == STDERR) {
+                stderr.write(bytes);
+                stderr.flush();
+            } else {
+                stdout.write(bytes);
+                stdout.flush();
+            }
+        }
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: JestClient port /path/to/source/file.jst [args]");
+            System.exit(2);
+        }
+
+        int port = Integer.parseInt(args[0]);
+        String token;
+        try {
+            token = readToken(port);
+        } catch (IOException e) {
+            System.err.println("Could not read the token of the Jest server on port " + port + ": " + e);
+            System.exit(2);
+            return;
+        }
+
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        out.writeUTF(token);
+        out.writeUTF(new File(args[1]).getAbsolutePath());
+        out.writeInt(args.length - 2);
+        for (int i = 2; i < args.length; ++i) {
+            out.writeUTF(args[i]);
+        }
+        out.flush();
+
+        // Forward stdin to the server until it runs out.
+        // The script may finish without reading all of it,
+        // so this thread must not keep the client alive.
+        Thread stdin = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InputStream in = System.in;
+                    OutputStream socketOut = socket.getOutputStream();
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        socketOut.write(buffer, 0, read);
+                        socketOut.flush();
+                    }
+                    socket.shutdownOutput();
+                } catch (IOException e) {
+                    // The server has closed the connection
+                }
+            }
+        });
+        stdin.setDaemon(true);
+        stdin.start();
+
+        int status = readFrames(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                                System.out, System.err);
+        socket.close();
+        System.exit(status);
+    }
+}
@@ -0,0 +1,150 @@
+package jest.compiler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+
+
+/**
+ * The results of checking many Jest source files at
+ * once: the errors found in each file, how long each
+ * file took to parse and validate, and the totals.
+ */
+public class BatchReport {
+
+    public static class FileResult {
+
+        private final File file;
+
+        private final List<String> errors = new ArrayList<String>();
+
+        private long parseNanos = 0;
+
+        private long validateNanos = 0;
+
+        public FileResult(File file) {
+            this.file = file;
+        }
+
+        void addError(String error) {
+            errors.add(error);
+        }
+
+        void setTimes(long parseNanos, long validateNanos) {
+            this.parseNanos = parseNanos;
+            this.validateNanos = validateNanos;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public List<String> getErrors() {
+            return Collections.unmodifiableList(errors);
+        }
+
+        public boolean isValid() {
+            return errors.isEmpty();
+        }
+
+        public long getParseNanos() {
+            return parseNanos;
+        }
+
+        public long getValidateNanos() {
+            return validateNanos;
+        }
+    }
+
+
+    /**
+     * Records syntax errors in a FileResult
+     * instead of printing them
+     */
+    static class ErrorCollector extends BaseErrorListener {
+
+        private final FileResult result;
+
+        ErrorCollector(FileResult result) {
+            this.result = result;
+        }
+
+        @Override
+        public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol,
+                                int line, int charPositionInLine,
+                                String msg, RecognitionException e) {
+            result.addError(String.format("Error - Line %s: Syntax error: %s", line, msg));
+        }
+    }
+
+
+    private final List<FileResult> results;
+
+    private final long wallNanos;
+
+    public BatchReport(List<FileResult> results, long wallNanos) {
+        this.results = Collections.unmodifiableList(results);
+        this.wallNanos = wallNanos;
+    }
+
+    public List<FileResult> getResults() {
+        return results;
+    }
+
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    public int getInvalidCount() {
+        int count = 0;
+        for (FileResult result: results) {
+            if (!result.isValid()) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    public boolean isValid() {
+        return getInvalidCount() == 0;
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f ms", nanos / 1e6);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+
+        long parseNanos = 0;
+        long validateNanos = 0;
+        int errors = 0;
+
+        for (FileResult result: results) {
+            report.append(String.format("%s: %s (parse %s, validate %s)%n",
+                                        result.getFile().getPath(),
+                                        result.isValid() ? "OK" : result.getErrors().size() + " error(s)",
+                                        millis(result.getParseNanos()),
+                                        millis(result.getValidateNanos())));
+            for (String error: result.getErrors()) {
+                report.append("    ").append(error).append(String.format("%n"));
+            }
+
+            parseNanos += result.getParseNanos();
+            validateNanos += result.getValidateNanos();
+            errors += result.getErrors().size();
+        }
+
+        report.append(String.format("Checked %s files in %s (parse %s, validate %s): %s valid, %s invalid, %s error(s)%n",
+                                    results.size(), millis(wallNanos), millis(parseNanos), millis(validateNanos),
+                                    results.size() - getInvalidCount(), getInvalidCount(), errors));
+
+        return report.toString();
+    }
+}
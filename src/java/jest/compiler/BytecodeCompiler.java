@@ -0,0 +1,2139 @@
+package jest.compiler;
+
+import clojure.asm.ClassWriter;
+import clojure.asm.Label;
+import clojure.asm.Opcodes;
+import clojure.asm.Type;
+import clojure.asm.commons.GeneratorAdapter;
+import clojure.asm.commons.Method;
+
+import clojure.lang.AFunction;
+import clojure.lang.IFn;
+import clojure.lang.IMeta;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentVector;
+import clojure.lang.ISeq;
+import clojure.lang.Keyword;
+import clojure.lang.Namespace;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+import clojure.lang.Reflector;
+import clojure.lang.Symbol;
+import clojure.lang.Util;
+import clojure.lang.Var;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Compiles the Clojure forms generated by JestToClojureTranslator
+ * directly to JVM bytecode, without running the Clojure compiler.
+ *
+ * A whole program becomes a single class, with one static method
+ * per top-level statement, plus a class for each function it
+ * creates (Clojure's eval creates at least one class per form).
+ * The generated code uses Clojure's persistent collections and
+ * calls clojure.core functions through their Vars, so it behaves
+ * the same as evaluating the forms.
+ *
+ * The translator's output is a small language: constants, symbols,
+ * vectors, maps, def, if, do, let, loop, recur, fn, defn, case,
+ * java interop (., new and import), function calls and a few
+ * clojure.core macros, which are expanded.  Those are compiled
+ * here.  Java calls whose method is known from the type hints
+ * of the translator are called directly, and the rest through
+ * clojure.lang.Reflector.  A statement using anything else (a
+ * record definition, which defines a class, or a special form
+ * the translator doesn't generate) is passed to Clojure's eval
+ * when it is reached, so every program can run.
+ */
+public class BytecodeCompiler {
+
+    private static final Type OBJECT_TYPE = Type.getType(Object.class);
+    private static final Type OBJECT_ARRAY_TYPE = Type.getType(Object[].class);
+    private static final Type BOOLEAN_TYPE = Type.getType(Boolean.class);
+    private static final Type CLASS_TYPE = Type.getType(Class.class);
+    private static final Type NAMESPACE_TYPE = Type.getType(Namespace.class);
+    private static final Type SYMBOL_TYPE = Type.getType(Symbol.class);
+    private static final Type VAR_TYPE = Type.getType(Var.class);
+    private static final Type IFN_TYPE = Type.getType(IFn.class);
+    private static final Type FN_TYPE = Type.getType(AFunction.class);
+    private static final Type RT_TYPE = Type.getType(RT.class);
+    private static final Type UTIL_TYPE = Type.getType(Util.class);
+    private static final Type NUMBERS_TYPE = Type.getType(clojure.lang.Numbers.class);
+    private static final Type REFLECTOR_TYPE = Type.getType(Reflector.class);
+    private static final Type COMPILER_TYPE = Type.getType(clojure.lang.Compiler.class);
+    private static final Type BYTECODE_COMPILER_TYPE = Type.getType(BytecodeCompiler.class);
+
+    private static final Method VAR_GET = Method.getMethod("Object get()");
+    private static final Method VAR_BIND_ROOT = Method.getMethod("void bindRoot(Object)");
+    private static final Method BOOLEAN_CAST = Method.getMethod("boolean booleanCast(Object)");
+    private static final Method BOX_BOOLEAN = Method.getMethod("Object box(boolean)");
+    private static final Method BOX_LONG = Method.getMethod("Number num(long)");
+    private static final Method BOX_DOUBLE = Method.getMethod("Number num(double)");
+    private static final Method VECTOR = Method.getMethod("clojure.lang.IPersistentVector vector(Object[])");
+    private static final Method MAP = Method.getMethod("clojure.lang.IPersistentMap map(Object[])");
+    private static final Method GET = Method.getMethod("Object get(Object,Object)");
+    private static final Method EVAL = Method.getMethod("Object eval(Object)");
+    private static final Method IMPORT_CLASS = Method.getMethod("Class importClass(Class)");
+    private static final Method FN_CONSTRUCTOR = Method.getMethod("void <init>()");
+    private static final Method INTERN_VAR
+        = Method.getMethod("clojure.lang.Var internVar(clojure.lang.Namespace,clojure.lang.Symbol)");
+    private static final Method LOOKUP_VAR
+        = Method.getMethod("clojure.lang.Var lookupVar(clojure.lang.Namespace,clojure.lang.Symbol)");
+
+    private static final Method INVOKE_INSTANCE_METHOD
+        = Method.getMethod("Object invokeInstanceMethod(Object,String,Object[])");
+    private static final Method INVOKE_STATIC_METHOD
+        = Method.getMethod("Object invokeStaticMethod(Class,String,Object[])");
+    private static final Method INVOKE_NO_ARG_MEMBER
+        = Method.getMethod("Object invokeNoArgInstanceMember(Object,String)");
+    private static final Method GET_INSTANCE_FIELD = Method.getMethod("Object getInstanceField(Object,String)");
+    private static final Method INVOKE_CONSTRUCTOR = Method.getMethod("Object invokeConstructor(Class,Object[])");
+
+    private static final int MAX_INVOKE_ARGS = 20;
+
+    // The number of statements called by each of the
+    // methods that run the program, which keeps each
+    // method well below the JVM's size limit
+    private static final int STATEMENTS_PER_CHUNK = 1000;
+
+    private static final String CONSTANTS_FIELD = "k";
+
+    // The fields of a function class that hold the
+    // locals it closes over are c0, c1, etc.
+    private static final String CLOSED_FIELD = "c";
+
+    private static final AtomicLong programCount = new AtomicLong();
+
+    private static final Symbol DEF = Symbol.intern("def");
+    private static final Symbol IF = Symbol.intern("if");
+    private static final Symbol DO = Symbol.intern("do");
+    private static final Symbol QUOTE = Symbol.intern("quote");
+    private static final Symbol LET = Symbol.intern("clojure.core", "let");
+    private static final Symbol LET_STAR = Symbol.intern("let*");
+    private static final Symbol LOOP = Symbol.intern("clojure.core", "loop");
+    private static final Symbol LOOP_STAR = Symbol.intern("loop*");
+    private static final Symbol RECUR = Symbol.intern("recur");
+    private static final Symbol FN = Symbol.intern("clojure.core", "fn");
+    private static final Symbol FN_STAR = Symbol.intern("fn*");
+    private static final Symbol COND = Symbol.intern("clojure.core", "cond");
+    private static final Symbol CASE = Symbol.intern("clojure.core", "case");
+    private static final Symbol DEFN = Symbol.intern("clojure.core", "defn");
+    private static final Symbol DEFRECORD = Symbol.intern("clojure.core", "defrecord");
+    private static final Symbol DOT = Symbol.intern(".");
+    private static final Symbol NEW = Symbol.intern("new");
+    private static final Symbol IMPORT = Symbol.intern("clojure.core", "import*");
+    private static final Symbol AMPERSAND = Symbol.intern("&");
+
+    private static final Keyword NS_KEY = Keyword.intern("ns");
+    private static final Keyword NAME_KEY = Keyword.intern("name");
+    private static final Keyword TAG_KEY = Keyword.intern("tag");
+
+    // Two argument clojure.core functions that are
+    // called as static methods of clojure.lang, just
+    // as the Clojure compiler inlines them
+    private static final Map<Var, StaticMethod> intrinsics = new HashMap<Var, StaticMethod>();
+
+    static {
+        intrinsics.put(RT.var("clojure.core", "+"), new StaticMethod(NUMBERS_TYPE, "Number add(Object,Object)", false));
+        intrinsics.put(RT.var("clojure.core", "-"), new StaticMethod(NUMBERS_TYPE, "Number minus(Object,Object)", false));
+        intrinsics.put(RT.var("clojure.core", "*"), new StaticMethod(NUMBERS_TYPE, "Number multiply(Object,Object)", false));
+        intrinsics.put(RT.var("clojure.core", "/"), new StaticMethod(NUMBERS_TYPE, "Number divide(Object,Object)", false));
+        intrinsics.put(RT.var("clojure.core", "<"), new StaticMethod(NUMBERS_TYPE, "boolean lt(Object,Object)", true));
+        intrinsics.put(RT.var("clojure.core", ">"), new StaticMethod(NUMBERS_TYPE, "boolean gt(Object,Object)", true));
+        intrinsics.put(RT.var("clojure.core", "<="), new StaticMethod(NUMBERS_TYPE, "boolean lte(Object,Object)", true));
+        intrinsics.put(RT.var("clojure.core", ">="), new StaticMethod(NUMBERS_TYPE, "boolean gte(Object,Object)", true));
+        intrinsics.put(RT.var("clojure.core", "="), new StaticMethod(UTIL_TYPE, "boolean equiv(Object,Object)", true));
+        intrinsics.put(RT.var("clojure.core", "get"), new StaticMethod(RT_TYPE, "Object get(Object,Object)", false));
+    }
+
+    // The primitive classes named by type hints
+    private static final Map<String, Class<?>> primitives = new HashMap<String, Class<?>>();
+
+    static {
+        for (Class<?> c: new Class<?>[] {long.class, int.class, short.class, byte.class, double.class,
+                                         float.class, boolean.class, char.class}) {
+            primitives.put(c.getName(), c);
+        }
+    }
+
+    // The classes of arguments that a parameter of an
+    // integral or floating point type accepts, as the
+    // Clojure compiler matches them
+    private static final Set<Class<?>> integralClasses = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+        long.class, int.class, short.class, byte.class, Long.class, Integer.class, Short.class, Byte.class));
+
+    private static final Set<Class<?>> floatingClasses = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+        double.class, float.class, Double.class, Float.class));
+
+
+    /**
+     * Thrown while analyzing a form that this compiler
+     * does not support.  The statement containing the
+     * form is then evaluated by Clojure instead.
+     */
+    private static class Unsupported extends RuntimeException {
+        Unsupported(Object form) {
+            super(String.valueOf(form), null, false, false);
+        }
+    }
+
+
+    private static class StaticMethod {
+        final Type owner;
+        final Method method;
+        final boolean returnsBoolean;
+
+        StaticMethod(Type owner, String method, boolean returnsBoolean) {
+            this.owner = owner;
+            this.method = Method.getMethod(method);
+            this.returnsBoolean = returnsBoolean;
+        }
+    }
+
+
+    /**
+     * A compiled program, ready to run
+     */
+    public static class Program {
+
+        private final java.lang.reflect.Method run;
+
+        private final int compiledCount;
+
+        private final int evaluatedCount;
+
+        Program(java.lang.reflect.Method run, int compiledCount, int evaluatedCount) {
+            this.run = run;
+            this.compiledCount = compiledCount;
+            this.evaluatedCount = evaluatedCount;
+        }
+
+        /**
+         * Run every statement of the program in order
+         * @return The value of the last statement
+         */
+        public Object run() {
+            try {
+                return run.invoke(null);
+            } catch (InvocationTargetException e) {
+                throw Util.sneakyThrow(e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return The number of statements compiled to bytecode
+         */
+        public int getCompiledCount() {
+            return compiledCount;
+        }
+
+        /**
+         * @return The number of statements passed to Clojure's eval
+         */
+        public int getEvaluatedCount() {
+            return evaluatedCount;
+        }
+    }
+
+
+    /**
+     * Each program is loaded by its own class loader,
+     * so its classes can be unloaded once the program
+     * is no longer referenced
+     */
+    private static class ProgramLoader extends ClassLoader {
+        ProgramLoader() {
+            super(RT.baseLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+
+    private final Namespace ns;
+
+    private final List<Object> constants = new ArrayList<Object>();
+
+    private final Map<Object, Integer> constantIndices = new HashMap<Object, Integer>();
+
+    // Names defined by statements compiled so far, which
+    // later statements resolve to Vars in this namespace
+    private final Set<Symbol> defined = new HashSet<Symbol>();
+
+    // The constants that hold the Vars of the names
+    // defined by the program, which are null until
+    // the Var is interned or first looked up
+    private final Map<Symbol, Integer> varSlots = new HashMap<Symbol, Integer>();
+
+    // Records defined by the program, whose classes
+    // don't exist (or are stale) until it runs
+    private final Set<Symbol> records = new HashSet<Symbol>();
+
+    // Classes imported by statements compiled so far
+    private final Map<Symbol, Class<?>> imported = new HashMap<Symbol, Class<?>>();
+
+    // The classes of the program's functions, by name
+    private final Map<String, byte[]> fnClasses = new LinkedHashMap<String, byte[]>();
+
+    private int fnCount = 0;
+
+    private final Type programType;
+
+
+    private BytecodeCompiler(Namespace ns) {
+        this.ns = ns;
+        this.programType = Type.getObjectType("jest/compiled/Program" + programCount.incrementAndGet());
+    }
+
+
+    /**
+     * Compile a list of forms in the current namespace (*ns*)
+     * @param forms The forms generated by JestToClojureTranslator
+     * @return
+     */
+    public static Program compile(List<?> forms) {
+        return compile(forms, (Namespace) RT.CURRENT_NS.deref());
+    }
+
+
+    public static Program compile(List<?> forms, Namespace ns) {
+        // Macros are expanded in the program's namespace
+        Var.pushThreadBindings(RT.map(RT.CURRENT_NS, ns));
+        try {
+            return new BytecodeCompiler(ns).compileProgram(forms);
+        } finally {
+            Var.popThreadBindings();
+        }
+    }
+
+
+    private Program compileProgram(List<?> forms) {
+
+        List<Expr> statements = new ArrayList<Expr>();
+        int evaluated = 0;
+
+        for (Object form: forms) {
+            Expr statement;
+            try {
+                statement = analyze(form, new Locals(new HashMap<Symbol, LocalExpr>(), null, null));
+            } catch (Unsupported e) {
+                statement = new EvalExpr(constant(form));
+                evaluated += 1;
+            }
+            statements.add(statement);
+            collectDefinitions(form);
+        }
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL + Opcodes.ACC_SUPER,
+                 programType.getInternalName(), null, OBJECT_TYPE.getInternalName(), null);
+        cw.visitField(Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC, CONSTANTS_FIELD,
+                      OBJECT_ARRAY_TYPE.getDescriptor(), null, null).visitEnd();
+
+        for (int i = 0; i < statements.size(); ++i) {
+            GeneratorAdapter gen = beginMethod(cw, "s" + i);
+            statements.get(i).emit(gen);
+            gen.returnValue();
+            gen.endMethod();
+        }
+
+        int chunks = Math.max(1, (statements.size() + STATEMENTS_PER_CHUNK - 1) / STATEMENTS_PER_CHUNK);
+        for (int chunk = 0; chunk < chunks; ++chunk) {
+            GeneratorAdapter gen = beginMethod(cw, chunk == 0 ? "run" : "run" + chunk);
+            int start = chunk * STATEMENTS_PER_CHUNK;
+            int end = Math.min(statements.size(), start + STATEMENTS_PER_CHUNK);
+            boolean last = chunk + 1 == chunks;
+            // The last statement of the program is not
+            // popped, as its value is the program's value
+            for (int i = start; i < end; ++i) {
+                gen.invokeStatic(programType, Method.getMethod("Object s" + i + "()"));
+                if (!last || i + 1 < end) {
+                    gen.pop();
+                }
+            }
+            if (!last) {
+                gen.invokeStatic(programType, Method.getMethod("Object run" + (chunk + 1) + "()"));
+            } else if (end == start) {
+                gen.visitInsn(Opcodes.ACONST_NULL);
+            }
+            gen.returnValue();
+            gen.endMethod();
+        }
+
+        cw.visitEnd();
+
+        try {
+            ProgramLoader loader = new ProgramLoader();
+            for (Map.Entry<String, byte[]> fnClass: fnClasses.entrySet()) {
+                loader.define(fnClass.getKey(), fnClass.getValue());
+            }
+            Class<?> programClass = loader.define(programType.getClassName(), cw.toByteArray());
+            programClass.getField(CONSTANTS_FIELD).set(null, constants.toArray());
+            return new Program(programClass.getMethod("run"),
+                               statements.size() - evaluated, evaluated);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private static GeneratorAdapter beginMethod(ClassWriter cw, String name) {
+        GeneratorAdapter gen = new GeneratorAdapter(Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC,
+                                                    Method.getMethod("Object " + name + "()"),
+                                                    null, null, cw);
+        gen.visitCode();
+        return gen;
+    }
+
+
+    private static Method invokeMethod(int arity) {
+        Type[] argTypes = new Type[arity];
+        Arrays.fill(argTypes, OBJECT_TYPE);
+        return new Method("invoke", OBJECT_TYPE, argTypes);
+    }
+
+
+    /**
+     * Record the names that a top-level form defines,
+     * including forms that are evaluated by Clojure
+     */
+    private void collectDefinitions(Object form) {
+        if (!(form instanceof ISeq)) {
+            return;
+        }
+
+        ISeq seq = (ISeq) form;
+        Object head = seq.first();
+        Object name = RT.second(seq);
+
+        if ((DEF.equals(head) || DEFN.equals(head)) && name instanceof Symbol) {
+            defined.add((Symbol) name);
+        } else if (DEFRECORD.equals(head) && name instanceof Symbol) {
+            records.add((Symbol) name);
+            defined.add(Symbol.intern("->" + ((Symbol) name).getName()));
+            defined.add(Symbol.intern("map->" + ((Symbol) name).getName()));
+        } else if (DO.equals(head) || LET.equals(head)) {
+            for (ISeq s = seq.next(); s != null; s = s.next()) {
+                collectDefinitions(s.first());
+            }
+        }
+    }
+
+
+    private int constant(Object value) {
+        Integer index = constantIndices.get(value);
+        // Equal values of different classes (1 and 1.0 are
+        // not equal, but 1 and 1N are) must not be merged
+        if (index == null || constants.get(index).getClass() != value.getClass()) {
+            index = constants.size();
+            constants.add(value);
+            constantIndices.put(value, index);
+        }
+        return index;
+    }
+
+
+    private static boolean isConstant(Object form) {
+        if (form instanceof Symbol || form instanceof ISeq) {
+            return false;
+        }
+        if (form instanceof IPersistentCollection) {
+            for (ISeq s = RT.seq(form); s != null; s = s.next()) {
+                if (!isConstant(s.first())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * The value of a constant form, as the Clojure compiler
+     * makes it.  A map of constants is made into a hash map,
+     * which is then loaded as an array map if it is small, so
+     * its entries are in the order of the hash map rather than
+     * the order they were written in.
+     */
+    private static Object literal(Object form) {
+        if (form instanceof IMeta && ((IMeta) form).meta() != null) {
+            return form;
+        }
+
+        if (form instanceof IPersistentMap) {
+            IPersistentMap map = PersistentHashMap.EMPTY;
+            for (ISeq s = RT.seq(form); s != null; s = s.next()) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) s.first();
+                map = map.assoc(literal(entry.getKey()), literal(entry.getValue()));
+            }
+            List<Object> keyvals = new ArrayList<Object>();
+            for (ISeq s = RT.seq(map); s != null; s = s.next()) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) s.first();
+                keyvals.add(entry.getKey());
+                keyvals.add(entry.getValue());
+            }
+            return RT.map(keyvals.toArray());
+        }
+
+        if (form instanceof IPersistentVector) {
+            IPersistentVector vector = PersistentVector.EMPTY;
+            for (ISeq s = RT.seq(form); s != null; s = s.next()) {
+                vector = vector.cons(literal(s.first()));
+            }
+            return vector;
+        }
+
+        return form;
+    }
+
+
+    private Var resolveVar(Symbol sym) {
+        if (sym.getNamespace() != null) {
+            try {
+                return Var.find(sym);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        if (defined.contains(sym)) {
+            return null;
+        }
+
+        Object mapping = ns.getMapping(sym);
+        return mapping instanceof Var ? (Var) mapping : null;
+    }
+
+
+    /**
+     * The constant that holds the Var of a name defined by
+     * the program.  As with Clojure's eval, which compiles and
+     * runs one statement at a time, the Var is only interned
+     * when the statement that defines it runs (see DefExpr).
+     * Code that runs before that, such as a function called
+     * by an earlier statement, looks it up (see DefinedVarExpr).
+     */
+    private int varSlot(Symbol sym) {
+        if (sym.getNamespace() != null) {
+            throw new Unsupported(sym);
+        }
+        Object mapping = ns.getMapping(sym);
+        if (mapping instanceof Var && ((Var) mapping).ns != ns && ((Var) mapping).ns != RT.CLOJURE_NS) {
+            // The name refers to a Var of another namespace,
+            // which Clojure reports when it evaluates the def
+            throw new Unsupported(sym);
+        }
+
+        Integer slot = varSlots.get(sym);
+        if (slot == null) {
+            slot = constants.size();
+            constants.add(null);
+            varSlots.put(sym, slot);
+        }
+        return slot;
+    }
+
+
+    /**
+     * Intern the Var of a name defined by a compiled program,
+     * when the statement that defines it runs
+     */
+    public static Var internVar(Namespace ns, Symbol sym) {
+        Var var = Var.intern(ns, sym);
+        if (var.meta() == null || RT.get(var.meta(), NAME_KEY) == null) {
+            var.setMeta(RT.map(NS_KEY, ns, NAME_KEY, sym));
+        }
+        return var;
+    }
+
+
+    /**
+     * Find the Var of a name defined by a compiled program,
+     * when code that uses it first runs.  Clojure's eval
+     * reports the same error when it compiles a use of a
+     * name that hasn't been defined yet.
+     */
+    public static Var lookupVar(Namespace ns, Symbol sym) {
+        Var var = ns.findInternedVar(sym);
+        if (var == null) {
+            throw new RuntimeException("Unable to resolve symbol: " + sym + " in this context");
+        }
+        return var;
+    }
+
+
+    /**
+     * The class that a symbol names, or null.  A record of
+     * the program has no class until the program runs.
+     */
+    private Class<?> resolveClass(Symbol sym) {
+        if (sym.getNamespace() != null || records.contains(sym)) {
+            return null;
+        }
+
+        Class<?> imports = imported.get(sym);
+        if (imports != null) {
+            return imports;
+        }
+
+        Object mapping = ns.getMapping(sym);
+        if (mapping instanceof Class) {
+            return (Class<?>) mapping;
+        }
+
+        if (sym.getName().indexOf('.') > 0) {
+            try {
+                return Class.forName(sym.getName(), false, RT.baseLoader());
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * The class of a type hint, which may
+     * name a primitive type, or null
+     */
+    private Class<?> tagClass(Object tag) {
+        if (tag instanceof Class) {
+            return (Class<?>) tag;
+        } else if (tag instanceof Symbol) {
+            Class<?> primitive = primitives.get(((Symbol) tag).getName());
+            return primitive != null && ((Symbol) tag).getNamespace() == null
+                ? primitive : resolveClass((Symbol) tag);
+        } else if (tag instanceof String) {
+            return tagClass(Symbol.intern((String) tag));
+        }
+        return null;
+    }
+
+
+    private static Object tag(Object form) {
+        return form instanceof IMeta ? RT.get(((IMeta) form).meta(), TAG_KEY) : null;
+    }
+
+
+    /**
+     * The class of the value of a form, as far as it is
+     * known from its type hint (or the hint of the local
+     * it names) or its value if it is a literal, or null
+     */
+    private Class<?> formClass(Object form, Locals locals) {
+        Object tag = tag(form);
+        if (tag == null && form instanceof Symbol) {
+            LocalExpr local = locals.get(form);
+            tag = local != null ? local.tag : null;
+        }
+        if (tag != null) {
+            return tagClass(tag);
+        }
+
+        if (form instanceof String || form instanceof Number || form instanceof Keyword
+            || form instanceof Boolean || form instanceof Character) {
+            return form.getClass();
+        }
+        if (form instanceof ISeq && NEW.equals(RT.first(form)) && RT.second(form) instanceof Symbol) {
+            return resolveClass((Symbol) RT.second(form));
+        }
+        return null;
+    }
+
+
+    private List<Class<?>> formClasses(ISeq forms, Locals locals) {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        for (ISeq s = forms; s != null; s = s.next()) {
+            classes.add(formClass(s.first(), locals));
+        }
+        return classes;
+    }
+
+
+    /**
+     * Whether an argument of the given class (or an
+     * unknown class, if it is null) can be passed
+     * to a parameter of the given class
+     */
+    private static boolean accepts(Class<?> param, Class<?> arg) {
+        if (arg == null || param == arg || param.isAssignableFrom(arg)) {
+            return true;
+        }
+        if (param == long.class || param == int.class || param == short.class || param == byte.class) {
+            return integralClasses.contains(arg);
+        }
+        if (param == double.class || param == float.class) {
+            return floatingClasses.contains(arg);
+        }
+        if (param == boolean.class) {
+            return arg == Boolean.class;
+        }
+        if (param == char.class) {
+            return arg == Character.class;
+        }
+        return false;
+    }
+
+
+    private static boolean acceptsAll(Class<?>[] params, List<Class<?>> args) {
+        if (params.length != args.size()) {
+            return false;
+        }
+        for (int i = 0; i < params.length; ++i) {
+            if (!accepts(params[i], args.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * The public method of a class with the given name that
+     * takes the given arguments, or null if there is none or
+     * several overloads match them (which is then called by
+     * reflection, as the Clojure compiler calls it)
+     */
+    private static java.lang.reflect.Method findMethod(Class<?> c, String name,
+                                                       List<Class<?>> args, boolean isStatic) {
+        java.lang.reflect.Method found = null;
+        for (java.lang.reflect.Method method: c.getMethods()) {
+            if (!method.getName().equals(name) || Modifier.isStatic(method.getModifiers()) != isStatic
+                || !acceptsAll(method.getParameterTypes(), args)) {
+                continue;
+            }
+            if (found == null) {
+                found = method;
+            } else if (Arrays.equals(found.getParameterTypes(), method.getParameterTypes())) {
+                // The same method, declared again with
+                // a more specific return type
+                if (found.getReturnType().isAssignableFrom(method.getReturnType())) {
+                    found = method;
+                }
+            } else {
+                return null;
+            }
+        }
+        // A method declared by a class that isn't
+        // public can't be called directly
+        return found != null && Modifier.isPublic(found.getDeclaringClass().getModifiers()) ? found : null;
+    }
+
+
+    private static Constructor<?> findConstructor(Class<?> c, List<Class<?>> args) {
+        Constructor<?> found = null;
+        for (Constructor<?> constructor: c.getConstructors()) {
+            if (acceptsAll(constructor.getParameterTypes(), args)) {
+                if (found != null) {
+                    return null;
+                }
+                found = constructor;
+            }
+        }
+        return found;
+    }
+
+
+    private static Field findField(Class<?> c, String name, boolean isStatic) {
+        try {
+            Field field = c.getField(name);
+            return Modifier.isStatic(field.getModifiers()) == isStatic
+                && Modifier.isPublic(field.getDeclaringClass().getModifiers()) ? field : null;
+        } catch (NoSuchFieldException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Expand a macro, or Clojure's shorthand for java
+     * interop ((.method obj), (Class/method) and (Class.)),
+     * returning the form itself if it is neither
+     */
+    private Object macroexpand(ISeq form) {
+        try {
+            return clojure.lang.Compiler.macroexpand1(form);
+        } catch (Exception e) {
+            // Clojure reports the error when
+            // it evaluates the statement
+            throw new Unsupported(form);
+        }
+    }
+
+
+    /**
+     * The locals in scope of a form being analyzed
+     */
+    private class Locals {
+        final Map<Symbol, LocalExpr> names;
+
+        // The function whose body the form is
+        // in, or null in a top-level statement
+        final FnExpr fn;
+
+        // The loop or function that a recur jumps to,
+        // or null where the form isn't in tail position
+        final Recur recur;
+
+        Locals(Map<Symbol, LocalExpr> names, FnExpr fn, Recur recur) {
+            this.names = names;
+            this.fn = fn;
+            this.recur = recur;
+        }
+
+        /**
+         * The local of the given name, or null.  A local of
+         * the scope that a function was created in is closed
+         * over by the function.
+         */
+        LocalExpr get(Object name) {
+            LocalExpr local = names.get(name);
+            if (local == null && fn != null && name instanceof Symbol) {
+                local = fn.close((Symbol) name);
+            }
+            return local;
+        }
+
+        Locals with(Map<Symbol, LocalExpr> names, Recur recur) {
+            return new Locals(names, fn, recur);
+        }
+
+        Locals notTail() {
+            return recur == null ? this : with(names, null);
+        }
+    }
+
+
+    private Expr analyze(Object form, Locals locals) {
+
+        if (form == null) {
+            return nilExpr;
+        } else if (form instanceof Boolean) {
+            return ((Boolean) form) ? trueExpr : falseExpr;
+        } else if (form instanceof Symbol) {
+            return analyzeSymbol((Symbol) form, locals);
+        } else if (form instanceof ISeq) {
+            return analyzeSeq((ISeq) form, locals);
+        } else if (isConstant(form)) {
+            return new ConstantExpr(constant(literal(form)));
+        } else if (form instanceof IPersistentVector) {
+            return new CollectionExpr(analyzeAll(RT.seq(form), locals), VECTOR);
+        } else if (form instanceof IPersistentMap) {
+            List<Expr> items = new ArrayList<Expr>();
+            for (ISeq s = RT.seq(form); s != null; s = s.next()) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) s.first();
+                items.add(analyze(entry.getKey(), locals.notTail()));
+                items.add(analyze(entry.getValue(), locals.notTail()));
+            }
+            return new CollectionExpr(items, MAP);
+        }
+
+        throw new Unsupported(form);
+    }
+
+
+    /**
+     * Analyze forms whose values are arguments, none
+     * of which is in tail position
+     */
+    private List<Expr> analyzeAll(ISeq forms, Locals locals) {
+        List<Expr> exprs = new ArrayList<Expr>();
+        for (ISeq s = forms; s != null; s = s.next()) {
+            exprs.add(analyze(s.first(), locals.notTail()));
+        }
+        return exprs;
+    }
+
+
+    /**
+     * Analyze the body of a do, let, loop or fn,
+     * whose last form is in tail position
+     */
+    private Expr analyzeBody(ISeq forms, Locals locals) {
+        List<Expr> body = new ArrayList<Expr>();
+        for (ISeq s = forms; s != null; s = s.next()) {
+            body.add(analyze(s.first(), s.next() == null ? locals : locals.notTail()));
+        }
+        return new DoExpr(body);
+    }
+
+
+    private Expr analyzeSymbol(Symbol sym, Locals locals) {
+        LocalExpr local = locals.get(sym);
+        if (local != null) {
+            return local;
+        }
+
+        if (sym.getNamespace() == null && defined.contains(sym)) {
+            return new DefinedVarExpr(varSlot(sym), constant(ns), constant(sym));
+        }
+
+        Var var = resolveVar(sym);
+        if (var != null) {
+            if (var.isMacro()) {
+                throw new Unsupported(sym);
+            }
+            return new VarExpr(constant(var));
+        }
+
+        if (sym.getNamespace() != null) {
+            // Class/FIELD reads a static field
+            Class<?> c = resolveClass(Symbol.intern(sym.getNamespace()));
+            Field field = c != null ? findField(c, sym.getName(), true) : null;
+            if (field != null) {
+                return new FieldExpr(field, null);
+            }
+        } else {
+            Class<?> c = resolveClass(sym);
+            if (c != null) {
+                return new ConstantExpr(constant(c));
+            }
+        }
+
+        throw new Unsupported(sym);
+    }
+
+
+    private Expr analyzeSeq(ISeq form, Locals locals) {
+
+        Object head = form.first();
+        int count = RT.count(form);
+
+        if (count == 0) {
+            return new ConstantExpr(constant(form));
+        }
+
+        if (DEF.equals(head) && count == 3 && RT.second(form) instanceof Symbol) {
+            Symbol name = (Symbol) RT.second(form);
+            int var = varSlot(name);
+            defined.add(name);
+            return new DefExpr(var, constant(ns), constant(name),
+                               analyze(RT.third(form), locals.notTail()));
+        }
+
+        if (DEFN.equals(head) && count >= 3 && RT.second(form) instanceof Symbol
+            && RT.third(form) instanceof IPersistentVector) {
+            Symbol name = (Symbol) RT.second(form);
+            int var = varSlot(name);
+            defined.add(name);
+            // As Clojure defines it, the function calls
+            // itself through its Var rather than by name
+            return new DefExpr(var, constant(ns), constant(name),
+                               analyzeFn(form.next().next(), locals));
+        }
+
+        if (IF.equals(head) && (count == 3 || count == 4)) {
+            return new IfExpr(analyze(RT.second(form), locals.notTail()),
+                              analyze(RT.third(form), locals),
+                              analyze(RT.nth(form, 3, null), locals));
+        }
+
+        if (DO.equals(head)) {
+            return analyzeBody(form.next(), locals);
+        }
+
+        if (QUOTE.equals(head) && count == 2) {
+            return new ConstantExpr(constant(RT.second(form)));
+        }
+
+        if (COND.equals(head) && count % 2 == 1) {
+            return analyzeCond(form.next(), locals);
+        }
+
+        if ((LET.equals(head) || LET_STAR.equals(head)) && RT.second(form) instanceof IPersistentVector) {
+            return analyzeLet((IPersistentVector) RT.second(form), form.next().next(), locals, false);
+        }
+
+        if ((LOOP.equals(head) || LOOP_STAR.equals(head)) && RT.second(form) instanceof IPersistentVector) {
+            return analyzeLet((IPersistentVector) RT.second(form), form.next().next(), locals, true);
+        }
+
+        if (RECUR.equals(head)) {
+            if (locals.recur == null || locals.recur.params.size() != count - 1) {
+                throw new Unsupported(form);
+            }
+            return new RecurExpr(locals.recur, analyzeAll(form.next(), locals));
+        }
+
+        if (FN.equals(head) || FN_STAR.equals(head)) {
+            return analyzeFn(form.next(), locals);
+        }
+
+        if (CASE.equals(head) && count >= 3) {
+            return analyzeCase(form, locals);
+        }
+
+        if (DOT.equals(head) && count >= 3) {
+            return analyzeDot(form, locals);
+        }
+
+        if (NEW.equals(head) && count >= 2 && RT.second(form) instanceof Symbol) {
+            return analyzeNew(form, locals);
+        }
+
+        if (IMPORT.equals(head) && count == 2 && RT.second(form) instanceof String) {
+            return analyzeImport((String) RT.second(form));
+        }
+
+        if (head instanceof Symbol && locals.get(head) == null) {
+            if (clojure.lang.Compiler.specials.containsKey(head)) {
+                throw new Unsupported(form);
+            }
+            Var var = resolveVar((Symbol) head);
+            if ((var == null && !defined.contains(head)) || (var != null && var.isMacro())) {
+                Object expansion = macroexpand(form);
+                if (expansion != form) {
+                    return analyze(expansion, locals);
+                }
+            }
+            StaticMethod intrinsic = intrinsics.get(var);
+            if (intrinsic != null && count == 3) {
+                return new StaticCallExpr(intrinsic, analyzeAll(form.next(), locals));
+            }
+        }
+
+        if (count - 1 > MAX_INVOKE_ARGS) {
+            throw new Unsupported(form);
+        }
+
+        Expr fn = analyze(head, locals.notTail());
+        if (fn instanceof VarExpr) {
+            fn = new TheVarExpr(fn);
+        }
+
+        return new InvokeExpr(fn, analyzeAll(form.next(), locals));
+    }
+
+
+    private Expr analyzeCond(ISeq clauses, Locals locals) {
+        if (clauses == null) {
+            return nilExpr;
+        }
+        return new IfExpr(analyze(clauses.first(), locals.notTail()),
+                          analyze(RT.second(clauses), locals),
+                          analyzeCond(clauses.next().next(), locals));
+    }
+
+
+    private Expr analyzeLet(IPersistentVector bindings, ISeq body, Locals locals, boolean loop) {
+        if (bindings.count() % 2 != 0) {
+            throw new Unsupported(bindings);
+        }
+
+        Map<Symbol, LocalExpr> scope = new HashMap<Symbol, LocalExpr>(locals.names);
+        List<LocalExpr> bound = new ArrayList<LocalExpr>();
+        List<Expr> inits = new ArrayList<Expr>();
+
+        for (int i = 0; i < bindings.count(); i += 2) {
+            Object name = bindings.nth(i);
+            if (!(name instanceof Symbol) || ((Symbol) name).getNamespace() != null) {
+                throw new Unsupported(bindings);
+            }
+            Object init = bindings.nth(i + 1);
+            inits.add(analyze(init, locals.with(scope, null)));
+            // A let local has the type of its value, while
+            // a loop local may be rebound by a recur
+            Object tag = tag(name);
+            LocalExpr local = new SlotExpr(tag != null || loop ? tag : tag(init));
+            bound.add(local);
+            scope = new HashMap<Symbol, LocalExpr>(scope);
+            scope.put((Symbol) name, local);
+        }
+
+        if (!loop) {
+            return new LetExpr(bound, inits, analyzeBody(body, locals.with(scope, locals.recur)));
+        }
+
+        Recur recur = new Recur(bound);
+        return new LoopExpr(bound, inits, recur, analyzeBody(body, locals.with(scope, recur)));
+    }
+
+
+    /**
+     * Analyze a function of one arity, which is
+     * ([params] body), optionally preceded by its
+     * name and with its arity in a list
+     */
+    private Expr analyzeFn(ISeq spec, Locals enclosing) {
+        Symbol name = null;
+        if (spec != null && spec.first() instanceof Symbol) {
+            name = (Symbol) spec.first();
+            spec = spec.next();
+        }
+        if (spec != null && spec.first() instanceof ISeq && spec.next() == null) {
+            spec = (ISeq) spec.first();
+        }
+        if (spec == null || !(spec.first() instanceof IPersistentVector)) {
+            throw new Unsupported(spec);
+        }
+
+        IPersistentVector params = (IPersistentVector) spec.first();
+        if (params.count() > MAX_INVOKE_ARGS) {
+            throw new Unsupported(params);
+        }
+
+        FnExpr fn = new FnExpr(enclosing, tag(params));
+        Map<Symbol, LocalExpr> names = new HashMap<Symbol, LocalExpr>();
+        if (name != null) {
+            names.put(name, new ThisExpr());
+        }
+        for (int i = 0; i < params.count(); ++i) {
+            Object param = params.nth(i);
+            if (!(param instanceof Symbol) || ((Symbol) param).getNamespace() != null
+                || AMPERSAND.equals(param)) {
+                throw new Unsupported(params);
+            }
+            ArgExpr arg = new ArgExpr(i, tag(param));
+            fn.params.add(arg);
+            names.put((Symbol) param, arg);
+        }
+
+        fn.body = analyzeBody(spec.next(), new Locals(names, fn, fn.recur));
+        return fn;
+    }
+
+
+    /**
+     * Analyze a case, which finds the branch of its subject
+     * in a map from each test constant to the index of its
+     * branch, and jumps to it with a table switch
+     */
+    private Expr analyzeCase(ISeq form, Locals locals) {
+        Expr subject = analyze(RT.second(form), locals.notTail());
+        IPersistentMap branches = PersistentHashMap.EMPTY;
+        List<Expr> results = new ArrayList<Expr>();
+        Expr otherwise = null;
+
+        for (ISeq s = form.next().next(); s != null; s = s.next().next()) {
+            if (s.next() == null) {
+                otherwise = analyze(s.first(), locals);
+                break;
+            }
+            // Lists of constants aren't supported
+            Object test = s.first();
+            if (test instanceof ISeq || branches.containsKey(test)) {
+                throw new Unsupported(form);
+            }
+            branches = branches.assoc(test, results.size());
+            results.add(analyze(RT.second(s), locals));
+        }
+
+        // A case without a default throws when nothing
+        // matches, which is left to Clojure
+        if (otherwise == null) {
+            throw new Unsupported(form);
+        } else if (results.isEmpty()) {
+            return new DoExpr(Arrays.asList(subject, otherwise));
+        }
+        return new CaseExpr(subject, constant(branches), results, otherwise);
+    }
+
+
+    /**
+     * Analyze a java call or field read: (. target member
+     * args*), (. target (member args*)) or (. target -field),
+     * where the target may name a class for a static member
+     */
+    private Expr analyzeDot(ISeq form, Locals locals) {
+        Object target = RT.second(form);
+        Object member = RT.third(form);
+        ISeq args = form.next().next().next();
+        boolean call = args != null;
+
+        if (member instanceof ISeq && args == null) {
+            call = true;
+            args = ((ISeq) member).next();
+            member = ((ISeq) member).first();
+        }
+        if (!(member instanceof Symbol)) {
+            throw new Unsupported(form);
+        }
+
+        String name = ((Symbol) member).getName();
+        boolean fieldOnly = !call && name.startsWith("-");
+        if (fieldOnly) {
+            name = name.substring(1);
+        }
+        List<Expr> argExprs = analyzeAll(args, locals);
+        List<Class<?>> argClasses = formClasses(args, locals);
+
+        Class<?> c = target instanceof Symbol && locals.get(target) == null
+            ? resolveClass((Symbol) target) : null;
+
+        if (c != null) {
+            if (!call) {
+                Field field = findField(c, name, true);
+                if (field != null) {
+                    return new FieldExpr(field, null);
+                }
+            }
+            java.lang.reflect.Method method = findMethod(c, name, argClasses, true);
+            if (method != null) {
+                return new MethodExpr(method, null, argExprs);
+            }
+            return new ReflectExpr(INVOKE_STATIC_METHOD, argExprs,
+                                   new CastExpr(new ConstantExpr(constant(c)), CLASS_TYPE),
+                                   new StringExpr(name));
+        }
+
+        Expr targetExpr = analyze(target, locals.notTail());
+        c = formClass(target, locals);
+        if (c != null && c.isPrimitive()) {
+            c = null;
+        }
+
+        if (!call) {
+            Field field = c != null ? findField(c, name, false) : null;
+            if (field != null) {
+                return new FieldExpr(field, targetExpr);
+            } else if (fieldOnly) {
+                return new ReflectExpr(GET_INSTANCE_FIELD, null, targetExpr, new StringExpr(name));
+            } else if (c == null) {
+                return new ReflectExpr(INVOKE_NO_ARG_MEMBER, null, targetExpr, new StringExpr(name));
+            }
+        }
+
+        java.lang.reflect.Method method = c != null ? findMethod(c, name, argClasses, false) : null;
+        if (method != null) {
+            return new MethodExpr(method, targetExpr, argExprs);
+        }
+        return new ReflectExpr(INVOKE_INSTANCE_METHOD, argExprs, targetExpr, new StringExpr(name));
+    }
+
+
+    private Expr analyzeNew(ISeq form, Locals locals) {
+        Class<?> c = resolveClass((Symbol) RT.second(form));
+        if (c == null) {
+            throw new Unsupported(form);
+        }
+
+        ISeq args = form.next().next();
+        List<Expr> argExprs = analyzeAll(args, locals);
+        Constructor<?> constructor = findConstructor(c, formClasses(args, locals));
+        if (constructor != null) {
+            return new ConstructorExpr(constructor, argExprs);
+        }
+        return new ReflectExpr(INVOKE_CONSTRUCTOR, argExprs,
+                               new CastExpr(new ConstantExpr(constant(c)), CLASS_TYPE));
+    }
+
+
+    private Expr analyzeImport(String name) {
+        Class<?> c;
+        try {
+            c = Class.forName(name, false, RT.baseLoader());
+        } catch (ClassNotFoundException e) {
+            throw new Unsupported(name);
+        }
+        // Later statements name the class as
+        // the namespace will once it runs
+        imported.put(Symbol.intern(name.substring(name.lastIndexOf('.') + 1)), c);
+        return new ImportExpr(constant(ns), constant(c));
+    }
+
+
+    /**
+     * The analyzed form of a statement, which emits
+     * code that leaves one Object on the stack
+     */
+    private abstract class Expr {
+        abstract void emit(GeneratorAdapter gen);
+
+        /**
+         * Emit the expression as the condition of
+         * a branch, jumping to the label if it is false
+         */
+        void emitTest(GeneratorAdapter gen, Label ifFalse) {
+            emit(gen);
+            gen.invokeStatic(RT_TYPE, BOOLEAN_CAST);
+            gen.ifZCmp(GeneratorAdapter.EQ, ifFalse);
+        }
+    }
+
+
+    private final Expr nilExpr = new Expr() {
+        void emit(GeneratorAdapter gen) {
+            gen.visitInsn(Opcodes.ACONST_NULL);
+        }
+    };
+
+
+    private final Expr trueExpr = new Expr() {
+        void emit(GeneratorAdapter gen) {
+            gen.getStatic(BOOLEAN_TYPE, "TRUE", BOOLEAN_TYPE);
+        }
+    };
+
+
+    private final Expr falseExpr = new Expr() {
+        void emit(GeneratorAdapter gen) {
+            gen.getStatic(BOOLEAN_TYPE, "FALSE", BOOLEAN_TYPE);
+        }
+    };
+
+
+    private void emitConstant(GeneratorAdapter gen, int index) {
+        gen.getStatic(programType, CONSTANTS_FIELD, OBJECT_ARRAY_TYPE);
+        gen.push(index);
+        gen.arrayLoad(OBJECT_TYPE);
+    }
+
+
+    private void emitArray(GeneratorAdapter gen, List<Expr> items) {
+        gen.push(items.size());
+        gen.newArray(OBJECT_TYPE);
+        for (int i = 0; i < items.size(); ++i) {
+            gen.dup();
+            gen.push(i);
+            items.get(i).emit(gen);
+            gen.arrayStore(OBJECT_TYPE);
+        }
+    }
+
+
+    /**
+     * Convert the Object on the stack to a value of the
+     * given class, as the Clojure compiler converts the
+     * arguments of a java method
+     */
+    private static void emitUnbox(GeneratorAdapter gen, Class<?> c) {
+        if (c.isPrimitive()) {
+            gen.invokeStatic(RT_TYPE, new Method(c.getName() + "Cast", Type.getType(c),
+                                                 new Type[] {OBJECT_TYPE}));
+        } else if (c != Object.class) {
+            gen.checkCast(Type.getType(c));
+        }
+    }
+
+
+    /**
+     * Convert the value of the given class on the stack
+     * to an Object, as the Clojure compiler boxes the
+     * return value of a java method (int is widened
+     * to a Long and float to a Double)
+     */
+    private static void emitBox(GeneratorAdapter gen, Class<?> c) {
+        if (c == void.class) {
+            gen.visitInsn(Opcodes.ACONST_NULL);
+        } else if (c == boolean.class) {
+            gen.invokeStatic(RT_TYPE, BOX_BOOLEAN);
+        } else if (c == char.class) {
+            gen.invokeStatic(Type.getType(Character.class), Method.getMethod("Character valueOf(char)"));
+        } else if (c == byte.class) {
+            gen.invokeStatic(Type.getType(Byte.class), Method.getMethod("Byte valueOf(byte)"));
+        } else if (c == short.class) {
+            gen.invokeStatic(Type.getType(Short.class), Method.getMethod("Short valueOf(short)"));
+        } else if (c == int.class) {
+            gen.visitInsn(Opcodes.I2L);
+            gen.invokeStatic(NUMBERS_TYPE, BOX_LONG);
+        } else if (c == long.class) {
+            gen.invokeStatic(NUMBERS_TYPE, BOX_LONG);
+        } else if (c == float.class) {
+            gen.visitInsn(Opcodes.F2D);
+            gen.invokeStatic(NUMBERS_TYPE, BOX_DOUBLE);
+        } else if (c == double.class) {
+            gen.invokeStatic(NUMBERS_TYPE, BOX_DOUBLE);
+        }
+    }
+
+
+    /**
+     * The primitive class that a function converts a parameter
+     * or return value to, if it is hinted long or double (the
+     * primitives of Clojure's functions), or null
+     */
+    private static Class<?> coercion(Object tag) {
+        if (tag instanceof Symbol && ((Symbol) tag).getNamespace() == null) {
+            String name = ((Symbol) tag).getName();
+            if (name.equals("long") || name.equals("double")) {
+                return primitives.get(name);
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Convert the Object on the stack to the primitive
+     * class, leaving it boxed, unless the class is null
+     */
+    private static void emitCoerce(GeneratorAdapter gen, Class<?> c) {
+        if (c != null) {
+            emitUnbox(gen, c);
+            emitBox(gen, c);
+        }
+    }
+
+
+    private class ConstantExpr extends Expr {
+        final int index;
+
+        ConstantExpr(int index) {
+            this.index = index;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            emitConstant(gen, index);
+        }
+    }
+
+
+    private class EvalExpr extends ConstantExpr {
+        EvalExpr(int index) {
+            super(index);
+        }
+
+        void emit(GeneratorAdapter gen) {
+            emitConstant(gen, index);
+            gen.invokeStatic(COMPILER_TYPE, EVAL);
+        }
+    }
+
+
+    private class VarExpr extends ConstantExpr {
+        VarExpr(int index) {
+            super(index);
+        }
+
+        /**
+         * Emit the code that leaves the Var on the stack
+         */
+        void emitVar(GeneratorAdapter gen) {
+            emitConstant(gen, index);
+            gen.checkCast(VAR_TYPE);
+        }
+
+        void emit(GeneratorAdapter gen) {
+            emitVar(gen);
+            gen.invokeVirtual(VAR_TYPE, VAR_GET);
+        }
+    }
+
+
+    /**
+     * The Var of a name defined by the program, which is
+     * looked up the first time the code runs unless the
+     * statement that defines it has already run
+     */
+    private class DefinedVarExpr extends VarExpr {
+        final int ns;
+        final int sym;
+
+        DefinedVarExpr(int index, int ns, int sym) {
+            super(index);
+            this.ns = ns;
+            this.sym = sym;
+        }
+
+        void emitVar(GeneratorAdapter gen) {
+            Label found = gen.newLabel();
+            emitConstant(gen, index);
+            gen.dup();
+            gen.ifNonNull(found);
+            gen.pop();
+            gen.getStatic(programType, CONSTANTS_FIELD, OBJECT_ARRAY_TYPE);
+            gen.push(index);
+            emitConstant(gen, ns);
+            gen.checkCast(NAMESPACE_TYPE);
+            emitConstant(gen, sym);
+            gen.checkCast(SYMBOL_TYPE);
+            gen.invokeStatic(BYTECODE_COMPILER_TYPE, LOOKUP_VAR);
+            gen.dupX2();
+            gen.arrayStore(OBJECT_TYPE);
+            gen.mark(found);
+            gen.checkCast(VAR_TYPE);
+        }
+    }
+
+
+    /**
+     * A Var in the function position of a call, which is
+     * called through the Var itself so that redefining
+     * the function takes effect
+     */
+    private class TheVarExpr extends Expr {
+        final VarExpr var;
+
+        TheVarExpr(Expr var) {
+            this.var = (VarExpr) var;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            var.emitVar(gen);
+        }
+    }
+
+
+    /**
+     * An expression whose value is
+     * cast to the given class
+     */
+    private class CastExpr extends Expr {
+        final Expr expr;
+        final Type type;
+
+        CastExpr(Expr expr, Type type) {
+            this.expr = expr;
+            this.type = type;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            expr.emit(gen);
+            gen.checkCast(type);
+        }
+    }
+
+
+    private class StringExpr extends Expr {
+        final String value;
+
+        StringExpr(String value) {
+            this.value = value;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            gen.push(value);
+        }
+    }
+
+
+    /**
+     * A local name, with the type hint of its binding
+     */
+    private abstract class LocalExpr extends Expr {
+        final Object tag;
+
+        LocalExpr(Object tag) {
+            this.tag = tag;
+        }
+
+        /**
+         * Store the Object on the stack in the local
+         * (for the locals that a recur rebinds)
+         */
+        void emitStore(GeneratorAdapter gen) {
+            throw new IllegalStateException("A closed over local can't be rebound");
+        }
+    }
+
+
+    /**
+     * A local bound by let or loop, which is a local of
+     * the method.  The method allocates it where the
+     * local is bound, which is emitted before its uses.
+     */
+    private class SlotExpr extends LocalExpr {
+        private int slot = -1;
+
+        SlotExpr(Object tag) {
+            super(tag);
+        }
+
+        void emit(GeneratorAdapter gen) {
+            gen.loadLocal(slot);
+        }
+
+        void emitStore(GeneratorAdapter gen) {
+            if (slot < 0) {
+                slot = gen.newLocal(OBJECT_TYPE);
+            }
+            gen.storeLocal(slot);
+        }
+    }
+
+
+    /**
+     * A parameter of a function
+     */
+    private class ArgExpr extends LocalExpr {
+        final int index;
+
+        ArgExpr(int index, Object tag) {
+            super(tag);
+            this.index = index;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            gen.loadArg(index);
+        }
+
+        void emitStore(GeneratorAdapter gen) {
+            gen.storeArg(index);
+        }
+    }
+
+
+    /**
+     * A local of an enclosing scope, which a function
+     * copies into a field when it is created
+     */
+    private class ClosedExpr extends LocalExpr {
+        final FnExpr fn;
+        final int index;
+
+        ClosedExpr(FnExpr fn, int index, Object tag) {
+            super(tag);
+            this.fn = fn;
+            this.index = index;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            gen.loadThis();
+            gen.getField(fn.type, CLOSED_FIELD + index, OBJECT_TYPE);
+        }
+    }
+
+
+    /**
+     * The name of a named fn, inside its body
+     */
+    private class ThisExpr extends LocalExpr {
+        ThisExpr() {
+            super(null);
+        }
+
+        void emit(GeneratorAdapter gen) {
+            gen.loadThis();
+        }
+    }
+
+
+    /**
+     * Intern the Var of a name in the program's namespace,
+     * keep it in its constant for the code that uses it,
+     * and bind it to the value
+     */
+    private class DefExpr extends Expr {
+        final int var;
+        final int ns;
+        final int name;
+        final Expr init;
+
+        DefExpr(int var, int ns, int name, Expr init) {
+            this.var = var;
+            this.ns = ns;
+            this.name = name;
+            this.init = init;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            gen.getStatic(programType, CONSTANTS_FIELD, OBJECT_ARRAY_TYPE);
+            gen.push(var);
+            emitConstant(gen, ns);
+            gen.checkCast(NAMESPACE_TYPE);
+            emitConstant(gen, name);
+            gen.checkCast(SYMBOL_TYPE);
+            gen.invokeStatic(BYTECODE_COMPILER_TYPE, INTERN_VAR);
+            gen.dupX2();
+            gen.arrayStore(OBJECT_TYPE);
+            gen.dup();
+            init.emit(gen);
+            gen.invokeVirtual(VAR_TYPE, VAR_BIND_ROOT);
+        }
+    }
+
+
+    private class IfExpr extends Expr {
+        final Expr test;
+        final Expr then;
+        final Expr otherwise;
+
+        IfExpr(Expr test, Expr then, Expr otherwise) {
+            this.test = test;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            Label elseLabel = gen.newLabel();
+            Label endLabel = gen.newLabel();
+            test.emitTest(gen, elseLabel);
+            then.emit(gen);
+            gen.goTo(endLabel);
+            gen.mark(elseLabel);
+            otherwise.emit(gen);
+            gen.mark(endLabel);
+        }
+    }
+
+
+    private class DoExpr extends Expr {
+        final List<Expr> body;
+
+        DoExpr(List<Expr> body) {
+            this.body = body;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            if (body.isEmpty()) {
+                gen.visitInsn(Opcodes.ACONST_NULL);
+                return;
+            }
+            for (int i = 0; i < body.size() - 1; ++i) {
+                body.get(i).emit(gen);
+                gen.pop();
+            }
+            body.get(body.size() - 1).emit(gen);
+        }
+    }
+
+
+    private class LetExpr extends Expr {
+        final List<LocalExpr> locals;
+        final List<Expr> inits;
+        final Expr body;
+
+        LetExpr(List<LocalExpr> locals, List<Expr> inits, Expr body) {
+            this.locals = locals;
+            this.inits = inits;
+            this.body = body;
+        }
+
+        void emitBindings(GeneratorAdapter gen) {
+            for (int i = 0; i < locals.size(); ++i) {
+                inits.get(i).emit(gen);
+                locals.get(i).emitStore(gen);
+            }
+        }
+
+        void emit(GeneratorAdapter gen) {
+            emitBindings(gen);
+            body.emit(gen);
+        }
+    }
+
+
+    /**
+     * The target of a recur: the locals that it
+     * rebinds and the start of the loop or function
+     * body, which is marked when it is emitted
+     */
+    private static class Recur {
+        final List<? extends LocalExpr> params;
+        Label start;
+
+        Recur(List<? extends LocalExpr> params) {
+            this.params = params;
+        }
+    }
+
+
+    private class LoopExpr extends LetExpr {
+        final Recur recur;
+
+        LoopExpr(List<LocalExpr> locals, List<Expr> inits, Recur recur, Expr body) {
+            super(locals, inits, body);
+            this.recur = recur;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            emitBindings(gen);
+            recur.start = gen.mark();
+            body.emit(gen);
+        }
+    }
+
+
+    /**
+     * A recur, which evaluates all of its arguments before
+     * rebinding the locals and jumping back to the start.
+     * It is in tail position, so nothing follows it.
+     */
+    private class RecurExpr extends Expr {
+        final Recur target;
+        final List<Expr> args;
+
+        RecurExpr(Recur target, List<Expr> args) {
+            this.target = target;
+            this.args = args;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            for (Expr arg: args) {
+                arg.emit(gen);
+            }
+            for (int i = args.size() - 1; i >= 0; --i) {
+                target.params.get(i).emitStore(gen);
+            }
+            gen.goTo(target.start);
+        }
+    }
+
+
+    /**
+     * A function, which is compiled to a class extending
+     * AFunction with an invoke method of its arity.  Its
+     * fields hold the locals that it closes over.
+     */
+    private class FnExpr extends Expr {
+        final Locals enclosing;
+        final Object returnTag;
+        final Type type;
+        final List<ArgExpr> params = new ArrayList<ArgExpr>();
+        final Recur recur = new Recur(params);
+
+        // The locals of the enclosing scope that the
+        // function closes over, in the order of its fields
+        final List<LocalExpr> closed = new ArrayList<LocalExpr>();
+        final Map<Symbol, ClosedExpr> closedNames = new HashMap<Symbol, ClosedExpr>();
+
+        Expr body;
+
+        FnExpr(Locals enclosing, Object returnTag) {
+            this.enclosing = enclosing;
+            this.returnTag = returnTag;
+            this.type = Type.getObjectType(programType.getInternalName() + "$Fn" + (++fnCount));
+        }
+
+        ClosedExpr close(Symbol name) {
+            ClosedExpr local = closedNames.get(name);
+            if (local == null) {
+                LocalExpr outer = enclosing.get(name);
+                if (outer == null) {
+                    return null;
+                }
+                local = new ClosedExpr(this, closed.size(), outer.tag);
+                closed.add(outer);
+                closedNames.put(name, local);
+            }
+            return local;
+        }
+
+        private Method constructor() {
+            Type[] argTypes = new Type[closed.size()];
+            Arrays.fill(argTypes, OBJECT_TYPE);
+            return new Method("<init>", Type.VOID_TYPE, argTypes);
+        }
+
+        void emit(GeneratorAdapter gen) {
+            defineClass();
+            gen.newInstance(type);
+            gen.dup();
+            for (LocalExpr local: closed) {
+                local.emit(gen);
+            }
+            gen.invokeConstructor(type, constructor());
+        }
+
+        private void defineClass() {
+            ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            cw.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL + Opcodes.ACC_SUPER,
+                     type.getInternalName(), null, FN_TYPE.getInternalName(), null);
+
+            for (int i = 0; i < closed.size(); ++i) {
+                cw.visitField(Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL, CLOSED_FIELD + i,
+                              OBJECT_TYPE.getDescriptor(), null, null).visitEnd();
+            }
+
+            GeneratorAdapter init = new GeneratorAdapter(Opcodes.ACC_PUBLIC, constructor(), null, null, cw);
+            init.visitCode();
+            init.loadThis();
+            init.invokeConstructor(FN_TYPE, FN_CONSTRUCTOR);
+            for (int i = 0; i < closed.size(); ++i) {
+                init.loadThis();
+                init.loadArg(i);
+                init.putField(type, CLOSED_FIELD + i, OBJECT_TYPE);
+            }
+            init.returnValue();
+            init.endMethod();
+
+            GeneratorAdapter invoke = new GeneratorAdapter(Opcodes.ACC_PUBLIC, invokeMethod(params.size()),
+                                                           null, null, cw);
+            invoke.visitCode();
+            recur.start = invoke.mark();
+            // Parameters hinted long or double are converted,
+            // as Clojure converts the arguments of a primitive
+            // function (a recur converts them again)
+            for (ArgExpr param: params) {
+                if (coercion(param.tag) != null) {
+                    param.emit(invoke);
+                    emitCoerce(invoke, coercion(param.tag));
+                    param.emitStore(invoke);
+                }
+            }
+            body.emit(invoke);
+            emitCoerce(invoke, coercion(returnTag));
+            invoke.returnValue();
+            invoke.endMethod();
+
+            cw.visitEnd();
+            fnClasses.put(type.getClassName(), cw.toByteArray());
+        }
+    }
+
+
+    private class CaseExpr extends Expr {
+        final Expr subject;
+        final int branches;
+        final List<Expr> results;
+        final Expr otherwise;
+
+        CaseExpr(Expr subject, int branches, List<Expr> results, Expr otherwise) {
+            this.subject = subject;
+            this.branches = branches;
+            this.results = results;
+            this.otherwise = otherwise;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            Label[] labels = new Label[results.size()];
+            for (int i = 0; i < labels.length; ++i) {
+                labels[i] = gen.newLabel();
+            }
+            Label noMatch = gen.newLabel();
+            Label otherwiseLabel = gen.newLabel();
+            Label endLabel = gen.newLabel();
+
+            emitConstant(gen, branches);
+            subject.emit(gen);
+            gen.invokeStatic(RT_TYPE, GET);
+            gen.dup();
+            gen.ifNull(noMatch);
+            gen.unbox(Type.INT_TYPE);
+            gen.visitTableSwitchInsn(0, labels.length - 1, otherwiseLabel, labels);
+
+            for (int i = 0; i < labels.length; ++i) {
+                gen.mark(labels[i]);
+                results.get(i).emit(gen);
+                gen.goTo(endLabel);
+            }
+
+            gen.mark(noMatch);
+            gen.pop();
+            gen.mark(otherwiseLabel);
+            otherwise.emit(gen);
+            gen.mark(endLabel);
+        }
+    }
+
+
+    private class StaticCallExpr extends Expr {
+        final StaticMethod method;
+        final List<Expr> args;
+
+        StaticCallExpr(StaticMethod method, List<Expr> args) {
+            this.method = method;
+            this.args = args;
+        }
+
+        private void emitCall(GeneratorAdapter gen) {
+            for (Expr arg: args) {
+                arg.emit(gen);
+            }
+            gen.invokeStatic(method.owner, method.method);
+        }
+
+        void emit(GeneratorAdapter gen) {
+            emitCall(gen);
+            if (method.returnsBoolean) {
+                gen.invokeStatic(RT_TYPE, BOX_BOOLEAN);
+            }
+        }
+
+        void emitTest(GeneratorAdapter gen, Label ifFalse) {
+            if (method.returnsBoolean) {
+                // Comparisons branch on the primitive
+                // result without boxing it
+                emitCall(gen);
+                gen.ifZCmp(GeneratorAdapter.EQ, ifFalse);
+            } else {
+                super.emitTest(gen, ifFalse);
+            }
+        }
+    }
+
+
+    private class InvokeExpr extends Expr {
+        final Expr fn;
+        final List<Expr> args;
+
+        InvokeExpr(Expr fn, List<Expr> args) {
+            this.fn = fn;
+            this.args = args;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            fn.emit(gen);
+            gen.checkCast(IFN_TYPE);
+            for (Expr arg: args) {
+                arg.emit(gen);
+            }
+            gen.invokeInterface(IFN_TYPE, invokeMethod(args.size()));
+        }
+    }
+
+
+    private class CollectionExpr extends Expr {
+        final List<Expr> items;
+        final Method factory;
+
+        CollectionExpr(List<Expr> items, Method factory) {
+            this.items = items;
+            this.factory = factory;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            emitArray(gen, items);
+            gen.invokeStatic(RT_TYPE, factory);
+        }
+    }
+
+
+    private static void emitArgs(GeneratorAdapter gen, List<Expr> args, Class<?>[] types) {
+        for (int i = 0; i < args.size(); ++i) {
+            args.get(i).emit(gen);
+            emitUnbox(gen, types[i]);
+        }
+    }
+
+
+    /**
+     * A call of a java method found at compile time,
+     * on the target or, if it is null, of its class
+     */
+    private class MethodExpr extends Expr {
+        final java.lang.reflect.Method method;
+        final Expr target;
+        final List<Expr> args;
+
+        MethodExpr(java.lang.reflect.Method method, Expr target, List<Expr> args) {
+            this.method = method;
+            this.target = target;
+            this.args = args;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            Class<?> owner = method.getDeclaringClass();
+            Type ownerType = Type.getType(owner);
+            if (target != null) {
+                target.emit(gen);
+                gen.checkCast(ownerType);
+            }
+            emitArgs(gen, args, method.getParameterTypes());
+            if (target == null) {
+                gen.invokeStatic(ownerType, Method.getMethod(method));
+            } else if (owner.isInterface()) {
+                gen.invokeInterface(ownerType, Method.getMethod(method));
+            } else {
+                gen.invokeVirtual(ownerType, Method.getMethod(method));
+            }
+            emitBox(gen, method.getReturnType());
+        }
+    }
+
+
+    private class ConstructorExpr extends Expr {
+        final Constructor<?> constructor;
+        final List<Expr> args;
+
+        ConstructorExpr(Constructor<?> constructor, List<Expr> args) {
+            this.constructor = constructor;
+            this.args = args;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            Type type = Type.getType(constructor.getDeclaringClass());
+            gen.newInstance(type);
+            gen.dup();
+            emitArgs(gen, args, constructor.getParameterTypes());
+            gen.invokeConstructor(type, Method.getMethod(constructor));
+        }
+    }
+
+
+    /**
+     * A read of a java field, of the
+     * target or, if it is null, static
+     */
+    private class FieldExpr extends Expr {
+        final Field field;
+        final Expr target;
+
+        FieldExpr(Field field, Expr target) {
+            this.field = field;
+            this.target = target;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            Type owner = Type.getType(field.getDeclaringClass());
+            Type type = Type.getType(field.getType());
+            if (target == null) {
+                gen.getStatic(owner, field.getName(), type);
+            } else {
+                target.emit(gen);
+                gen.checkCast(owner);
+                gen.getField(owner, field.getName(), type);
+            }
+            emitBox(gen, field.getType());
+        }
+    }
+
+
+    /**
+     * A java call or field read that is resolved at
+     * runtime by a method of clojure.lang.Reflector,
+     * which takes the given leading arguments and then
+     * the arguments of the call as an array (unless
+     * they are null, for a field read)
+     */
+    private class ReflectExpr extends Expr {
+        final Method method;
+        final List<Expr> args;
+        final Expr[] leading;
+
+        ReflectExpr(Method method, List<Expr> args, Expr... leading) {
+            this.method = method;
+            this.args = args;
+            this.leading = leading;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            for (Expr expr: leading) {
+                expr.emit(gen);
+            }
+            if (args != null) {
+                emitArray(gen, args);
+            }
+            gen.invokeStatic(REFLECTOR_TYPE, method);
+        }
+    }
+
+
+    private class ImportExpr extends Expr {
+        final int ns;
+        final int c;
+
+        ImportExpr(int ns, int c) {
+            this.ns = ns;
+            this.c = c;
+        }
+
+        void emit(GeneratorAdapter gen) {
+            emitConstant(gen, ns);
+            gen.checkCast(NAMESPACE_TYPE);
+            emitConstant(gen, c);
+            gen.checkCast(CLASS_TYPE);
+            gen.invokeVirtual(NAMESPACE_TYPE, IMPORT_CLASS);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package jest.compiler;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.util.Collections;
+import java.util.List;
+
+import jest.compiler.Validator.ValidationError;
+
+
+/**
+ * The result of compiling a Jest parse tree in a single
+ * pass: the generated Clojure forms along with every
+ * validation error found while generating them.
+ */
+public class CompilationResult {
+
+    private final List<Object> forms;
+
+    private final List<ValidationError> errors;
+
+    private final List<String> warnings;
+
+    public CompilationResult(Iterable<?> forms, Iterable<ValidationError> errors) {
+        this(forms, errors, ImmutableList.<String>of());
+    }
+
+    /**
+     * @param warnings Warnings about code that is valid but
+     *                 slow, such as Java calls made by reflection
+     */
+    public CompilationResult(Iterable<?> forms, Iterable<ValidationError> errors, Iterable<String> warnings) {
+        // Forms may be nil, which an ImmutableList does not allow
+        this.forms = Collections.unmodifiableList(Lists.newArrayList(forms));
+        this.errors = ImmutableList.copyOf(errors);
+        this.warnings = ImmutableList.copyOf(warnings);
+    }
+
+    public List<Object> getForms() {
+        return forms;
+    }
+
+    public List<ValidationError> getErrors() {
+        return errors;
+    }
+
+    public List<String> getWarnings() {
+        return warnings;
+    }
+
+    public Boolean isValid() {
+        return errors.isEmpty();
+    }
+}
@@ -0,0 +1,64 @@
+package jest.compiler;
+
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+
+import jest.compiler.JestCompiler.ParseMode;
+
+import jest.grammar.JestLexer;
+import jest.grammar.JestParser;
+
+
+/**
+ * A lexer and parser that are reset and reused for each
+ * source string they parse, instead of being created anew.
+ * A context must only be used by one thread at a time
+ * (see JestCompiler.compilerContext).
+ *
+ * The token stream is not reused: in ANTLR 4.5 it keeps
+ * its end of file flag when given a new token source, so
+ * it would return no tokens for the next source.
+ *
+ * Each token of a parse tree refers back to the lexer
+ * and input stream that created it (its source pair),
+ * so a tree keeps its input stream alive but does not
+ * read from the lexer again.  The token text, position
+ * and parse tree stay valid after the context has been
+ * reset for other source code, but getTokenSource() of
+ * an old token returns the lexer as it is now.
+ */
+public class CompilerContext {
+
+    private final JestLexer lexer;
+
+    private final JestParser parser;
+
+    public CompilerContext() {
+        lexer = new JestLexer(new ANTLRInputStream(""));
+        parser = new JestParser(new CommonTokenStream(lexer));
+    }
+
+    /**
+     * Reset the lexer and parser to read the given
+     * source code, and return the parser
+     */
+    JestParser parserFor(String source) {
+        lexer.setInputStream(new ANTLRInputStream(source));
+        parser.setTokenStream(new CommonTokenStream(lexer));
+        return parser;
+    }
+
+    public JestLexer getLexer() {
+        return lexer;
+    }
+
+    public JestParser.SourceCodeContext parse(String source, ParseMode mode, ANTLRErrorListener listener) {
+        JestParser parser = parserFor(source);
+
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(listener);
+
+        return JestCompiler.parse(parser, mode, listener);
+    }
+}
@@ -1,11 +1,34 @@
-
 package jest.compiler;
 
+import org.antlr.v4.runtime.ANTLRErrorListener;
 import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.BaseErrorListener;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
 
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import jest.compiler.Validator.ValidationError;
 
 import jest.grammar.JestLexer;
@@ -14,6 +37,101 @@ import jest.grammar.JestParser;
 
 public class JestCompiler {
 
+    /**
+     * The strategy the parser uses to predict
+     * which alternative of a rule to take.
+     * LL always uses full LL prediction.
+     * SLL_THEN_LL first parses using the faster SLL
+     * prediction, giving up on the first syntax error,
+     * and only re-parses using full LL prediction
+     * (and normal error reporting) if that fails.
+     * Both produce the same tree for valid code.
+     */
+    public enum ParseMode {
+        LL,
+        SLL_THEN_LL
+    }
+
+    /**
+     * The maximum number of parse trees kept
+     * in the parse tree cache
+     */
+    public static final int PARSE_TREE_CACHE_SIZE = 256;
+
+    /**
+     * Parse trees of recently compiled source code,
+     * keyed by the hash of that source code.
+     * Parse trees are only read after they are created,
+     * so a single tree can be shared between callers.
+     */
+    private static final Cache<String, JestParser.SourceCodeContext> parseTreeCache =
+        CacheBuilder.newBuilder()
+            .maximumSize(PARSE_TREE_CACHE_SIZE)
+            .build();
+
+
+    /**
+     * A program that uses every part of the grammar,
+     * used to warm up the parser's prediction caches
+     */
+    public static final String WARM_UP_SOURCE =
+        "import java.util.Date;\n" +
+        "record Point { x; y; implements Object { defn toString(this) { str(x, y); } } }\n" +
+        "def p = new Point(1, 2);\n" +
+        "def v: Vec[Long] = [1, 2, 3];\n" +
+        "def m = {:a: 1, \"b\": 2.5};\n" +
+        "defn f(a, b): Long Long -> Long { def c = a * b + a / b - 1; c; }\n" +
+        "defn g() { let z = 10; z; }\n" +
+        "def h = (x) -> { x + 1 };\n" +
+        "for (a, b: v, v) { a + b; };\n" +
+        "for (a: v) lazy { a; };\n" +
+        "if (f(1, 2) >= 2) { 1; } elif (p.x == 1) { p.x.y; } else { v[0]; };\n" +
+        "range(0, 100)->filter(even?)->map((x) -> {x * 2})->take(5);\n" +
+        "v.first().inc();\n" +
+        "{ m[:a] < 2; nil; true; false; (1 + 2) <= 3; };\n";
+
+
+    private static final ThreadLocal<CompilerContext> compilerContexts = new ThreadLocal<CompilerContext>() {
+        @Override
+        protected CompilerContext initialValue() {
+            return new CompilerContext();
+        }
+    };
+
+
+    /**
+     * Return this thread's CompilerContext, whose lexer
+     * and parser are reused for every source string
+     * parsed on this thread
+     * @return
+     */
+    public static CompilerContext compilerContext() {
+        return compilerContexts.get();
+    }
+
+
+    /**
+     * Parse each of the given source strings, filling the
+     * lexer and parser prediction caches (which are shared
+     * by all threads) so that later parses of similar
+     * code are fast from the start.  Errors are ignored.
+     * @param sources
+     */
+    public static void warmUp(Iterable<String> sources) {
+        for (String source: sources) {
+            compilerContext().parse(source, ParseMode.SLL_THEN_LL, new BaseErrorListener());
+        }
+    }
+
+
+    /**
+     * Warm up the parser using WARM_UP_SOURCE
+     */
+    public static void warmUp() {
+        warmUp(Collections.singletonList(WARM_UP_SOURCE));
+    }
+
+
     /**
      * Take a source code string,
      * lex it to convert it to tokens,
@@ -44,11 +162,107 @@ public class JestCompiler {
      */
     public static JestParser.SourceCodeContext compileSourceCodeToParseTree(String source)
         throws org.antlr.v4.runtime.RecognitionException {
+        return compileSourceCodeToParseTree(source, ParseMode.LL);
+    }
 
-        JestParser parser = createParser(source);
 
-        // Generate the AST of the source code
-        return parser.sourceCode();
+    /**
+     * Take a source code string,
+     * create a parser for it, and return a
+     * SourceCodeContext object representing the
+     * root of the parse tree, using the given
+     * ParseMode to parse the source
+     * @param source
+     * @param mode
+     * @return
+     * @throws org.antlr.v4.runtime.RecognitionException
+     */
+    public static JestParser.SourceCodeContext compileSourceCodeToParseTree(String source, ParseMode mode)
+        throws org.antlr.v4.runtime.RecognitionException {
+        return compilerContext().parse(source, mode, ConsoleErrorListener.INSTANCE);
+    }
+
+
+    /**
+     * Parse the source code of the given parser using
+     * the given ParseMode, reporting syntax errors
+     * to the given listener
+     */
+    static JestParser.SourceCodeContext parse(JestParser parser, ParseMode mode, ANTLRErrorListener listener) {
+
+        if (mode == ParseMode.LL) {
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.removeErrorListeners();
+            parser.addErrorListener(listener);
+
+            // Generate the AST of the source code
+            return parser.sourceCode();
+        }
+
+        // Try the fast SLL prediction, bailing
+        // out at the first syntax error
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+
+        try {
+            return parser.sourceCode();
+        } catch (ParseCancellationException e) {
+            // SLL failed, either because the source is
+            // invalid or because it needs full LL prediction.
+            // Rewind and parse again with full LL, which
+            // also reports any syntax errors.
+            parser.reset();
+            parser.addErrorListener(listener);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            return parser.sourceCode();
+        }
+    }
+
+
+    /**
+     * Return a hash that uniquely identifies
+     * the given source code string
+     * @param source
+     * @return
+     */
+    public static String hashSourceCode(String source) {
+        return Hashing.sha256().hashString(source, Charsets.UTF_8).toString();
+    }
+
+
+    /**
+     * Take a source code string and return the
+     * root of its parse tree.  This is the entry point
+     * of a compile unit: the returned tree should be used
+     * for validation, translation, and any other output
+     * so that the source is only lexed and parsed once.
+     * Trees are cached by the hash of their source, so
+     * parsing the same source again returns the same tree.
+     * @param source
+     * @return
+     */
+    public static JestParser.SourceCodeContext parseSourceCode(String source) {
+        String key = hashSourceCode(source);
+
+        JestParser.SourceCodeContext tree = parseTreeCache.getIfPresent(key);
+
+        if (tree == null) {
+            tree = compileSourceCodeToParseTree(source, ParseMode.SLL_THEN_LL);
+            parseTreeCache.put(key, tree);
+        }
+
+        return tree;
+    }
+
+
+    /**
+     * Remove all parse trees from the parse tree cache
+     */
+    public static void clearParseTreeCache() {
+        parseTreeCache.invalidateAll();
     }
 
 
@@ -62,7 +276,7 @@ public class JestCompiler {
      * @throws ValidationError
      */
     public static Boolean validateSourceCode(String source) throws ValidationError {
-        ParseTree tree = compileSourceCodeToParseTree(source);
+        ParseTree tree = parseSourceCode(source);
         return validateParseTree(tree);
     }
 
@@ -87,4 +301,100 @@ public class JestCompiler {
             return false;
         }
     }
+
+
+    /**
+     * Parse and validate the given Jest source file,
+     * recording its errors and how long each stage took.
+     * Syntax errors are recorded rather than printed.
+     * @param file
+     * @return
+     */
+    public static BatchReport.FileResult checkSourceFile(File file) {
+        BatchReport.FileResult result = new BatchReport.FileResult(file);
+
+        String source;
+        try {
+            source = Files.toString(file, Charsets.UTF_8);
+        } catch (IOException e) {
+            result.addError(String.format("Error - Could not read file: %s", e.getMessage()));
+            return result;
+        }
+
+        long start = System.nanoTime();
+
+        BatchReport.ErrorCollector syntaxErrors = new BatchReport.ErrorCollector(result);
+        JestParser.SourceCodeContext tree = compilerContext().parse(source, ParseMode.SLL_THEN_LL, syntaxErrors);
+
+        long parsed = System.nanoTime();
+
+        Validator validator = new Validator(true);
+        ParseTreeWalker.DEFAULT.walk(validator, tree);
+        for (ValidationError error: validator.getErrors()) {
+            result.addError(error.getMessage());
+        }
+
+        long validated = System.nanoTime();
+
+        result.setTimes(parsed - start, validated - parsed);
+        return result;
+    }
+
+
+    /**
+     * Find every Jest source file (.jst) under the given directory
+     * @param dir
+     * @return
+     */
+    public static List<File> findSourceFiles(File dir) {
+        List<File> files = new ArrayList<File>();
+        for (File file: Files.fileTreeTraverser().preOrderTraversal(dir)) {
+            if (file.isFile() && file.getName().endsWith(".jst")) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+
+    /**
+     * Parse and validate every Jest source file under the
+     * given directory, using the given number of threads,
+     * and return a report of the results and timings.
+     * The parser's prediction caches are shared between
+     * threads, so each file warms them for the others.
+     * @param dir
+     * @param threads
+     * @return
+     * @throws InterruptedException
+     */
+    public static BatchReport checkSourceDirectory(File dir, int threads) throws InterruptedException {
+        long start = System.nanoTime();
+
+        List<Callable<BatchReport.FileResult>> tasks = new ArrayList<Callable<BatchReport.FileResult>>();
+        for (final File file: findSourceFiles(dir)) {
+            tasks.add(new Callable<BatchReport.FileResult>() {
+                @Override
+                public BatchReport.FileResult call() {
+                    return checkSourceFile(file);
+                }
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<BatchReport.FileResult> results = new ArrayList<BatchReport.FileResult>();
+            for (Future<BatchReport.FileResult> future: pool.invokeAll(tasks)) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            return new BatchReport(results, System.nanoTime() - start);
+        } finally {
+            pool.shutdown();
+        }
+    }
 }
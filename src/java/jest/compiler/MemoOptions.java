@@ -0,0 +1,88 @@
+package jest.compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.antlr.v4.runtime.Token;
+
+import jest.grammar.JestParser;
+import jest.runtime.MemoizedFunction;
+
+
+/**
+ * The options of the memo modifier of a function
+ * definition, which configure the cache of its results:
+ *
+ *   maxSize  - The most results that are kept (10000)
+ *   eviction - lru to evict the least recently used result
+ *              when the cache is full, or lfu to evict the
+ *              least frequently used (lru)
+ *   ttl      - The milliseconds that a result is kept
+ *              for, or 0 to keep it until it is evicted (0)
+ *
+ * An option that isn't one of these, or whose value
+ * doesn't fit it, is recorded as invalid (and reported
+ * by the Validator) and the default is used instead.
+ */
+public class MemoOptions {
+
+    private long maxSize = MemoizedFunction.DEFAULT_MAX_SIZE;
+
+    private String eviction = MemoizedFunction.LRU;
+
+    private long ttl = 0;
+
+    private final List<Token> invalid = new ArrayList<Token>();
+
+    public MemoOptions(JestParser.MemoModifierContext ctx) {
+        if (ctx.first == null) {
+            return;
+        }
+
+        List<JestParser.MemoOptionContext> options = new ArrayList<JestParser.MemoOptionContext>();
+        options.add(ctx.first);
+        options.addAll(ctx.rest);
+
+        for (JestParser.MemoOptionContext option: options) {
+            String key = option.key.getText();
+            String value = option.value.getText();
+            if (key.equals("maxSize") && isCount(option.value) && Long.parseLong(value) > 0) {
+                maxSize = Long.parseLong(value);
+            } else if (key.equals("eviction")
+                       && (value.equals(MemoizedFunction.LRU) || value.equals(MemoizedFunction.LFU))) {
+                eviction = value;
+            } else if (key.equals("ttl") && isCount(option.value)) {
+                ttl = Long.parseLong(value);
+            } else {
+                invalid.add(option.key);
+            }
+        }
+    }
+
+    // A whole number small enough to be a long
+    private static boolean isCount(Token value) {
+        return value.getType() == JestParser.NUMBER && value.getText().indexOf('.') == -1
+            && value.getText().length() < 19;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public String getEviction() {
+        return eviction;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+       The keys of the options that are
+       unknown or have a bad value
+     */
+    public List<Token> getInvalid() {
+        return Collections.unmodifiableList(invalid);
+    }
+}
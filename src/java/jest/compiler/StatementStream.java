@@ -0,0 +1,149 @@
+package jest.compiler;
+
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.UnbufferedCharStream;
+import org.antlr.v4.runtime.UnbufferedTokenStream;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import jest.grammar.JestLexer;
+import jest.grammar.JestParser;
+
+
+/**
+ * Parses Jest source code from a Reader one top-level
+ * statement at a time.  Neither the characters, the tokens,
+ * nor the parse tree of the whole source are ever held
+ * in memory: each call to next returns the parse tree of
+ * a single import statement or statementTerm, which
+ * may be released as soon as the caller is done with it.
+ */
+public class StatementStream implements Iterator<ParserRuleContext> {
+
+    public static class SyntaxError extends RuntimeException {
+        public SyntaxError(Token token) {
+            super(String.format("Error - Line %s: Syntax error at: %s",
+                                token.getLine(), token.getText()));
+        }
+    }
+
+    /**
+     * The unbuffered token stream does not filter tokens
+     * by channel, so hidden tokens (whitespace) are dropped
+     * here before they reach the parser
+     */
+    private static class DefaultChannelTokenSource implements TokenSource {
+
+        private final TokenSource source;
+
+        public DefaultChannelTokenSource(TokenSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public Token nextToken() {
+            Token token = source.nextToken();
+            while (token.getChannel() != Token.DEFAULT_CHANNEL) {
+                token = source.nextToken();
+            }
+            return token;
+        }
+
+        @Override
+        public int getLine() {
+            return source.getLine();
+        }
+
+        @Override
+        public int getCharPositionInLine() {
+            return source.getCharPositionInLine();
+        }
+
+        @Override
+        public CharStream getInputStream() {
+            return source.getInputStream();
+        }
+
+        @Override
+        public String getSourceName() {
+            return source.getSourceName();
+        }
+
+        @Override
+        public void setTokenFactory(TokenFactory<?> factory) {
+            source.setTokenFactory(factory);
+        }
+
+        @Override
+        public TokenFactory<?> getTokenFactory() {
+            return source.getTokenFactory();
+        }
+    }
+
+    private final JestParser parser;
+
+    public StatementStream(Reader reader) {
+        JestLexer lexer = new JestLexer(new UnbufferedCharStream(reader));
+
+        // The characters a token was lexed from are released,
+        // so each token must keep a copy of its own text
+        lexer.setTokenFactory(new CommonTokenFactory(true));
+
+        parser = new JestParser(new UnbufferedTokenStream<Token>(new DefaultChannelTokenSource(lexer)));
+
+        // An unbuffered stream cannot be rewound to recover
+        // from (or to describe) a syntax error, so
+        // stop at the first one instead
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+    }
+
+    @Override
+    public boolean hasNext() {
+        return parser.getInputStream().LA(1) != Token.EOF;
+    }
+
+    /**
+     * Parse and return the next top-level statement,
+     * either an ImportStatementContext or a StatementTermContext
+     * @return
+     * @throws SyntaxError
+     */
+    @Override
+    public ParserRuleContext next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        try {
+            if (parser.getInputStream().LA(1) == JestParser.IMPORT) {
+                JestParser.ImportStatementContext ctx = parser.importStatement();
+                parser.match(JestParser.SEMICOLON);
+                return ctx;
+            } else {
+                return parser.statementTerm();
+            }
+        } catch (ParseCancellationException e) {
+            Token token = null;
+            if (e.getCause() instanceof RecognitionException) {
+                token = ((RecognitionException) e.getCause()).getOffendingToken();
+            }
+            throw new SyntaxError(token != null ? token : parser.getCurrentToken());
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,179 @@
+package jest.compiler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * A flat table of the variables that are in scope.
+ * Each name maps to a stack of its bindings, innermost
+ * first, so looking up a name takes constant time no
+ * matter how deeply scopes are nested.  Each scope only
+ * records the bindings it declared, which are popped
+ * from their names' stacks when the scope is exited.
+ *
+ * The core names are shared between all tables
+ * and are never copied.
+ */
+public class SymbolTable {
+
+    /**
+     * A declaration of a variable
+     */
+    public static class Binding {
+
+        public final String name;
+
+        /**
+         * The order in which this binding was declared
+         * (unique within a SymbolTable)
+         */
+        public final int index;
+
+        /**
+         * The depth of the scope that declared
+         * this binding (0 is the global scope)
+         */
+        public final int depth;
+
+        /**
+         * The node of the parse tree that declared this binding,
+         * or the token of its name if the validator was told
+         * not to keep the nodes (see Validator.setKeepDeclarations)
+         */
+        public final Object declaration;
+
+        /**
+         * A type tag that later stages of the
+         * compiler may attach to the binding
+         */
+        private Object tag;
+
+        public Binding(String name, int index, int depth, Object declaration) {
+            this.name = name;
+            this.index = index;
+            this.depth = depth;
+            this.declaration = declaration;
+        }
+
+        public boolean isGlobal() {
+            return depth == 0;
+        }
+
+        public Object getTag() {
+            return tag;
+        }
+
+        public void setTag(Object tag) {
+            this.tag = tag;
+        }
+    }
+
+    private final Set<String> coreNames;
+
+    private final Map<String, Deque<Binding>> bindings = new HashMap<String, Deque<Binding>>();
+
+    private final Deque<List<Binding>> scopes = new ArrayDeque<List<Binding>>();
+
+    private int nextIndex = 0;
+
+    /**
+       The global names declared by the other top-level
+       statements of the program, when this table is only
+       used for the top-level statement at index statement
+     */
+    private final TopLevelDeclarations topLevel;
+
+    private final int statement;
+
+    public SymbolTable(Set<String> coreNames) {
+        this(coreNames, null, 0);
+    }
+
+    public SymbolTable(Set<String> coreNames, TopLevelDeclarations topLevel, int statement) {
+        this.coreNames = coreNames;
+        this.topLevel = topLevel;
+        this.statement = statement;
+
+        // The global scope
+        scopes.push(new ArrayList<Binding>());
+    }
+
+    public int depth() {
+        return scopes.size() - 1;
+    }
+
+    public boolean isGlobalScope() {
+        return depth() == 0;
+    }
+
+    public void enterScope() {
+        scopes.push(new ArrayList<Binding>());
+    }
+
+    /**
+       Drop the current scope and all bindings
+       declared in it.  The global scope is never dropped.
+     */
+    public void exitScope() {
+        if (isGlobalScope()) {
+            return;
+        }
+
+        for (Binding binding: scopes.pop()) {
+            Deque<Binding> stack = bindings.get(binding.name);
+            stack.pop();
+            if (stack.isEmpty()) {
+                bindings.remove(binding.name);
+            }
+        }
+    }
+
+    public Binding declare(String name, Object declaration) {
+        Binding binding = new Binding(name, nextIndex++, depth(), declaration);
+
+        Deque<Binding> stack = bindings.get(name);
+        if (stack == null) {
+            stack = new ArrayDeque<Binding>();
+            bindings.put(name, stack);
+        }
+        stack.push(binding);
+        scopes.peek().add(binding);
+
+        return binding;
+    }
+
+    /**
+       Return the innermost binding of the given name,
+       or null if the name is not bound (core names
+       have no binding)
+     */
+    public Binding resolve(String name) {
+        Deque<Binding> stack = bindings.get(name);
+        if (stack != null) {
+            return stack.peek();
+        }
+        return topLevel == null ? null : topLevel.visibleBefore(name, statement);
+    }
+
+    public boolean isCoreName(String name) {
+        return coreNames.contains(name);
+    }
+
+    public boolean isInScope(String name) {
+        return resolve(name) != null || coreNames.contains(name);
+    }
+
+    public boolean isInCurrentScope(String name) {
+        Binding binding = resolve(name);
+        if (binding != null && binding.depth == depth()) {
+            return true;
+        }
+        return isGlobalScope() && coreNames.contains(name);
+    }
+}
@@ -0,0 +1,180 @@
+package jest.compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import jest.compiler.SymbolTable.Binding;
+import jest.grammar.JestParser;
+
+
+/**
+ * The global names declared by each top-level statement
+ * of a program.  Top-level statements only depend on each
+ * other through these names, so once they are known each
+ * statement can be validated on its own (and in parallel),
+ * as though every statement before it had already been.
+ *
+ * A name is visible to a statement if it was first declared
+ * by an earlier statement.  The names declared at the
+ * top level are the same ones the Validator declares in
+ * the global scope: defs, functions, record methods, and
+ * the variables of a top-level let (with the statements
+ * inside that let), but nothing inside a block.  Imported
+ * class names are visible to every statement.
+ *
+ * The records defined by each statement (at any depth)
+ * are collected as well, so that a statement translated
+ * on its own knows the fields of the records before it.
+ */
+public class TopLevelDeclarations {
+
+    private final Map<String, Binding> bindings = new HashMap<String, Binding>();
+
+    private final Map<String, Integer> statements = new HashMap<String, Integer>();
+
+    private final List<JestParser.RecordDefContext> records = new ArrayList<JestParser.RecordDefContext>();
+
+    private final List<Integer> recordStatements = new ArrayList<Integer>();
+
+    private int nextIndex = 0;
+
+    public TopLevelDeclarations(JestParser.SourceCodeContext tree) {
+        for (JestParser.ImportStatementContext statement: tree.importStatement()) {
+            declare(Validator.importedName(statement), statement, -1);
+        }
+
+        List<JestParser.StatementTermContext> terms = tree.statementTerm();
+        for (int i = 0; i < terms.size(); ++i) {
+            collect(terms.get(i), i);
+            collectRecords(terms.get(i), i);
+        }
+    }
+
+    private void collectRecords(ParseTree node, int statement) {
+        if (node instanceof JestParser.RecordDefContext) {
+            records.add((JestParser.RecordDefContext) node);
+            recordStatements.add(statement);
+        }
+        for (int i = 0; i < node.getChildCount(); ++i) {
+            collectRecords(node.getChild(i), statement);
+        }
+    }
+
+    private void declare(Token name, Object declaration, int statement) {
+        if (!statements.containsKey(name.getText())) {
+            bindings.put(name.getText(), new Binding(name.getText(), nextIndex++, 0, declaration));
+            statements.put(name.getText(), statement);
+        }
+    }
+
+    private void collect(JestParser.StatementTermContext term, int statement) {
+        if (term.statement() != null && term.statement().defAssignment() != null) {
+            JestParser.DefAssignmentContext def = term.statement().defAssignment();
+            declare(def.name, def, statement);
+        } else if (term.functionDef() != null) {
+            declare(term.functionDef().name, term.functionDef(), statement);
+        } else if (term.recordDef() != null) {
+            for (JestParser.ImplementationDefContext imp: term.recordDef().implementationDef()) {
+                for (JestParser.MethodDefContext method: imp.methodDef()) {
+                    declare(method.name, method, statement);
+                }
+            }
+        } else if (term.varScope() != null) {
+            for (TerminalNode node: term.varScope().ID()) {
+                declare(node.getSymbol(), node, statement);
+            }
+            for (JestParser.StatementTermContext inner: term.varScope().statementTerm()) {
+                collect(inner, statement);
+            }
+        }
+    }
+
+    public int size() {
+        return bindings.size();
+    }
+
+    /**
+       Return the binding of a global name declared
+       by a top-level statement, or null
+     */
+    public Binding getBinding(String name) {
+        return bindings.get(name);
+    }
+
+    /**
+       Return the global names first declared
+       by the given top-level statement
+     */
+    public List<String> declaredBy(int statement) {
+        List<String> names = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry: statements.entrySet()) {
+            if (entry.getValue() == statement) {
+                names.add(entry.getKey());
+            }
+        }
+        return names;
+    }
+
+    /**
+       Return the names of the fields of each record
+       defined by the statements before the given one,
+       by record name, in the order they were defined
+     */
+    public Map<String, List<String>> recordsBefore(int statement) {
+        Map<String, List<String>> fields = new LinkedHashMap<String, List<String>>();
+        for (int i = 0; i < records.size() && recordStatements.get(i) < statement; ++i) {
+            JestParser.RecordDefContext record = records.get(i);
+            List<String> names = new ArrayList<String>();
+            names.add(record.first.getText());
+            for (Token field: record.field) {
+                names.add(field.getText());
+            }
+            fields.put(record.name.getText(), names);
+        }
+        return fields;
+    }
+
+    /**
+       Return every name that appears in the given
+       part of a program, which includes every
+       global that it may refer to
+     */
+    public static Set<String> referencedNames(ParseTree node) {
+        Set<String> names = new HashSet<String>();
+        collectNames(node, names);
+        return names;
+    }
+
+    private static void collectNames(ParseTree node, Set<String> names) {
+        if (node instanceof TerminalNode) {
+            if (((TerminalNode) node).getSymbol().getType() == JestParser.ID) {
+                names.add(node.getText());
+            }
+            return;
+        }
+        for (int i = 0; i < node.getChildCount(); ++i) {
+            collectNames(node.getChild(i), names);
+        }
+    }
+
+    /**
+       Return the binding of the given name if it was
+       declared before the given statement, else null
+     */
+    public Binding visibleBefore(String name, int statement) {
+        Integer declaredIn = statements.get(name);
+        if (declaredIn != null && declaredIn < statement) {
+            return bindings.get(name);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,262 @@
+package jest.compiler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import jest.compiler.SymbolTable.Binding;
+import jest.grammar.JestParser;
+
+
+/**
+ * Finds the top-level statements of a program that
+ * are needed to run it, so the definitions that the
+ * program never uses (typically most of a shared
+ * library of functions) are not translated or evaluated.
+ *
+ * Every statement with side effects is needed, as is
+ * the last statement, whose value is the value of the
+ * program.  A function, a record, or a def whose value
+ * is computed without calling anything (or anything
+ * that may throw, see isPure) is only needed
+ * if a needed statement refers to one of the names it
+ * defines.  A reference is any name in a statement
+ * that the Validator didn't resolve to a local variable
+ * (which includes the names of methods and records), so
+ * a definition is kept whenever it might be used.
+ */
+public class TreeShaker {
+
+    private final List<JestParser.StatementTermContext> statements;
+
+    private final Validator validator;
+
+    private final Set<String> records = new HashSet<String>();
+
+    private final Map<String, List<Integer>> definitions = new HashMap<String, List<Integer>>();
+
+    /**
+     * @param tree A program
+     * @param validator A validator that has walked the
+     *                  whole program while recording
+     *                  resolutions, and so holds the
+     *                  resolution of every reference in it
+     */
+    public TreeShaker(JestParser.SourceCodeContext tree, Validator validator) {
+        this.statements = tree.statementTerm();
+        this.validator = validator;
+
+        for (JestParser.StatementTermContext statement: statements) {
+            if (statement.recordDef() != null) {
+                records.add(statement.recordDef().name.getText());
+            }
+        }
+        for (int i = 0; i < statements.size(); ++i) {
+            for (String name: definedNames(statements.get(i))) {
+                List<Integer> definers = definitions.get(name);
+                if (definers == null) {
+                    definers = new ArrayList<Integer>();
+                    definitions.put(name, definers);
+                }
+                definers.add(i);
+            }
+        }
+    }
+
+    /**
+     * The names defined by a statement that
+     * may be removed if nothing uses them
+     */
+    private List<String> definedNames(JestParser.StatementTermContext statement) {
+        List<String> names = new ArrayList<String>();
+        if (statement.functionDef() != null) {
+            names.add(statement.functionDef().name.getText());
+        } else if (statement.recordDef() != null) {
+            names.add(statement.recordDef().name.getText());
+            for (JestParser.ImplementationDefContext imp: statement.recordDef().implementationDef()) {
+                for (JestParser.MethodDefContext method: imp.methodDef()) {
+                    names.add(method.name.getText());
+                }
+            }
+        } else if (isPureDef(statement)) {
+            names.add(statement.statement().defAssignment().name.getText());
+        }
+        return names;
+    }
+
+    private boolean isPureDef(JestParser.StatementTermContext statement) {
+        return statement.statement() != null
+            && statement.statement().defAssignment() != null
+            && isPure(statement.statement().defAssignment().expression());
+    }
+
+    /**
+     * Whether evaluating the given part of an expression
+     * only computes a value, and can't throw.  Calls of
+     * functions, methods or Java constructors may have side
+     * effects, and blocks may define globals.  Indexing may
+     * be out of bounds, and a division may be by zero, so
+     * only a division of number literals by non-zero ones
+     * is pure.  The body of a lambda isn't run when the
+     * lambda is created.
+     */
+    private boolean isPure(ParseTree node) {
+        if (node instanceof JestParser.LambdaContext) {
+            return true;
+        }
+        if (node instanceof JestParser.FunctionCallContext
+            || node instanceof JestParser.MethodCallContext
+            || node instanceof JestParser.ForLoopContext
+            || node instanceof JestParser.BlockContext
+            || node instanceof JestParser.ClojureGetContext) {
+            return false;
+        }
+        if (node instanceof JestParser.ArithmeticTermContext
+            && !isSafeDivision((JestParser.ArithmeticTermContext) node)) {
+            return false;
+        }
+        if (node instanceof JestParser.RecordConstructorContext
+            && !records.contains(((JestParser.RecordConstructorContext) node).name.getText())) {
+            return false;
+        }
+        for (int i = 0; i < node.getChildCount(); ++i) {
+            if (!isPure(node.getChild(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether a product or quotient has no division,
+     * or only divides number literals by non-zero ones
+     */
+    private static boolean isSafeDivision(JestParser.ArithmeticTermContext term) {
+        boolean divides = false;
+        for (Token op: term.op) {
+            divides |= op.getType() == JestParser.DIV;
+        }
+        if (!divides) {
+            return true;
+        }
+        if (numberLiteral(term.a) == null) {
+            return false;
+        }
+        for (int i = 0; i < term.b.size(); ++i) {
+            Double value = numberLiteral(term.b.get(i));
+            if (value == null || (term.op.get(i).getType() == JestParser.DIV && value == 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The value of an operand that is a number
+     * literal, or null if it is anything else
+     */
+    private static Double numberLiteral(JestParser.ExpressionComposedContext operand) {
+        JestParser.ExpressionAtomContext atom = operand.expressionAtom();
+        if (atom == null || atom.NUMBER() == null) {
+            return null;
+        }
+        return Double.valueOf(atom.NUMBER().getText());
+    }
+
+    private boolean isRemovable(int statement) {
+        return statement != statements.size() - 1
+            && !definedNames(statements.get(statement)).isEmpty();
+    }
+
+    /**
+     * Whether a name is a parameter, local variable
+     * or loop variable being declared (or a modifier,
+     * or part of a memo option), and so can't refer
+     * to a global
+     */
+    private static boolean declaresLocal(ParseTree name) {
+        ParseTree parent = name.getParent();
+        return parent instanceof JestParser.FunctionDefParamsContext
+            || parent instanceof JestParser.VarScopeContext
+            || parent instanceof JestParser.ForLoopContext
+            || parent instanceof JestParser.MemoModifierContext
+            || parent instanceof JestParser.MemoOptionContext;
+    }
+
+    /**
+     * Add the names that the given part of a
+     * statement may refer to to the given set
+     */
+    private void collectReferences(ParseTree node, Set<String> names) {
+        if (node instanceof TerminalNode) {
+            Token token = ((TerminalNode) node).getSymbol();
+            if (token.getType() == JestParser.ID && !declaresLocal(node)) {
+                Binding binding = validator.getResolution(node);
+                if (binding == null || binding.isGlobal()) {
+                    names.add(token.getText());
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < node.getChildCount(); ++i) {
+            collectReferences(node.getChild(i), names);
+        }
+    }
+
+    /**
+     * Return whether each top-level statement
+     * of the program is needed to run it
+     */
+    public boolean[] neededStatements() {
+        boolean[] needed = new boolean[statements.size()];
+        Deque<Integer> pending = new ArrayDeque<Integer>();
+        for (int i = 0; i < statements.size(); ++i) {
+            if (!isRemovable(i)) {
+                needed[i] = true;
+                pending.add(i);
+            }
+        }
+
+        while (!pending.isEmpty()) {
+            Set<String> names = new HashSet<String>();
+            collectReferences(statements.get(pending.pop()), names);
+            for (String name: names) {
+                List<Integer> definers = definitions.get(name);
+                if (definers == null) {
+                    continue;
+                }
+                for (int definer: definers) {
+                    if (!needed[definer]) {
+                        needed[definer] = true;
+                        pending.add(definer);
+                    }
+                }
+            }
+        }
+        return needed;
+    }
+
+    /**
+     * Return the top-level statements that
+     * are needed to run the program, in order
+     */
+    public List<JestParser.StatementTermContext> neededStatementTerms() {
+        boolean[] needed = neededStatements();
+        List<JestParser.StatementTermContext> terms = new ArrayList<JestParser.StatementTermContext>();
+        for (int i = 0; i < needed.length; ++i) {
+            if (needed[i]) {
+                terms.add(statements.get(i));
+            }
+        }
+        return terms;
+    }
+}
@@ -1,33 +1,74 @@
 package jest.compiler;
 
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import jest.grammar.JestBaseListener;
 import jest.grammar.JestParser;
 
 import org.antlr.v4.runtime.Token;
 
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
+import jest.compiler.SymbolTable.Binding;
+
 
 public class Validator extends JestBaseListener {
 
-    private final Stack<Scope> scopes;
+    private final SymbolTable symbols;
+
+    /**
+       The binding that each variable reference
+       (the ID node of an expression atom or a function
+       call) resolved to.  References to core functions
+       have no binding.  Only recorded when a consumer
+       asks for them (see setRecordResolutions), as they
+       keep every statement's parse tree alive for as
+       long as the validator.
+     */
+    private final ParseTreeProperty<Binding> resolutions = new ParseTreeProperty<Binding>();
+
+    private boolean recordResolutions = false;
 
-    public Scope currentScope() {
-        return scopes.peek();
+    private boolean keepDeclarations = true;
+
+    private final boolean collectErrors;
+
+    private final List<ValidationError> errors = new ArrayList<ValidationError>();
+
+    private static final ConcurrentMap<String, Boolean> javaLangClasses = new ConcurrentHashMap<String, Boolean>();
+
+    public SymbolTable getSymbolTable() {
+        return symbols;
     }
 
     public Validator() {
-        scopes = new Stack<Scope>();
+        this(false);
+    }
 
-        // Create the global scope
-        scopes.push(new Scope(null));
+    /**
+       Create a validator.  If collectErrors is true,
+       validation errors are recorded and validation
+       continues, otherwise the first error is thrown.
+     */
+    public Validator(boolean collectErrors) {
+        this.collectErrors = collectErrors;
+        this.symbols = new SymbolTable(Core.clojureCore);
+    }
 
-        // Add core functions to the scope
-        for (String func: Core.clojureCore) {
-            scopes.peek().addToScope(func, null);
-        }
+    /**
+       Create a validator for a single top-level statement
+       of a program, which sees the global names declared by
+       the statements before it as already declared
+     */
+    public Validator(boolean collectErrors, TopLevelDeclarations topLevel, int statement) {
+        this.collectErrors = collectErrors;
+        this.symbols = new SymbolTable(Core.clojureCore, topLevel, statement);
     }
 
     public class ValidationError extends RuntimeException {
@@ -50,45 +91,151 @@ public class Validator extends JestBaseListener {
         }
     }
 
+    public class InvalidMemoOption extends ValidationError {
+        public InvalidMemoOption(Token key) {
+            super(String.format("Error - Line %s: Invalid memo option: %s",
+                                key.getLine(), key.getText()));
+        }
+    }
+
+    /**
+       Either throw the given error or, if this
+       validator collects errors, record it
+     */
+    public void report(ValidationError error) {
+        if (collectErrors) {
+            errors.add(error);
+        } else {
+            throw error;
+        }
+    }
+
+    /**
+       Return the errors recorded so far, in
+       the order in which they were found
+     */
+    public List<ValidationError> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    /**
+       Record the binding that each variable reference
+       resolves to, for getResolution.  Must be set before
+       the validator walks the references.
+     */
+    public void setRecordResolutions(boolean recordResolutions) {
+        this.recordResolutions = recordResolutions;
+    }
+
     /**
-       Create a new scope and return that scope
+       Whether each global binding keeps the node of the parse
+       tree that declared it (the default).  If false, it keeps
+       only the token of its name, so that the bindings don't
+       keep the parse tree of every statement alive when a
+       program is validated one statement at a time (see
+       StatementStream).  An import keeps its statement, which
+       has no subtree, as imported classes are found with it.
      */
-    public static Scope createNewScope(Stack<Scope> scopes) {
-        Scope outerScope = scopes.peek();
-        Scope newScope = new Scope(outerScope);
-        scopes.push(newScope);
-        return newScope;
+    public void setKeepDeclarations(boolean keepDeclarations) {
+        this.keepDeclarations = keepDeclarations;
     }
 
     /**
-       Drop the highest scope and return the
-       new current scope
+       Return the binding that the given variable
+       reference resolved to, or null if it is a core
+       function or was not declared (or resolutions
+       are not being recorded)
      */
-    public static Scope dropCurrentScope(Stack<Scope> scopes) {
-        if (scopes.peek().isGlobalScope()) {
-            return scopes.peek();
+    public Binding getResolution(ParseTree node) {
+        return resolutions.get(node);
+    }
+
+    /**
+       Whether the given name is the simple name of
+       a class in java.lang, which every program
+       can use without importing it
+     */
+    public static boolean isJavaLangClass(String name) {
+        if (name.isEmpty() || !Character.isUpperCase(name.charAt(0))) {
+            return false;
+        }
+
+        Boolean found = javaLangClasses.get(name);
+        if (found == null) {
+            try {
+                Class.forName("java.lang." + name, false, Validator.class.getClassLoader());
+                found = true;
+            } catch (ClassNotFoundException e) {
+                found = false;
+            }
+            javaLangClasses.put(name, found);
+        }
+        return found;
+    }
+
+    /**
+       The simple name that an import statement
+       declares (the last part of the class name)
+     */
+    public static Token importedName(JestParser.ImportStatementContext ctx) {
+        return ctx.b.isEmpty() ? ctx.a : ctx.b.get(ctx.b.size() - 1);
+    }
+
+    /**
+       Check that the given variable reference is in scope
+       and record the binding that it resolves to
+     */
+    private void resolve(TerminalNode node) {
+        String name = node.getText();
+        if (!symbols.isInScope(name) && !isJavaLangClass(name)) {
+            report(new NotDeclared(node));
+            return;
+        }
+
+        Binding binding = symbols.resolve(name);
+        if (binding != null && recordResolutions) {
+            resolutions.put(node, binding);
+        }
+    }
+
+    /**
+       Declare the given name in the current scope,
+       unless it has already been declared there
+     */
+    private void declare(Token name, Object declaration) {
+        if (!keepDeclarations && symbols.isGlobalScope()
+            && !(declaration instanceof JestParser.ImportStatementContext)) {
+            declaration = name;
+        }
+
+        if (symbols.isInCurrentScope(name.getText())) {
+            report(new AlreadyDeclared(name));
         } else {
-            scopes.pop();
-            return scopes.peek();
+            symbols.declare(name.getText(), declaration);
         }
     }
 
 
+    @Override
+    public void enterImportStatement(JestParser.ImportStatementContext ctx) {
+        declare(importedName(ctx), ctx);
+    }
+
+
     @Override
     public void enterFunctionDef(JestParser.FunctionDefContext ctx) {
-        if (currentScope().isInCurrentScope(ctx.name.getText())) {
-            throw new AlreadyDeclared(ctx.name);
-        } else {
-            currentScope().addToScope(ctx.name.getText(), ctx);
-        }
+        declare(ctx.name, ctx);
 
-        Scope functionScope = createNewScope(scopes);
+        symbols.enterScope();
 
-        // TODO: Include the function parameters in the current scope
         JestParser.FunctionDefParamsContext params = ctx.functionDefParams();
 
         for (TerminalNode node: params.ID()) {
-            currentScope().addToScope(node.getText(), node);
+            symbols.declare(node.getText(), node);
         }
 
     }
@@ -96,111 +243,106 @@ public class Validator extends JestBaseListener {
 
     @Override
     public void exitFunctionDef(JestParser.FunctionDefContext ctx) {
-        dropCurrentScope(scopes);
+        symbols.exitScope();
+    }
+
+
+    @Override
+    public void enterMemoModifier(JestParser.MemoModifierContext ctx) {
+        for (Token key: new MemoOptions(ctx).getInvalid()) {
+            report(new InvalidMemoOption(key));
+        }
     }
 
 
     @Override
     public void enterForLoop(JestParser.ForLoopContext ctx) {
-        Scope loopScope = createNewScope(scopes);
-        // TODO: Include the loop parameters in the current scope
+        symbols.enterScope();
 
         for (TerminalNode node: ctx.ID()) {
-            currentScope().addToScope(node.getText(), node);
+            if (node.getSymbol() != ctx.parallel) {
+                symbols.declare(node.getText(), node);
+            }
         }
     }
 
     @Override
     public void exitForLoop(JestParser.ForLoopContext ctx) {
-        dropCurrentScope(scopes);
+        symbols.exitScope();
     }
 
 
     @Override
     public void enterMethodDef(JestParser.MethodDefContext ctx) {
-        if (currentScope().isInCurrentScope(ctx.name.getText())) {
-            throw new AlreadyDeclared(ctx.name);
-        } else {
-            currentScope().addToScope(ctx.name.getText(), ctx);
-        }
+        declare(ctx.name, ctx);
 
-        Scope functionScope = createNewScope(scopes);
+        symbols.enterScope();
 
-        // TODO: Include the function parameters in the current scope
         JestParser.FunctionDefParamsContext params = ctx.functionDefParams();
 
         for (TerminalNode node: params.ID()) {
-            currentScope().addToScope(node.getText(), node);
+            symbols.declare(node.getText(), node);
         }
     }
 
     @Override
     public void exitMethodDef(JestParser.MethodDefContext ctx) {
-        dropCurrentScope(scopes);
+        symbols.exitScope();
     }
 
 
     @Override
     public void enterBlock(JestParser.BlockContext ctx) {
-        Scope loopScope = createNewScope(scopes);
+        symbols.enterScope();
     }
 
     @Override
     public void exitBlock(JestParser.BlockContext ctx) {
-        dropCurrentScope(scopes);
+        symbols.exitScope();
     }
 
 
     public void enterConditional(JestParser.ConditionalContext ctx) {
-        Scope loopScope = createNewScope(scopes);
+        symbols.enterScope();
     }
 
 
     public void exitConditional(JestParser.ConditionalContext ctx) {
-        dropCurrentScope(scopes);
+        symbols.exitScope();
     }
 
 
     public void enterLambda(JestParser.LambdaContext ctx) {
-        Scope scope = createNewScope(scopes);
+        symbols.enterScope();
         JestParser.FunctionDefParamsContext params = ctx.functionDefParams();
 
         for (TerminalNode node: params.ID()) {
-            currentScope().addToScope(node.getText(), node);
+            symbols.declare(node.getText(), node);
         }
 
     }
 
     public void exitLambda(JestParser.LambdaContext ctx) {
-        dropCurrentScope(scopes);
+        symbols.exitScope();
     }
 
 
     @Override
     public void enterVarScope(JestParser.VarScopeContext ctx) {
         for (TerminalNode node: ctx.ID()) {
-            String name = node.getText();
-            if (currentScope().isInCurrentScope(name)) {
-                throw new AlreadyDeclared(node.getSymbol());
-            } else {
-                currentScope().addToScope(node.getText(), node);
-            }
+            declare(node.getSymbol(), node);
         }
     }
 
     @Override
     public void exitVarScope(JestParser.VarScopeContext ctx) {
-        dropCurrentScope(scopes);
+        symbols.exitScope();
     }
 
 
     @Override
     public void enterDefAssignment(JestParser.DefAssignmentContext ctx) {
-        if (currentScope().isInCurrentScope(ctx.name.getText())) {
-            throw new AlreadyDeclared(ctx.name);
-        } else {
-            currentScope().addToScope(ctx.name.getText(), ctx);
-        }
+        declare(ctx.name, ctx);
     }
 
     @Override
@@ -209,16 +351,12 @@ public class Validator extends JestBaseListener {
         // If the expression is a variable, ensure the variable
         // has been declared
         if (ctx.ID() != null) {
-            if (!currentScope().isInScope(ctx.ID().getText())) {
-                throw new NotDeclared(ctx.ID());
-            }
+            resolve(ctx.ID());
         }
     }
 
     @Override
     public void enterFunctionCall(JestParser.FunctionCallContext ctx) {
-        if (!currentScope().isInScope(ctx.ID().getText())) {
-            throw new NotDeclared(ctx.ID());
-        }
+        resolve(ctx.ID());
     }
 }
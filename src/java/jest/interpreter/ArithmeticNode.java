@@ -0,0 +1,111 @@
+package jest.interpreter;
+
+import clojure.lang.Numbers;
+
+
+/**
+ * A binary arithmetic operation.  A new node starts out
+ * uninitialized and, the first time it runs, rewrites
+ * itself to a node that does long arithmetic directly if
+ * both operands are longs, or to a generic node that uses
+ * clojure.lang.Numbers otherwise.  A long node that sees
+ * any other operand rewrites itself to the generic node.
+ * Both give the same result (or error) as Clojure.
+ */
+public abstract class ArithmeticNode extends Node {
+
+    public enum Op {ADD, SUBTRACT, MULTIPLY, DIVIDE}
+
+    protected final Op op;
+
+    protected ArithmeticNode(Op op, Node left, Node right) {
+        super(left, right);
+        this.op = op;
+    }
+
+    public static ArithmeticNode create(String op, Node left, Node right) {
+        switch (op) {
+            case "+": return new Uninitialized(Op.ADD, left, right);
+            case "-": return new Uninitialized(Op.SUBTRACT, left, right);
+            case "*": return new Uninitialized(Op.MULTIPLY, left, right);
+            case "/": return new Uninitialized(Op.DIVIDE, left, right);
+            default: throw new IllegalArgumentException("Unknown arithmetic operator: " + op);
+        }
+    }
+
+
+    static Object generic(Op op, Object left, Object right) {
+        switch (op) {
+            case ADD: return Numbers.add(left, right);
+            case SUBTRACT: return Numbers.minus(left, right);
+            case MULTIPLY: return Numbers.multiply(left, right);
+            default: return Numbers.divide(left, right);
+        }
+    }
+
+
+    static class Uninitialized extends ArithmeticNode {
+
+        Uninitialized(Op op, Node left, Node right) {
+            super(op, left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            Object left = children[0].execute(frame);
+            Object right = children[1].execute(frame);
+
+            // Dividing longs gives a ratio, so
+            // division is never specialized
+            if (left instanceof Long && right instanceof Long && op != Op.DIVIDE) {
+                return replace(new LongArithmetic(op, children[0], children[1])).compute(left, right);
+            }
+            return replace(new Generic(op, children[0], children[1])).compute(left, right);
+        }
+    }
+
+
+    static class LongArithmetic extends ArithmeticNode {
+
+        LongArithmetic(Op op, Node left, Node right) {
+            super(op, left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return compute(children[0].execute(frame), children[1].execute(frame));
+        }
+
+        Object compute(Object left, Object right) {
+            if (left instanceof Long && right instanceof Long) {
+                // These throw on overflow, just as
+                // Clojure's checked arithmetic does
+                long a = (Long) left;
+                long b = (Long) right;
+                switch (op) {
+                    case ADD: return Numbers.add(a, b);
+                    case SUBTRACT: return Numbers.minus(a, b);
+                    default: return Numbers.multiply(a, b);
+                }
+            }
+            return replace(new Generic(op, children[0], children[1])).compute(left, right);
+        }
+    }
+
+
+    static class Generic extends ArithmeticNode {
+
+        Generic(Op op, Node left, Node right) {
+            super(op, left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return compute(children[0].execute(frame), children[1].execute(frame));
+        }
+
+        Object compute(Object left, Object right) {
+            return generic(op, left, right);
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package jest.interpreter;
+
+import clojure.lang.Keyword;
+import clojure.lang.Namespace;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.v4.runtime.Token;
+
+import jest.compiler.MemoOptions;
+import jest.grammar.JestParser;
+
+
+/**
+ * Builds the interpreter's AST from a Jest parse tree.
+ *
+ * Local variables are resolved here: each is given a slot
+ * in the frame of the function that declares it, and a
+ * read of a local is a (depth, slot) pair, where depth
+ * counts the functions between the read and the local.
+ * Any other name is global.
+ */
+class AstBuilder {
+
+    /**
+     * The locals of a function (or of the top level of
+     * a program), with a map for each nested block
+     */
+    private static class FunctionScope {
+
+        final FunctionScope parent;
+
+        final Deque<Map<String, Integer>> blocks = new ArrayDeque<Map<String, Integer>>();
+
+        int size = 0;
+
+        FunctionScope(FunctionScope parent) {
+            this.parent = parent;
+            blocks.push(new HashMap<String, Integer>());
+        }
+
+        int declare(String name) {
+            int slot = size++;
+            blocks.peek().put(name, slot);
+            return slot;
+        }
+
+        Integer lookup(String name) {
+            for (Map<String, Integer> block: blocks) {
+                Integer slot = block.get(name);
+                if (slot != null) {
+                    return slot;
+                }
+            }
+            return null;
+        }
+
+        boolean hasLocals() {
+            for (Map<String, Integer> block: blocks) {
+                if (!block.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+
+    private final Interpreter interpreter;
+
+    private final Namespace ns;
+
+    private FunctionScope scope = null;
+
+    AstBuilder(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.ns = interpreter.getNamespace();
+    }
+
+
+    Nodes.Root program(JestParser.SourceCodeContext ctx) {
+        scope = new FunctionScope(null);
+
+        List<Node> statements = new ArrayList<Node>();
+        for (JestParser.ImportStatementContext statement: ctx.importStatement()) {
+            statements.add(new Nodes.Eval(interpreter, statement));
+        }
+        for (JestParser.StatementTermContext statement: ctx.statementTerm()) {
+            statements.add(statementTerm(statement));
+        }
+
+        Nodes.Root root = new Nodes.Root(new Nodes.Sequence(statements), scope.size);
+        scope = null;
+        return root;
+    }
+
+
+    private static <T> List<T> merge(T first, List<T> rest) {
+        List<T> items = new ArrayList<T>();
+        if (first != null) {
+            items.add(first);
+        }
+        items.addAll(rest);
+        return items;
+    }
+
+
+    private Node variable(String name) {
+        int depth = 0;
+        for (FunctionScope s = scope; s != null; s = s.parent) {
+            Integer slot = s.lookup(name);
+            if (slot != null) {
+                return new Nodes.LocalRead(depth, slot);
+            }
+            ++depth;
+        }
+        return new Nodes.Global(ns, Symbol.intern(name));
+    }
+
+
+    private Node call(String name, List<Node> args) {
+        return CallNode.create(variable(name), args);
+    }
+
+
+    private Node statementTerm(JestParser.StatementTermContext ctx) {
+        if (ctx.statement() != null) {
+            return statement(ctx.statement());
+        } else if (ctx.functionDef() != null) {
+            return functionDef(ctx.functionDef());
+        } else if (ctx.recordDef() != null) {
+            return new Nodes.Eval(interpreter, ctx.recordDef());
+        } else if (ctx.block() != null) {
+            return block(ctx.block());
+        } else if (ctx.varScope() != null) {
+            return varScope(ctx.varScope());
+        }
+        throw new IllegalArgumentException("Unexpected statement: " + ctx.getText());
+    }
+
+
+    private Node statement(JestParser.StatementContext ctx) {
+        if (ctx.defAssignment() != null) {
+            JestParser.DefAssignmentContext def = ctx.defAssignment();
+            return new Nodes.Def(ns, Symbol.intern(def.name.getText()), expression(def.expression()));
+        }
+        return expression(ctx.expression());
+    }
+
+
+    private Node expression(JestParser.ExpressionContext ctx) {
+        JestParser.ComparisonExpressionContext comparison = ctx.comparisonExpression();
+        Node left = arithmeticExpression(comparison.a);
+        if (comparison.op == null) {
+            return left;
+        }
+        return ComparisonNode.create(comparison.op.getText(), left, arithmeticExpression(comparison.b));
+    }
+
+
+    private Node arithmeticExpression(JestParser.ArithmeticExpressionContext ctx) {
+        Node node = arithmeticTerm(ctx.a);
+        for (int i = 0; i < ctx.op.size(); ++i) {
+            node = ArithmeticNode.create(ctx.op.get(i).getText(), node, arithmeticTerm(ctx.b.get(i)));
+        }
+        return node;
+    }
+
+
+    private Node arithmeticTerm(JestParser.ArithmeticTermContext ctx) {
+        Node node = expressionComposed(ctx.a);
+        for (int i = 0; i < ctx.op.size(); ++i) {
+            node = ArithmeticNode.create(ctx.op.get(i).getText(), node, expressionComposed(ctx.b.get(i)));
+        }
+        return node;
+    }
+
+
+    private Node expressionComposed(JestParser.ExpressionComposedContext ctx) {
+        if (ctx.methodCallChain() != null) {
+            return methodCallChain(ctx.methodCallChain());
+        }
+        return expressionAtom(ctx.expressionAtom());
+    }
+
+
+    /**
+     * obj.func(x) calls func(obj, x), or the Java method func
+     * of obj if there is no such function (see InteropNode),
+     * and obj->func(x) calls func(x, obj)
+     */
+    private Node methodCallChain(JestParser.MethodCallChainContext ctx) {
+        if (ctx.methodCall() != null) {
+            JestParser.MethodCallContext method = ctx.methodCall();
+            Node obj = expressionAtom(method.obj);
+            return methodCall(method.func.getText(), obj, method.methodParams(),
+                              method.PERIOD() != null, obj instanceof Nodes.Global);
+        }
+
+        Node obj = methodCallChain(ctx.chain);
+        if (ctx.PERIOD() != null) {
+            return methodCall(ctx.a.getText(), obj, ctx.b, true, false);
+        }
+        return methodCall(ctx.c.getText(), obj, ctx.d, false, false);
+    }
+
+
+    private Node methodCall(String name, Node obj, JestParser.MethodParamsContext params,
+                            boolean objFirst, boolean named) {
+        // The function is resolved before the arguments
+        // are built, in the order of the generated code
+        Node fn = variable(name);
+        List<Node> args = new ArrayList<Node>();
+        if (objFirst) {
+            args.add(obj);
+            args.addAll(methodParams(params));
+        } else {
+            args.addAll(methodParams(params));
+            args.add(obj);
+        }
+        if (objFirst && fn instanceof Nodes.Global) {
+            return new InteropNode.Method(ns, Symbol.intern(name), named, args.toArray(new Node[args.size()]));
+        }
+        return CallNode.create(fn, args);
+    }
+
+
+    private List<Node> methodParams(JestParser.MethodParamsContext ctx) {
+        List<Node> params = new ArrayList<Node>();
+        if (ctx.expressionList() != null) {
+            for (JestParser.ExpressionContext expression: merge(ctx.expressionList().a, ctx.expressionList().b)) {
+                params.add(expression(expression));
+            }
+        } else if (ctx.expression() != null) {
+            params.add(expression(ctx.expression()));
+        }
+        return params;
+    }
+
+
+    private Node expressionAtom(JestParser.ExpressionAtomContext ctx) {
+        if (ctx.NUMBER() != null) {
+            return new Nodes.Constant(RT.readString(ctx.NUMBER().getText()));
+        } else if (ctx.TRUE() != null) {
+            return new Nodes.Constant(Boolean.TRUE);
+        } else if (ctx.FALSE() != null) {
+            return new Nodes.Constant(Boolean.FALSE);
+        } else if (ctx.NIL() != null) {
+            return new Nodes.Constant(null);
+        } else if (ctx.ID() != null) {
+            return variable(ctx.ID().getText());
+        } else if (ctx.STRING() != null) {
+            return new Nodes.Constant(RT.readString(ctx.STRING().getText()));
+        } else if (ctx.SYMBOL() != null) {
+            return new Nodes.Constant(Keyword.intern(ctx.SYMBOL().getText().substring(1)));
+        } else if (ctx.clojureVector() != null) {
+            return clojureVector(ctx.clojureVector());
+        } else if (ctx.clojureMap() != null) {
+            return clojureMap(ctx.clojureMap());
+        } else if (ctx.functionCall() != null) {
+            JestParser.FunctionCallContext call = ctx.functionCall();
+            return call(call.ID().getText(), methodParams(call.methodParams()));
+        } else if (ctx.clojureGet() != null) {
+            JestParser.ClojureGetContext get = ctx.clojureGet();
+            return new Nodes.Get(variable(get.a.getText()), expression(get.b));
+        } else if (ctx.forLoop() != null) {
+            return forLoop(ctx.forLoop());
+        } else if (ctx.conditional() != null) {
+            return conditional(ctx.conditional());
+        } else if (ctx.lambda() != null) {
+            JestParser.LambdaContext lambda = ctx.lambda();
+            return function(null, params(lambda.functionDefParams()), lambda.body, null);
+        } else if (ctx.memberGetChain() != null) {
+            return memberGetChain(ctx.memberGetChain());
+        } else if (ctx.recordConstructor() != null) {
+            return recordConstructor(ctx.recordConstructor());
+        } else if (ctx.block() != null) {
+            return block(ctx.block());
+        } else if (ctx.expression() != null) {
+            return expression(ctx.expression());
+        }
+        throw new IllegalArgumentException("Unexpected expression: " + ctx.getText());
+    }
+
+
+    private Node clojureVector(JestParser.ClojureVectorContext ctx) {
+        List<Node> items = new ArrayList<Node>();
+        if (ctx.a != null) {
+            for (JestParser.ExpressionContext item: merge(ctx.a, ctx.b)) {
+                items.add(expression(item));
+            }
+        }
+        return new Nodes.Vector(items);
+    }
+
+
+    private Node clojureMap(JestParser.ClojureMapContext ctx) {
+        List<Node> items = new ArrayList<Node>();
+        if (ctx.a != null) {
+            List<JestParser.ExpressionContext> keys = merge(ctx.a, ctx.c);
+            List<JestParser.ExpressionContext> values = merge(ctx.b, ctx.d);
+            for (int i = 0; i < keys.size(); ++i) {
+                items.add(expression(keys.get(i)));
+                items.add(expression(values.get(i)));
+            }
+        }
+        return new Nodes.Map(items);
+    }
+
+
+    private Node memberGetChain(JestParser.MemberGetChainContext ctx) {
+        JestParser.MemberGetContext member = ctx.memberGet();
+        Node record = variable(member.record.getText());
+        Keyword key = Keyword.intern(member.member.getText());
+        Node node = record instanceof Nodes.Global ? new InteropNode.Member(record, key) : new Nodes.KeywordGet(record, key);
+        for (Token field: ctx.a) {
+            node = new Nodes.KeywordGet(node, Keyword.intern(field.getText()));
+        }
+        return node;
+    }
+
+
+    private Node recordConstructor(JestParser.RecordConstructorContext ctx) {
+        String name = ctx.name.getText();
+        if (ctx.firstKey == null) {
+            List<Node> args = methodParams(ctx.methodParams());
+            return new InteropNode.New(ns, Symbol.intern(name), args.toArray(new Node[args.size()]));
+        }
+
+        List<Token> keys = merge(ctx.firstKey, ctx.key);
+        List<JestParser.ExpressionContext> values = merge(ctx.firstExp, ctx.exp);
+        List<Node> items = new ArrayList<Node>();
+        for (int i = 0; i < keys.size(); ++i) {
+            items.add(new Nodes.Constant(Keyword.intern(keys.get(i).getText())));
+            items.add(expression(values.get(i)));
+        }
+        List<Node> args = new ArrayList<Node>();
+        args.add(new Nodes.Map(items));
+        return call("map->" + name, args);
+    }
+
+
+    private Node conditional(JestParser.ConditionalContext ctx) {
+        List<Node> conditions = new ArrayList<Node>();
+        List<Node> results = new ArrayList<Node>();
+        for (JestParser.ExpressionContext condition: merge(ctx.ifCondition, ctx.elifExpression)) {
+            conditions.add(expression(condition));
+        }
+        for (JestParser.BlockContext result: merge(ctx.iftrue, ctx.elifBlock)) {
+            results.add(block(result));
+        }
+
+        Node node = ctx.elseBlock == null ? null : block(ctx.elseBlock);
+        for (int i = conditions.size() - 1; i >= 0; --i) {
+            node = new Nodes.If(conditions.get(i), results.get(i), node);
+        }
+        return node;
+    }
+
+
+    private Node block(JestParser.BlockContext ctx) {
+        scope.blocks.push(new HashMap<String, Integer>());
+
+        List<Node> body = new ArrayList<Node>();
+        if (ctx.expression() != null) {
+            body.add(expression(ctx.expression()));
+        }
+        for (JestParser.StatementTermContext term: ctx.term) {
+            body.add(statementTerm(term));
+        }
+        for (JestParser.VarScopeContext varScope: ctx.scope) {
+            body.add(varScope(varScope));
+        }
+
+        scope.blocks.pop();
+        return body.size() == 1 ? body.get(0) : new Nodes.Sequence(body);
+    }
+
+
+    private Node varScope(JestParser.VarScopeContext ctx) {
+        scope.blocks.push(new HashMap<String, Integer>());
+
+        List<Node> body = new ArrayList<Node>();
+        for (int i = 0; i < ctx.name.size(); ++i) {
+            // The value can't see the name it's bound to
+            Node value = expression(ctx.exp.get(i));
+            body.add(new Nodes.LocalWrite(scope.declare(ctx.name.get(i).getText()), value));
+        }
+        for (JestParser.StatementTermContext term: ctx.terms) {
+            body.add(statementTerm(term));
+        }
+        if (ctx.terms.isEmpty()) {
+            body.add(new Nodes.Constant(null));
+        }
+
+        scope.blocks.pop();
+        return new Nodes.Sequence(body);
+    }
+
+
+    private static List<String> params(JestParser.FunctionDefParamsContext ctx) {
+        List<String> names = new ArrayList<String>();
+        for (Token param: merge(ctx.first, ctx.rest)) {
+            names.add(param.getText());
+        }
+        return names;
+    }
+
+
+    private Node functionDef(JestParser.FunctionDefContext ctx) {
+        // Only a function that closes over no locals
+        // can be handed to the Clojure compiler alone
+        boolean compilable = scope.parent == null && !scope.hasLocals();
+        String name = ctx.name.getText();
+        if (ctx.memoModifier() != null) {
+            // Compiling would rebind the Var to a new cache, so
+            // a memo function stays interpreted behind its cache
+            Node function = function(name, params(ctx.functionDefParams()), ctx.block(), null);
+            return new Nodes.Def(ns, Symbol.intern(name),
+                                 new Nodes.Memo(function, new MemoOptions(ctx.memoModifier())));
+        }
+        Node function = function(name, params(ctx.functionDefParams()), ctx.block(), compilable ? ctx : null);
+        return new Nodes.Def(ns, Symbol.intern(name), function);
+    }
+
+
+    private Nodes.Lambda function(String name, List<String> params, JestParser.BlockContext body,
+                                  JestParser.FunctionDefContext definition) {
+        scope = new FunctionScope(scope);
+        for (String param: params) {
+            scope.declare(param);
+        }
+        Nodes.Root root = new Nodes.Root(block(body), scope.size);
+        scope = scope.parent;
+        return new Nodes.Lambda(name, params.size(), root, interpreter, definition);
+    }
+
+
+    private Node forLoop(JestParser.ForLoopContext ctx) {
+        List<Node> collections = new ArrayList<Node>();
+        for (JestParser.ExpressionContext collection: merge(ctx.c, ctx.d)) {
+            collections.add(expression(collection));
+        }
+
+        List<String> names = new ArrayList<String>();
+        for (Token name: merge(ctx.a, ctx.b)) {
+            names.add(name.getText());
+        }
+
+        Nodes.Lambda body = function(null, names, ctx.block(), null);
+        return new Nodes.For(body, collections, ctx.LAZY() != null, ctx.parallel != null);
+    }
+}
@@ -0,0 +1,154 @@
+package jest.interpreter;
+
+import clojure.lang.ArraySeq;
+import clojure.lang.IFn;
+import clojure.lang.Var;
+
+import java.util.List;
+
+
+/**
+ * A function call.  Its first child is the function and
+ * the rest are the arguments.
+ *
+ * The first time a call of a global function runs, it
+ * rewrites itself to call the function its Var holds
+ * directly, guarded by a check that the Var still holds
+ * that function.  Interpreted functions are called without
+ * going through IFn at all.  If the Var is redefined (for
+ * example, when a hot function is compiled) the call
+ * specializes itself again, and after a few redefinitions
+ * it settles on the generic call.
+ */
+public abstract class CallNode extends Node {
+
+    private static final int MAX_REWRITES = 3;
+
+    protected CallNode(Node[] children) {
+        super(children);
+    }
+
+    public static CallNode create(Node fn, List<Node> args) {
+        Node[] children = new Node[args.size() + 1];
+        children[0] = fn;
+        for (int i = 0; i < args.size(); ++i) {
+            children[i + 1] = args.get(i);
+        }
+        return new Uninitialized(children, 0);
+    }
+
+    static Object invoke(IFn fn, Object[] args) {
+        switch (args.length) {
+            case 0: return fn.invoke();
+            case 1: return fn.invoke(args[0]);
+            case 2: return fn.invoke(args[0], args[1]);
+            case 3: return fn.invoke(args[0], args[1], args[2]);
+            case 4: return fn.invoke(args[0], args[1], args[2], args[3]);
+            default: return fn.applyTo(ArraySeq.create(args));
+        }
+    }
+
+
+    static class Uninitialized extends CallNode {
+
+        private final int rewrites;
+
+        Uninitialized(Node[] children, int rewrites) {
+            super(children);
+            this.rewrites = rewrites;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return specialize().execute(frame);
+        }
+
+        private CallNode specialize() {
+            if (rewrites < MAX_REWRITES && children[0] instanceof Nodes.Global) {
+                Object resolved = ((Nodes.Global) children[0]).resolve();
+                if (resolved instanceof Var && !((Var) resolved).isDynamic()) {
+                    Var var = (Var) resolved;
+                    Object root = var.getRawRoot();
+                    if (root instanceof JestFunction) {
+                        return replace(new DirectCall(children, var, (JestFunction) root, rewrites + 1));
+                    }
+                    if (root instanceof IFn) {
+                        return replace(new CachedCall(children, var, (IFn) root, rewrites + 1));
+                    }
+                }
+            }
+            return replace(new Generic(children));
+        }
+    }
+
+
+    /**
+     * A call of an interpreted function held by a Var
+     */
+    static class DirectCall extends CallNode {
+
+        private final Var var;
+
+        private final JestFunction function;
+
+        private final int rewrites;
+
+        DirectCall(Node[] children, Var var, JestFunction function, int rewrites) {
+            super(children);
+            this.var = var;
+            this.function = function;
+            this.rewrites = rewrites;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            if (var.getRawRoot() != function) {
+                return replace(new Uninitialized(children, rewrites)).execute(frame);
+            }
+            return function.call(executeAll(frame, 1));
+        }
+    }
+
+
+    /**
+     * A call of any other function held by a Var,
+     * which skips dereferencing the Var
+     */
+    static class CachedCall extends CallNode {
+
+        private final Var var;
+
+        private final IFn function;
+
+        private final int rewrites;
+
+        CachedCall(Node[] children, Var var, IFn function, int rewrites) {
+            super(children);
+            this.var = var;
+            this.function = function;
+            this.rewrites = rewrites;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            if (var.getRawRoot() != function) {
+                return replace(new Uninitialized(children, rewrites)).execute(frame);
+            }
+            return invoke(function, executeAll(frame, 1));
+        }
+    }
+
+
+    static class Generic extends CallNode {
+
+        Generic(Node[] children) {
+            super(children);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            IFn fn = (IFn) children[0].execute(frame);
+            return invoke(fn, executeAll(frame, 1));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package jest.interpreter;
+
+import clojure.lang.Numbers;
+import clojure.lang.Util;
+
+
+/**
+ * A comparison of two values.  Like ArithmeticNode, it
+ * rewrites itself to compare longs directly when both
+ * operands are longs and falls back to the generic
+ * clojure.lang comparisons otherwise.
+ */
+public abstract class ComparisonNode extends Node {
+
+    public enum Op {LT, GT, LTEQ, GTEQ, EQ}
+
+    protected final Op op;
+
+    protected ComparisonNode(Op op, Node left, Node right) {
+        super(left, right);
+        this.op = op;
+    }
+
+    public static ComparisonNode create(String op, Node left, Node right) {
+        switch (op) {
+            case "<": return new Uninitialized(Op.LT, left, right);
+            case ">": return new Uninitialized(Op.GT, left, right);
+            case "<=": return new Uninitialized(Op.LTEQ, left, right);
+            case ">=": return new Uninitialized(Op.GTEQ, left, right);
+            case "==": return new Uninitialized(Op.EQ, left, right);
+            default: throw new IllegalArgumentException("Unknown comparison operator: " + op);
+        }
+    }
+
+
+    static boolean generic(Op op, Object left, Object right) {
+        switch (op) {
+            case LT: return Numbers.lt(left, right);
+            case GT: return Numbers.gt(left, right);
+            case LTEQ: return Numbers.lte(left, right);
+            case GTEQ: return Numbers.gte(left, right);
+            default: return Util.equiv(left, right);
+        }
+    }
+
+
+    static class Uninitialized extends ComparisonNode {
+
+        Uninitialized(Op op, Node left, Node right) {
+            super(op, left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            Object left = children[0].execute(frame);
+            Object right = children[1].execute(frame);
+
+            if (left instanceof Long && right instanceof Long) {
+                return replace(new LongComparison(op, children[0], children[1])).compute(left, right);
+            }
+            return replace(new Generic(op, children[0], children[1])).compute(left, right);
+        }
+    }
+
+
+    static class LongComparison extends ComparisonNode {
+
+        LongComparison(Op op, Node left, Node right) {
+            super(op, left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return compute(children[0].execute(frame), children[1].execute(frame));
+        }
+
+        Object compute(Object left, Object right) {
+            if (!(left instanceof Long && right instanceof Long)) {
+                return replace(new Generic(op, children[0], children[1])).compute(left, right);
+            }
+            long a = (Long) left;
+            long b = (Long) right;
+            switch (op) {
+                case LT: return a < b;
+                case GT: return a > b;
+                case LTEQ: return a <= b;
+                case GTEQ: return a >= b;
+                default: return a == b;
+            }
+        }
+    }
+
+
+    static class Generic extends ComparisonNode {
+
+        Generic(Op op, Node left, Node right) {
+            super(op, left, right);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return compute(children[0].execute(frame), children[1].execute(frame));
+        }
+
+        Object compute(Object left, Object right) {
+            return generic(op, left, right);
+        }
+    }
+}
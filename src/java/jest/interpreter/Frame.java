@@ -0,0 +1,30 @@
+package jest.interpreter;
+
+
+/**
+ * The local variables of one call of a function (or of
+ * the top level of a program).  Every local is given a
+ * fixed slot when the AST is built, so reading a local
+ * never looks up its name.  A frame refers to the frame
+ * its function was created in, which holds the locals
+ * that the function closes over.
+ */
+public final class Frame {
+
+    final Object[] slots;
+
+    final Frame parent;
+
+    public Frame(int size, Frame parent) {
+        this.slots = new Object[size];
+        this.parent = parent;
+    }
+
+    Frame up(int depth) {
+        Frame frame = this;
+        for (int i = 0; i < depth; ++i) {
+            frame = frame.parent;
+        }
+        return frame;
+    }
+}
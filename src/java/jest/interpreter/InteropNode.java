@@ -0,0 +1,155 @@
+package jest.interpreter;
+
+import clojure.lang.Keyword;
+import clojure.lang.Namespace;
+import clojure.lang.Reflector;
+import clojure.lang.Symbol;
+
+import java.util.Arrays;
+
+
+/**
+ * A method call or constructor that may be Java interop.
+ *
+ * obj.name(x) calls the function name(obj, x) if there
+ * is one, and the Java method name of obj otherwise.  If
+ * obj is the name of a class, it calls the static method
+ * (Math.max calls the method, not clojure.core/max).
+ * new Name(x) builds a record if Name is one and a Java
+ * object if Name is a class, and Name.member reads a
+ * static field of a class.  The choice of a method or
+ * a constructor is made the first time the node runs,
+ * when every global before it has been defined, and the
+ * node replaces itself with the call it chose.
+ * Java methods are found by reflection, as the
+ * interpreter has no types to resolve them with.
+ */
+public abstract class InteropNode extends Node {
+
+    protected InteropNode(Node... children) {
+        super(children);
+    }
+
+
+    /**
+     * obj.name(args), whose children are obj and the args
+     */
+    static class Method extends InteropNode {
+
+        private final Namespace ns;
+
+        private final Symbol name;
+
+        private final boolean named;
+
+        /**
+         * @param named Whether obj is a global name,
+         *              which may be the name of a class
+         */
+        Method(Namespace ns, Symbol name, boolean named, Node[] children) {
+            super(children);
+            this.ns = ns;
+            this.name = name;
+            this.named = named;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            boolean ofClass = named && ((Nodes.Global) children[0]).isClass();
+            if (!ofClass && ns.getMapping(name) != null) {
+                return replace(CallNode.create(new Nodes.Global(ns, name), Arrays.asList(children))).execute(frame);
+            }
+            return replace(new JavaMethod(name.getName(), named, children)).execute(frame);
+        }
+    }
+
+
+    static class JavaMethod extends InteropNode {
+
+        private final String name;
+
+        private final boolean named;
+
+        JavaMethod(String name, boolean named, Node[] children) {
+            super(children);
+            this.name = name;
+            this.named = named;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            Object obj = children[0].execute(frame);
+            Object[] args = executeAll(frame, 1);
+            if (named && obj instanceof Class) {
+                return Reflector.invokeStaticMethod((Class) obj, name, args);
+            }
+            return Reflector.invokeInstanceMethod(obj, name, args);
+        }
+    }
+
+
+    /**
+     * record.member, whose child is record
+     */
+    static class Member extends InteropNode {
+
+        private final Keyword member;
+
+        Member(Node record, Keyword member) {
+            super(record);
+            this.member = member;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            Object record = children[0].execute(frame);
+            if (record instanceof Class) {
+                return Reflector.getStaticField((Class) record, member.getName());
+            }
+            return member.invoke(record);
+        }
+    }
+
+
+    /**
+     * new Name(args), whose children are the args
+     */
+    static class New extends InteropNode {
+
+        private final Namespace ns;
+
+        private final Symbol name;
+
+        New(Namespace ns, Symbol name, Node[] children) {
+            super(children);
+            this.ns = ns;
+            this.name = name;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            Symbol factory = Symbol.intern("->" + name.getName());
+            Object mapping = ns.getMapping(name);
+            if (ns.getMapping(factory) == null && mapping instanceof Class) {
+                return replace(new JavaNew((Class) mapping, children)).execute(frame);
+            }
+            return replace(CallNode.create(new Nodes.Global(ns, factory), Arrays.asList(children))).execute(frame);
+        }
+    }
+
+
+    static class JavaNew extends InteropNode {
+
+        private final Class klass;
+
+        JavaNew(Class klass, Node[] children) {
+            super(children);
+            this.klass = klass;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return Reflector.invokeConstructor(klass, executeAll(frame, 0));
+        }
+    }
+}
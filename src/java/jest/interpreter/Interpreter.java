@@ -0,0 +1,141 @@
+package jest.interpreter;
+
+import clojure.lang.IFn;
+import clojure.lang.Namespace;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import jest.compiler.TopLevelDeclarations;
+import jest.grammar.JestParser;
+
+
+/**
+ * Runs a Jest program by interpreting its parse tree,
+ * without generating or compiling any Clojure code.
+ * For a short program this is much faster than eval,
+ * which runs the whole Clojure compiler on every
+ * top-level statement.
+ *
+ * The tree is first converted to a compact AST (see
+ * AstBuilder) whose nodes specialize themselves as they
+ * run.  Globals are Clojure Vars in the interpreter's
+ * namespace, so interpreted code calls clojure.core as
+ * compiled code does.  Records and imports are translated
+ * and evaluated by Clojure.
+ *
+ * To keep the peak speed of long-running programs, a
+ * top-level function that has been called compileThreshold
+ * times is compiled by Clojure (see JestFunction).  The
+ * default threshold is 1000 calls, which can be changed
+ * with the jest.interpreter.compileThreshold system
+ * property.  A threshold of 0 turns compilation off.
+ *
+ * A statement or function is translated on its own, long
+ * after the statements before it ran, so it is translated
+ * with the globals, imports and records of the program
+ * before it in scope (see TopLevelDeclarations), and is
+ * compiled to the same forms as in the whole program.
+ * An Interpreter runs one program at a time.
+ */
+public class Interpreter {
+
+    public static final int DEFAULT_COMPILE_THRESHOLD =
+        Integer.getInteger("jest.interpreter.compileThreshold", 1000);
+
+    /**
+     * The translator is only loaded when a statement
+     * needs to be translated to Clojure
+     */
+    private static class Translator {
+        static final IFn translate;
+
+        static {
+            RT.var("clojure.core", "require").invoke(Symbol.intern("jest.parser"));
+            translate = RT.var("jest.parser", "translate-in-program");
+        }
+    }
+
+    private static final IFn EVAL = RT.var("clojure.core", "eval");
+
+    private final int compileThreshold;
+
+    private final Namespace ns;
+
+    // The program being run, and the names its
+    // top-level statements declare
+    private JestParser.SourceCodeContext program = null;
+
+    private TopLevelDeclarations declarations = null;
+
+    public Interpreter() {
+        this(DEFAULT_COMPILE_THRESHOLD);
+    }
+
+    public Interpreter(int compileThreshold) {
+        this(compileThreshold, (Namespace) RT.CURRENT_NS.deref());
+    }
+
+    public Interpreter(int compileThreshold, Namespace ns) {
+        this.compileThreshold = compileThreshold;
+        this.ns = ns;
+    }
+
+    public int getCompileThreshold() {
+        return compileThreshold;
+    }
+
+    public Namespace getNamespace() {
+        return ns;
+    }
+
+    /**
+     * Run a program, returning the value of its last statement
+     * @param tree
+     * @return
+     */
+    public Object execute(JestParser.SourceCodeContext tree) {
+        program = tree;
+        declarations = new TopLevelDeclarations(tree);
+        Nodes.Root root = new AstBuilder(this).program(tree);
+        return root.execute(new Frame(root.getFrameSize(), null));
+    }
+
+    /**
+     * The index of the top-level statement of the program
+     * that contains the given part of it, or -1 for an import
+     */
+    private int statementIndex(ParseTree node) {
+        while (node.getParent() != program) {
+            node = node.getParent();
+        }
+        return program.statementTerm().indexOf(node);
+    }
+
+    /**
+     * Translate a statement (or a function defined by one)
+     * to Clojure and evaluate it in the interpreter's namespace
+     */
+    Object evaluate(ParseTree statement) {
+        Object form = Translator.translate.invoke(declarations, statementIndex(statement), statement);
+        Var.pushThreadBindings(RT.map(RT.CURRENT_NS, ns));
+        try {
+            return EVAL.invoke(form);
+        } finally {
+            Var.popThreadBindings();
+        }
+    }
+
+    /**
+     * Compile a top-level function definition with
+     * Clojure, which rebinds the function's Var to
+     * the compiled function
+     * @return The compiled function
+     */
+    IFn compile(JestParser.FunctionDefContext definition) {
+        Var var = (Var) evaluate(definition);
+        return (IFn) var.getRawRoot();
+    }
+}
@@ -0,0 +1,206 @@
+package jest.interpreter;
+
+import clojure.lang.AFn;
+import clojure.lang.ArityException;
+import clojure.lang.ArraySeq;
+import clojure.lang.IFn;
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jest.grammar.JestParser;
+
+
+/**
+ * A function defined by interpreted Jest code (with defn,
+ * as a lambda, or as the body of a for loop).  It is a
+ * Clojure function, so it can be passed to clojure.core
+ * functions like map and filter.
+ *
+ * A top-level function that is called often is handed to
+ * the Clojure compiler once it has been called
+ * compileThreshold times (see Interpreter): its definition
+ * is translated and evaluated, which rebinds its Var to the
+ * compiled function, and later calls run the compiled code.
+ */
+public class JestFunction extends AFn {
+
+    private final String name;
+
+    private final int arity;
+
+    private final Nodes.Root body;
+
+    private final Frame closure;
+
+    private final Interpreter interpreter;
+
+    // The definition of a top-level function, which
+    // can be compiled, or null for any other function
+    private final JestParser.FunctionDefContext definition;
+
+    // A function may be called from many threads at once
+    // (by a parallel for loop, say), so it is counted and
+    // compiled atomically, and only once
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private final AtomicBoolean compiling = new AtomicBoolean();
+
+    private volatile IFn compiled = null;
+
+    public JestFunction(String name, int arity, Nodes.Root body, Frame closure,
+                        Interpreter interpreter, JestParser.FunctionDefContext definition) {
+        this.name = name;
+        this.arity = arity;
+        this.body = body;
+        this.closure = closure;
+        this.interpreter = interpreter;
+        this.definition = definition;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Whether the function has been
+     * handed to the Clojure compiler
+     */
+    public boolean isCompiled() {
+        return compiled != null;
+    }
+
+    public Object call(Object[] args) {
+        if (args.length != arity) {
+            throw new ArityException(args.length, name == null ? "fn" : name);
+        }
+
+        IFn function = compiled;
+        if (function != null) {
+            return function.applyTo(ArraySeq.create(args));
+        }
+
+        if (definition != null && calls.incrementAndGet() >= interpreter.getCompileThreshold()
+            && compiling.compareAndSet(false, true)) {
+            function = interpreter.compile(definition);
+            compiled = function;
+            return function.applyTo(ArraySeq.create(args));
+        }
+
+        Frame frame = new Frame(body.getFrameSize(), closure);
+        System.arraycopy(args, 0, frame.slots, 0, args.length);
+        return body.execute(frame);
+    }
+
+    @Override
+    public Object applyTo(ISeq args) {
+        return call(RT.seqToArray(args));
+    }
+
+    @Override
+    public Object invoke() {
+        return call(new Object[]{});
+    }
+
+    @Override
+    public Object invoke(Object arg1) {
+        return call(new Object[]{arg1});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2) {
+        return call(new Object[]{arg1, arg2});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3) {
+        return call(new Object[]{arg1, arg2, arg3});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4) {
+        return call(new Object[]{arg1, arg2, arg3, arg4});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16, Object arg17) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16, arg17});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16, Object arg17, Object arg18) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16, arg17, arg18});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16, Object arg17, Object arg18, Object arg19) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16, arg17, arg18, arg19});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16, Object arg17, Object arg18, Object arg19, Object arg20) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16, arg17, arg18, arg19, arg20});
+    }
+}
@@ -0,0 +1,62 @@
+package jest.interpreter;
+
+
+/**
+ * A node of the interpreter's AST.  Executing a node
+ * returns its value.
+ *
+ * A node may replace itself in its parent with a version
+ * that is specialized for the values it has seen so far
+ * (see ArithmeticNode, ComparisonNode and CallNode), and
+ * later executions run the replacement.  Replacements are
+ * not synchronized: if two threads rewrite the same node,
+ * one rewrite is lost, which is harmless as every version
+ * of a node computes the same value.
+ */
+public abstract class Node {
+
+    private Node parent;
+
+    protected final Node[] children;
+
+    protected Node(Node... children) {
+        this.children = children;
+        for (Node child: children) {
+            if (child != null) {
+                child.parent = this;
+            }
+        }
+    }
+
+    public abstract Object execute(Frame frame);
+
+    /**
+     * Replace this node in its parent
+     * @param replacement
+     * @return The replacement
+     */
+    protected <T extends Node> T replace(T replacement) {
+        ((Node) replacement).parent = parent;
+        if (parent != null) {
+            Node[] siblings = parent.children;
+            for (int i = 0; i < siblings.length; ++i) {
+                if (siblings[i] == this) {
+                    siblings[i] = replacement;
+                }
+            }
+        }
+        return replacement;
+    }
+
+    /**
+     * Execute each of the given children,
+     * returning an array of their values
+     */
+    protected Object[] executeAll(Frame frame, int from) {
+        Object[] values = new Object[children.length - from];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = children[from + i].execute(frame);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,429 @@
+package jest.interpreter;
+
+import clojure.lang.ArraySeq;
+import clojure.lang.IFn;
+import clojure.lang.ISeq;
+import clojure.lang.ITransientCollection;
+import clojure.lang.Keyword;
+import clojure.lang.Namespace;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import jest.compiler.MemoOptions;
+import jest.grammar.JestParser;
+import jest.runtime.MemoizedFunction;
+
+
+/**
+ * The nodes of the interpreter's AST that don't
+ * specialize themselves (see ArithmeticNode,
+ * ComparisonNode and CallNode for those that do)
+ */
+public final class Nodes {
+
+    private static final IFn MAP = RT.var("clojure.core", "map");
+
+    /**
+     * The runtime of parallel for loops is only
+     * loaded when a parallel loop runs
+     */
+    private static class Parallel {
+        static final IFn MAP;
+
+        static {
+            RT.var("clojure.core", "require").invoke(Symbol.intern("jest.runtime"));
+            MAP = RT.var("jest.runtime", "parallel-map");
+        }
+    }
+
+    private Nodes() {}
+
+
+    static Node[] toArray(List<Node> nodes) {
+        return nodes.toArray(new Node[nodes.size()]);
+    }
+
+
+    /**
+     * The body of a function or of a whole program, which
+     * knows how many local slots its frames need
+     */
+    public static class Root extends Node {
+
+        private final int frameSize;
+
+        Root(Node body, int frameSize) {
+            super(body);
+            this.frameSize = frameSize;
+        }
+
+        public int getFrameSize() {
+            return frameSize;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return children[0].execute(frame);
+        }
+    }
+
+
+    static class Constant extends Node {
+
+        private final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return value;
+        }
+    }
+
+
+    static class LocalRead extends Node {
+
+        private final int depth;
+
+        private final int slot;
+
+        LocalRead(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return frame.up(depth).slots[slot];
+        }
+    }
+
+
+    static class LocalWrite extends Node {
+
+        private final int slot;
+
+        LocalWrite(int slot, Node value) {
+            super(value);
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            Object value = children[0].execute(frame);
+            frame.slots[slot] = value;
+            return value;
+        }
+    }
+
+
+    /**
+     * A global name.  It is resolved in the namespace the
+     * first time it runs (a global may be defined by an
+     * earlier statement of the same program) and the Var
+     * or class it names is kept for later runs.
+     */
+    static class Global extends Node {
+
+        private final Namespace ns;
+
+        private final Symbol name;
+
+        private Object resolved = null;
+
+        Global(Namespace ns, Symbol name) {
+            this.ns = ns;
+            this.name = name;
+        }
+
+        Object resolve() {
+            if (resolved == null) {
+                Object mapping = ns.getMapping(name);
+                if (mapping == null) {
+                    throw new RuntimeException("Unable to resolve symbol: " + name + " in this context");
+                }
+                resolved = mapping;
+            }
+            return resolved;
+        }
+
+        /**
+         * Whether the name is that of a class
+         */
+        boolean isClass() {
+            return ns.getMapping(name) instanceof Class;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            Object value = resolve();
+            return value instanceof Var ? ((Var) value).get() : value;
+        }
+    }
+
+
+    static class Def extends Node {
+
+        private final Namespace ns;
+
+        private final Symbol name;
+
+        Def(Namespace ns, Symbol name, Node value) {
+            super(value);
+            this.ns = ns;
+            this.name = name;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            // Interned first, so the value can refer to itself
+            Var var = Var.intern(ns, name);
+            var.bindRoot(children[0].execute(frame));
+            return var;
+        }
+    }
+
+
+    static class If extends Node {
+
+        If(Node test, Node then, Node otherwise) {
+            super(test, then, otherwise);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            if (RT.booleanCast(children[0].execute(frame))) {
+                return children[1].execute(frame);
+            }
+            return children[2] == null ? null : children[2].execute(frame);
+        }
+    }
+
+
+    static class Sequence extends Node {
+
+        Sequence(List<Node> body) {
+            super(toArray(body));
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            Object value = null;
+            for (Node node: children) {
+                value = node.execute(frame);
+            }
+            return value;
+        }
+    }
+
+
+    static class Vector extends Node {
+
+        Vector(List<Node> items) {
+            super(toArray(items));
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return RT.vector(executeAll(frame, 0));
+        }
+    }
+
+
+    static class Map extends Node {
+
+        Map(List<Node> keysAndValues) {
+            super(toArray(keysAndValues));
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return RT.map(executeAll(frame, 0));
+        }
+    }
+
+
+    /**
+     * Looks up a key, as clojure.core/get (for x[key]) or
+     * as calling a keyword (for record.field) does
+     */
+    static class Get extends Node {
+
+        Get(Node collection, Node key) {
+            super(collection, key);
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return RT.get(children[0].execute(frame), children[1].execute(frame));
+        }
+    }
+
+
+    static class KeywordGet extends Node {
+
+        private final Keyword key;
+
+        KeywordGet(Node collection, Keyword key) {
+            super(collection);
+            this.key = key;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return key.invoke(children[0].execute(frame));
+        }
+    }
+
+
+    /**
+     * Creates a function that closes over the frame
+     * it is created in
+     */
+    static class Lambda extends Node {
+
+        private final String name;
+
+        private final int arity;
+
+        private final Root body;
+
+        private final Interpreter interpreter;
+
+        private final JestParser.FunctionDefContext definition;
+
+        Lambda(String name, int arity, Root body, Interpreter interpreter, JestParser.FunctionDefContext definition) {
+            this.name = name;
+            this.arity = arity;
+            this.body = body;
+            this.interpreter = interpreter;
+            this.definition = definition;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return new JestFunction(name, arity, body, frame, interpreter, definition);
+        }
+    }
+
+
+    /**
+     * Wraps the function made by its child
+     * in a cache (the value of a memo defn)
+     */
+    static class Memo extends Node {
+
+        private final MemoOptions options;
+
+        Memo(Node function, MemoOptions options) {
+            super(function);
+            this.options = options;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return MemoizedFunction.create((IFn) children[0].execute(frame), options.getMaxSize(),
+                                           options.getEviction(), options.getTtl());
+        }
+    }
+
+
+    /**
+     * A for loop, which maps its body over its collections
+     * (realizing the result unless the loop is lazy)
+     */
+    static class For extends Node {
+
+        private final Lambda body;
+
+        private final boolean lazy;
+
+        private final boolean parallel;
+
+        For(Lambda body, List<Node> collections, boolean lazy, boolean parallel) {
+            super(toArray(collections));
+            this.body = body;
+            this.lazy = lazy;
+            this.parallel = parallel;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            Object function = body.execute(frame);
+            Object[] colls = executeAll(frame, 0);
+            if (!lazy && !parallel) {
+                return collect((JestFunction) function, colls);
+            }
+
+            Object[] args = new Object[colls.length + 1];
+            args[0] = function;
+            for (int i = 0; i < colls.length; ++i) {
+                args[i + 1] = parallel ? colls[i] : RT.seq(colls[i]);
+            }
+            return (parallel ? Parallel.MAP : MAP).applyTo(ArraySeq.create(args));
+        }
+
+        /**
+         * Run the body over the items of the collections
+         * in lock-step and collect its values in a vector
+         * (as the compiled loop does)
+         */
+        private static Object collect(JestFunction body, Object[] colls) {
+            Iterator[] iters = new Iterator[colls.length];
+            for (int i = 0; i < colls.length; ++i) {
+                iters[i] = iterator(colls[i]);
+            }
+            ITransientCollection values = PersistentVector.EMPTY.asTransient();
+            while (true) {
+                Object[] items = new Object[iters.length];
+                for (int i = 0; i < iters.length; ++i) {
+                    if (!iters[i].hasNext()) {
+                        return values.persistent();
+                    }
+                    items[i] = iters[i].next();
+                }
+                values = values.conj(body.call(items));
+            }
+        }
+
+        private static Iterator iterator(Object coll) {
+            if (coll instanceof Iterable) {
+                return ((Iterable) coll).iterator();
+            }
+            ISeq seq = RT.seq(coll);
+            return seq == null ? PersistentVector.EMPTY.iterator() : ((Iterable) seq).iterator();
+        }
+    }
+
+
+    /**
+     * A statement that the interpreter does not run itself
+     * (imports and records), which is translated to Clojure
+     * and evaluated when it is reached
+     */
+    static class Eval extends Node {
+
+        private final Interpreter interpreter;
+
+        private final ParserRuleContext statement;
+
+        Eval(Interpreter interpreter, ParserRuleContext statement) {
+            this.interpreter = interpreter;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object execute(Frame frame) {
+            return interpreter.evaluate(statement);
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package jest.runtime;
+
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentVector;
+import clojure.lang.ISeq;
+import clojure.lang.LazilyPersistentVector;
+import clojure.lang.RT;
+import clojure.lang.Util;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A function whose results are cached, keyed by the
+ * arguments it is called with (the function of a defn
+ * with the memo modifier, see jest.compiler.MemoOptions).
+ *
+ * The cache is safe to call from many threads, and each
+ * result is computed once: a call whose arguments are
+ * being computed by another call waits for that result
+ * rather than computing it again.  A call that throws
+ * is not cached, so the next call with its arguments
+ * tries again.  The cache holds a bounded number of
+ * results, evicting the least recently or the least
+ * frequently used when it is full, and may expire
+ * results a fixed time after they were computed.
+ */
+public abstract class MemoizedFunction extends AFn {
+
+    public static final long DEFAULT_MAX_SIZE = 10000;
+
+    public static final String LRU = "lru";
+
+    public static final String LFU = "lfu";
+
+    // Stands for a nil result, as the caches can't hold null
+    private static final Object NIL = new Object();
+
+    private final IFn function;
+
+    protected MemoizedFunction(IFn function) {
+        this.function = function;
+    }
+
+    /**
+     * @param function The function whose results are cached
+     * @param maxSize The most results that the cache holds
+     * @param eviction LRU or LFU
+     * @param ttl The milliseconds that a result is kept for,
+     *            or 0 to keep it until it is evicted
+     */
+    public static MemoizedFunction create(IFn function, long maxSize, String eviction, long ttl) {
+        if (LRU.equals(eviction)) {
+            return new LeastRecentlyUsed(function, maxSize, ttl);
+        } else if (LFU.equals(eviction)) {
+            return new LeastFrequentlyUsed(function, maxSize, ttl);
+        }
+        throw new IllegalArgumentException("Unknown eviction policy: " + eviction);
+    }
+
+    /**
+     * @return The number of calls that
+     * were answered from the cache
+     */
+    public abstract long hits();
+
+    /**
+     * @return The number of calls that
+     * computed their result
+     */
+    public abstract long misses();
+
+    /**
+     * @return The number of results
+     * that the cache holds
+     */
+    public abstract long size();
+
+    /**
+     * Remove every result from the cache
+     */
+    public abstract void clear();
+
+    /**
+     * Return the cached result for the given arguments,
+     * computing it (once) if it isn't cached
+     */
+    protected abstract Object lookup(IPersistentVector args) throws Exception;
+
+    protected Object compute(IPersistentVector args) {
+        Object result = function.applyTo(RT.seq(args));
+        return result == null ? NIL : result;
+    }
+
+    public Object call(Object[] args) {
+        Object result;
+        try {
+            result = lookup(LazilyPersistentVector.createOwning(args));
+        } catch (Exception e) {
+            throw Util.sneakyThrow(e);
+        }
+        return result == NIL ? null : result;
+    }
+
+
+    /**
+     * A Guava cache, which evicts the least recently used
+     * result of a segment of the cache when it is full
+     */
+    private static class LeastRecentlyUsed extends MemoizedFunction {
+
+        private final LoadingCache<IPersistentVector, Object> cache;
+
+        LeastRecentlyUsed(IFn function, long maxSize, long ttl) {
+            super(function);
+            CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats();
+            if (ttl > 0) {
+                builder.expireAfterWrite(ttl, TimeUnit.MILLISECONDS);
+            }
+            this.cache = builder.build(new CacheLoader<IPersistentVector, Object>() {
+                @Override
+                public Object load(IPersistentVector args) {
+                    return compute(args);
+                }
+            });
+        }
+
+        @Override
+        protected Object lookup(IPersistentVector args) {
+            try {
+                return cache.get(args);
+            } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+                throw Util.sneakyThrow(e.getCause());
+            }
+        }
+
+        @Override
+        public long hits() {
+            return cache.stats().hitCount();
+        }
+
+        @Override
+        public long misses() {
+            return cache.stats().missCount();
+        }
+
+        @Override
+        public long size() {
+            return cache.size();
+        }
+
+        @Override
+        public void clear() {
+            cache.invalidateAll();
+        }
+    }
+
+
+    /**
+     * A map of the results being computed or computed, each
+     * with a count of its uses.  When the map grows past its
+     * maximum size, the least used tenth of its results are
+     * evicted at once (so the scan that finds them is paid for
+     * once every maxSize / 10 misses) and the counts of the rest
+     * are halved, so that results that were used often long
+     * ago give way to those that are used often now.
+     */
+    private static class LeastFrequentlyUsed extends MemoizedFunction {
+
+        private static class Entry {
+            final FutureTask<Object> result;
+
+            final long created = System.nanoTime();
+
+            final AtomicLong uses = new AtomicLong(1);
+
+            // The thread computing the result, until it is computed
+            volatile Thread owner = Thread.currentThread();
+
+            // The uses when the entries were last sorted
+            long sortedUses;
+
+            Entry(FutureTask<Object> result) {
+                this.result = result;
+            }
+        }
+
+        private static final Comparator<Map.Entry<IPersistentVector, Entry>> BY_USES =
+            new Comparator<Map.Entry<IPersistentVector, Entry>>() {
+                @Override
+                public int compare(Map.Entry<IPersistentVector, Entry> a, Map.Entry<IPersistentVector, Entry> b) {
+                    return Long.compare(a.getValue().sortedUses, b.getValue().sortedUses);
+                }
+            };
+
+        private final ConcurrentMap<IPersistentVector, Entry> entries =
+            new ConcurrentHashMap<IPersistentVector, Entry>();
+
+        private final long maxSize;
+
+        private final long ttlNanos;
+
+        private final AtomicLong hits = new AtomicLong();
+
+        private final AtomicLong misses = new AtomicLong();
+
+        private final ReentrantLock evicting = new ReentrantLock();
+
+        LeastFrequentlyUsed(IFn function, long maxSize, long ttl) {
+            super(function);
+            this.maxSize = maxSize;
+            this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        }
+
+        private boolean isExpired(Entry entry) {
+            return ttlNanos > 0 && System.nanoTime() - entry.created > ttlNanos;
+        }
+
+        @Override
+        protected Object lookup(final IPersistentVector args) throws Exception {
+            Entry entry = entries.get(args);
+            if (entry != null && isExpired(entry)) {
+                entries.remove(args, entry);
+                entry = null;
+            }
+
+            if (entry == null) {
+                Entry fresh = new Entry(new FutureTask<Object>(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        return compute(args);
+                    }
+                }));
+                entry = entries.putIfAbsent(args, fresh);
+                if (entry == null) {
+                    misses.incrementAndGet();
+                    fresh.result.run();
+                    fresh.owner = null;
+                    evict();
+                    return result(args, fresh);
+                }
+            }
+
+            // Waiting on our own computation would never return
+            if (entry.owner == Thread.currentThread()) {
+                throw new IllegalStateException("Recursive call of a memoized function with the same arguments: "
+                                                + args);
+            }
+            hits.incrementAndGet();
+            entry.uses.incrementAndGet();
+            return result(args, entry);
+        }
+
+        private Object result(IPersistentVector args, Entry entry) throws Exception {
+            try {
+                return entry.result.get();
+            } catch (ExecutionException e) {
+                entries.remove(args, entry);
+                throw Util.sneakyThrow(e.getCause());
+            }
+        }
+
+        private void evict() {
+            if (entries.size() <= maxSize || !evicting.tryLock()) {
+                return;
+            }
+            try {
+                @SuppressWarnings("unchecked")
+                Map.Entry<IPersistentVector, Entry>[] sorted = entries.entrySet().toArray(new Map.Entry[0]);
+                for (Map.Entry<IPersistentVector, Entry> e: sorted) {
+                    e.getValue().sortedUses = e.getValue().uses.get();
+                }
+                Arrays.sort(sorted, BY_USES);
+
+                long keep = maxSize - maxSize / 10;
+                for (int i = 0; i < sorted.length && entries.size() > keep; ++i) {
+                    // Results still being computed have callers waiting
+                    if (sorted[i].getValue().result.isDone()) {
+                        entries.remove(sorted[i].getKey(), sorted[i].getValue());
+                    }
+                }
+                for (Entry entry: entries.values()) {
+                    entry.uses.set(entry.uses.get() / 2);
+                }
+            } finally {
+                evicting.unlock();
+            }
+        }
+
+        @Override
+        public long hits() {
+            return hits.get();
+        }
+
+        @Override
+        public long misses() {
+            return misses.get();
+        }
+
+        @Override
+        public long size() {
+            return entries.size();
+        }
+
+        @Override
+        public void clear() {
+            entries.clear();
+        }
+    }
+
+    @Override
+    public Object applyTo(ISeq args) {
+        return call(RT.seqToArray(args));
+    }
+
+    @Override
+    public Object invoke() {
+        return call(new Object[]{});
+    }
+
+    @Override
+    public Object invoke(Object arg1) {
+        return call(new Object[]{arg1});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2) {
+        return call(new Object[]{arg1, arg2});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3) {
+        return call(new Object[]{arg1, arg2, arg3});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4) {
+        return call(new Object[]{arg1, arg2, arg3, arg4});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16, Object arg17) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16, arg17});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16, Object arg17, Object arg18) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16, arg17, arg18});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16, Object arg17, Object arg18, Object arg19) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16, arg17, arg18, arg19});
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16, Object arg17, Object arg18, Object arg19, Object arg20) {
+        return call(new Object[]{arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16, arg17, arg18, arg19, arg20});
+    }
+}
@@ -0,0 +1,121 @@
+(ns jest.bytecode-test
+  (:require [clojure.test :refer :all]
+            [jest.parser :refer :all]
+            [jest.utils :refer :all]))
+
+(import 'jest.compiler.BytecodeCompiler)
+
+
+(defn- compile-program
+  [jest]
+  (BytecodeCompiler/compile (jest->clojure jest)))
+
+
+(deftest bytecode-test-1
+  (let [program (compile-program "def x = 10; def y = x * 2 + 1; y - x;")]
+    (is (= (. program getCompiledCount) 3))
+    (is (= (. program getEvaluatedCount) 0))
+    (is (= (. program run) 11))))
+
+(deftest bytecode-test-2
+  (is (= (execute-jest "def x = 3; if (x > 2) {[x, {:a: x}]} else {nil};" {:backend :bytecode})
+         [3 {:a 3}])))
+
+(deftest bytecode-test-3
+  (is (= (execute-jest "if (nil) {10} elif (1 == 2) {20} else {30};" {:backend :bytecode})
+         30)))
+
+(deftest bytecode-test-4
+  (is (= (execute-jest "let a = 1; let b = a + 1; a + b;" {:backend :bytecode})
+         3)))
+
+;; Functions are compiled to classes of their own
+(deftest bytecode-test-5
+  (let [program (compile-program "defn f(x) { x * x; } def y = f(4); inc(y);")]
+    (is (= (. program getCompiledCount) 3))
+    (is (= (. program getEvaluatedCount) 0))
+    (is (= (. program run) 17))))
+
+(deftest bytecode-test-6
+  (is (= (execute-jest "for (x: [1, 2, 3]) { x + 1; };" {:backend :bytecode})
+         [2 3 4])))
+
+;; Every bundled program is compiled without
+;; Clojure's eval, and prints what eval prints
+(deftest bytecode-test-7
+  (doseq [file (.listFiles (clojure.java.io/file "resources"))
+          :when (.endsWith (.getName file) ".jst")]
+    (let [src (slurp file)
+          program (compile-program src)]
+      (is (= (. program getEvaluatedCount) 0) (.getName file))
+      (is (= (with-out-str (. program run))
+             (with-out-str (execute-jest src)))
+          (.getName file)))))
+
+(deftest bytecode-test-8
+  ;; Lambdas close over the locals around them, and
+  ;; self calls in tail position loop with recur
+  (let [program (compile-program
+                 "defn addAll(n, xs) { map((x) -> { x + n; }, xs); }
+                  defn countDown(n, acc) { if (n == 0) { acc; } else { countDown(n - 1, acc + 1); } }
+                  [addAll(10, [1, 2, 3]), countDown(100000, 0)];")]
+    (is (= (. program getEvaluatedCount) 0))
+    (is (= (. program run) [[11 12 13] 100000])))
+  (let [program (compile-program "for (x, y: range(0, 3), [:a, :b]) { [x, y]; };")]
+    (is (= (. program getEvaluatedCount) 0))
+    (is (= (. program run) [[0 :a] [1 :b]])))
+  (let [program (compile-program "for (x: range(0, 3)) { x * 2; };")]
+    (is (= (. program getEvaluatedCount) 0))
+    (is (= (. program run) [0 2 4]))))
+
+(deftest bytecode-test-9
+  (let [program (compile-program
+                 "import java.util.ArrayList;
+                  def xs = new ArrayList();
+                  xs.add(\"a\".toUpperCase());
+                  let sb = new StringBuilder(\"ab\");
+                  sb.append(xs.contains(\"A\"));
+                  [sb.toString(), xs.size(), Math.max(3, 7)];")]
+    (is (= (. program getEvaluatedCount) 0))
+    (is (= (. program run) ["abtrue" 1 7]))))
+
+(deftest bytecode-test-10
+  ;; An elif chain over literals is a case
+  (let [program (compile-program
+                 "def x = 3;
+                  if (x == 1) { :a; } elif (x == 2) { :b; } elif (x == 3) { :c; } else { :d; };")]
+    (is (= (. program getEvaluatedCount) 0))
+    (is (= (. program run) :c))))
+
+(deftest bytecode-test-11
+  ;; A record definition is evaluated by Clojure, while
+  ;; its constructors and fields are compiled
+  (let [program (compile-program
+                 "record Point{ x; y; }
+                  def p = new Point(1, 2);
+                  p.x + p.y;")]
+    (is (= (. program getCompiledCount) 2))
+    (is (= (. program getEvaluatedCount) 1))
+    (is (= (. program run) 3))))
+
+(defn- fresh-ns
+  [name]
+  (binding [*ns* (create-ns name)]
+    (refer-clojure)
+    *ns*))
+
+(deftest bytecode-test-12
+  ;; A Var is interned when its statement runs, not when
+  ;; the program is compiled, as with Clojure's eval
+  (let [ns (fresh-ns 'jest.bytecode-test.vars)
+        program (BytecodeCompiler/compile (jest->clojure "def early = 1; defn f() { early; } def late = f() + 1; late;") ns)]
+    (is (= (. program getEvaluatedCount) 0))
+    (is (nil? (ns-resolve ns 'late)))
+    (is (= (. program run) 2))
+    (is (= @(ns-resolve ns 'late) 2)))
+  (let [ns (fresh-ns 'jest.bytecode-test.order)
+        program (BytecodeCompiler/compile (jest->clojure "def a = 1; b; def b = 2;") ns)]
+    (is (thrown-with-msg? RuntimeException #"Unable to resolve symbol: b"
+                          (. program run)))
+    (is (= @(ns-resolve ns 'a) 1))
+    (is (nil? (ns-resolve ns 'b)))))
@@ -0,0 +1,58 @@
+(ns jest.cache-test
+  (:require [clojure.test :refer :all]
+            [jest.cache :refer :all]
+            [jest.utils :refer :all])
+  (:import (java.io File)))
+
+
+(defn- temp-cache-dir []
+  (let [dir (File/createTempFile "jest-cache" "")]
+    (.delete dir)
+    (.mkdirs dir)
+    dir))
+
+
+(deftest cache-test-1
+  (let [dir (temp-cache-dir)
+        src "def x = 10; x * 2;"]
+    (is (= (compile-jest-cached src dir) ['(def x 10) '(* x 2)]))
+    (is (.exists (cache-file dir src)))
+    (is (= (compile-jest-cached src dir) ['(def x 10) '(* x 2)]))
+    (is (= (execute-jest-cached src dir) 20))
+    (clear-cache dir)
+    (is (not (.exists (cache-file dir src))))))
+
+(deftest cache-test-2
+  (let [dir (temp-cache-dir)
+        src "def x = 10; y;"]
+    (is (nil? (compile-jest-cached src dir)))
+    (is (not (.exists (cache-file dir src))))))
+
+(deftest cache-test-3
+  (is (not= (cache-key "def x = 10;") (cache-key "def x = 11;"))))
+
+(deftest cache-test-4
+  ;; Options that change the forms are part of the key
+  (let [src "def x = 10;"]
+    (is (not= (cache-key src) (cache-key src {:optimize false})))
+    (is (not= (cache-key src) (cache-key src {:tree-shake true})))
+    (is (= (cache-key src) (cache-key src {:optimize true :parallel true :backend :bytecode})))))
+
+(deftest cache-test-5
+  (let [dir (temp-cache-dir)
+        src "def y = 2 * 3; y;"]
+    (is (= (compile-jest-cached src dir {:optimize false}) ['(def y (* 2 3)) 'y]))
+    (is (= (compile-jest-cached src dir) ['(def y 6) 'y]))
+    (is (= (compile-jest-cached src dir {:optimize false}) ['(def y (* 2 3)) 'y]))
+    (is (= (execute-jest-cached src dir {:backend :bytecode}) 6))
+    (is (= (execute-jest-cached src dir {:backend :interpret}) 6))))
+
+(deftest cache-test-6
+  ;; A cached program that can't be read back is replaced
+  (let [dir (temp-cache-dir)
+        src "def x = 10; x * 2;"
+        file (cache-file dir src)]
+    (spit file "[(def x")
+    (is (= (compile-jest-cached src dir) ['(def x 10) '(* x 2)]))
+    (is (= (slurp file) (do (compile-jest-cached src dir) (slurp file))))
+    (is (not= "[(def x" (slurp file)))))
@@ -0,0 +1,151 @@
+(ns jest.compiler-test
+  (:require [clojure.test :refer :all]
+            [jest.parser :refer :all]
+            [jest.utils :refer :all]))
+
+(import 'jest.compiler.JestCompiler 'jest.compiler.JestCompiler$ParseMode)
+
+
+(deftest parse-cache-test-1
+  (let [src "def x = 10; x + 1;"]
+    (is (identical? (parse-source-code src) (parse-source-code src)))))
+
+(deftest parse-cache-test-2
+  (let [src "def x = 10; x + 2;"
+        tree (parse-source-code src)]
+    (. JestCompiler clearParseTreeCache)
+    (is (not (identical? tree (parse-source-code src))))))
+
+(deftest parse-cache-test-3
+  (let [tree (parse-source-code "def x = 10; x * 2;")]
+    (is (validate-parse-tree tree))
+    (is (= (parse-tree->clojure tree) ['(def x 10) '(* x 2)]))))
+
+
+(defn- parse-with-mode
+  [src mode]
+  (parse-tree->clojure (. JestCompiler (compileSourceCodeToParseTree src mode))))
+
+
+(deftest parse-mode-test-1
+  (doseq [program ["resources/example1.jst" "resources/pipeline.jst"
+                   "resources/conditional.jst" "resources/map.jst"]]
+    (let [src (slurp program)]
+      (is (= (parse-with-mode src JestCompiler$ParseMode/LL)
+             (parse-with-mode src JestCompiler$ParseMode/SLL_THEN_LL))))))
+
+
+(defn- error-messages
+  [result]
+  (map #(. % getMessage) (. result getErrors)))
+
+
+(deftest parallel-compile-test-1
+  (doseq [program ["resources/example1.jst" "resources/example2.jst"
+                   "resources/example3.jst" "resources/example4.jst"]]
+    (let [tree (parse-source-code (slurp program))
+          serial (compile-parse-tree tree)
+          parallel (compile-parse-tree tree {:parallel true})]
+      (is (= (. serial getForms) (. parallel getForms)))
+      (is (= (error-messages serial) (error-messages parallel))))))
+
+(deftest parallel-compile-test-3
+  ;; Records, and the classes of globals (found in the
+  ;; statements that define them), are known to every
+  ;; statement after them, so the type hints match too
+  (let [src "record Point { x; y; }
+             def origin = new Point(1, 2);
+             def n = 10;
+             def v = [1, 2, 3];
+             def w = v;
+             defn px(p): Point -> Long { p.x; }
+             origin.x + px(origin) + v[1] + w[2];
+             for (i: range(0, n)) { i * 2; };"
+        serial (compile-jest src)
+        parallel (compile-jest src {:parallel true})
+        printed #(binding [*print-meta* true] (pr-str (. % getForms)))]
+    (is (empty? (error-messages parallel)))
+    (is (= (. serial getForms) (. parallel getForms)))
+    (is (= (printed serial) (printed parallel)))
+    (is (some #(= '(. origin -x) %) (tree-seq coll? seq (vec (. parallel getForms)))))
+    (is (some #(and (seq? %) (= '.nth (first %)) (= 'w (second %)))
+              (tree-seq coll? seq (vec (. parallel getForms)))))))
+
+(deftest parallel-compile-test-2
+  (let [src "import foo.bar; a; def a = 10; defn f(x) { x + a; } def a = 20; let b = 1; b + f(2); c;"
+        serial (compile-jest src)
+        parallel (compile-jest src {:parallel true})]
+    (is (= 3 (count (error-messages parallel))))
+    (is (= (. serial getForms) (. parallel getForms)))
+    (is (= (error-messages serial) (error-messages parallel)))))
+
+(deftest parallel-compile-test-4
+  (let [src "import java.util.List; import java.util.List; def x = 1;"
+        serial (compile-jest src)
+        parallel (compile-jest src {:parallel true})]
+    (is (= 1 (count (error-messages parallel))))
+    (is (.contains (first (error-messages parallel)) "Already declared variable with name: List"))
+    (is (= (. serial getForms) (. parallel getForms)))
+    (is (= (error-messages serial) (error-messages parallel)))))
+
+
+(deftest batch-check-test-1
+  (let [dir (clojure.java.io/file "resources")
+        report (. JestCompiler (checkSourceDirectory dir 4))
+        results (. report getResults)]
+    (is (= (count results) (count (. JestCompiler (findSourceFiles dir)))))
+    (is (every? #(.endsWith (.getName (. % getFile)) ".jst") results))
+    (is (. (first (filter #(= "example1.jst" (.getName (. % getFile))) results)) isValid))))
+
+(deftest batch-check-test-2
+  (let [dir (doto (java.io.File/createTempFile "jest-batch" "") (.delete) (.mkdirs))]
+    (spit (clojure.java.io/file dir "good.jst") "def x = 10; x + 1;")
+    (spit (clojure.java.io/file dir "bad.jst") "def x = 10; y; z;")
+    (let [report (. JestCompiler (checkSourceDirectory dir 2))
+          [bad good] (. report getResults)]
+      (is (not (. report isValid)))
+      (is (= 1 (. report getInvalidCount)))
+      (is (= 2 (count (. bad getErrors))))
+      (is (. good isValid)))))
+
+
+(deftest compiler-context-test-1
+  (let [first-tree (. JestCompiler (compileSourceCodeToParseTree "def a = 1; a + 1;" (. JestCompiler$ParseMode LL)))
+        second-tree (. JestCompiler (compileSourceCodeToParseTree "def b = 2; b * 2;" (. JestCompiler$ParseMode SLL_THEN_LL)))]
+    (is (= (parse-tree->clojure first-tree) ['(def a 1) '(+ a 1)]))
+    (is (= (parse-tree->clojure second-tree) ['(def b 2) '(* b 2)]))))
+
+(deftest compiler-context-test-2
+  (. JestCompiler warmUp)
+  (. JestCompiler (warmUp ["def x = ;" "for (a: [1, 2]) { a; };"]))
+  (is (= (parse-with-mode "x + 1;" (. JestCompiler$ParseMode LL)) ['(+ x 1)])))
+
+
+(defn- shaken-forms
+  [src]
+  (vec (. (compile-jest src {:tree-shake true}) getForms)))
+
+(deftest tree-shake-test-1
+  (is (= (shaken-forms "defn unused(x) { x; } defn used(x) { x + 1; } def y = 10; def z = 20; println(y); used(1);")
+         ['(clojure.core/defn used [x] (+ x 1)) '(def y 10) '(println y) '(used 1)])))
+
+(deftest tree-shake-test-2
+  ;; Definitions that call functions may have side effects
+  (is (= (shaken-forms "def a = println(1); defn f() { 1; } def b = [1, (x) -> { f() }]; 2;")
+         ['(def a (println 1)) '2])))
+
+(deftest tree-shake-test-3
+  (is (= (shaken-forms "defn b() { 1; } defn a() { b(); } defn c() { 2; } record Foo { x; } record Bar { y; } [a(), new Foo(1)];")
+         ['(clojure.core/defn b [] 1) '(clojure.core/defn a [] (b))
+          '(clojure.core/defrecord Foo [x]) '[(a) (->Foo 1)]])))
+
+(deftest tree-shake-test-4
+  ;; A local variable doesn't keep a global of the same name
+  (is (= (shaken-forms "def x = 1; defn f(x) { x; } f(2);")
+         ['(clojure.core/defn f [x] x) '(f 2)]))
+  (is (= 1 (count (. (compile-jest "def x = 1; y;" {:tree-shake true}) getErrors)))))
+
+(deftest tree-shake-test-5
+  ;; Definitions that may throw are kept
+  (is (= (shaken-forms "def unused = 1/0; def lst = [1]; def item = lst[1]; def half = 1/2; def x = 4; def q = x/2; 3;")
+         ['(def unused (/ 1 0)) '(def lst [1]) '(def item (.nth lst (clojure.core/int 1) nil)) '(def x 4) '(def q (/ x 2)) '3])))
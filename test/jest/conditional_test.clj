@@ -1,5 +1,6 @@
 (ns jest.conditional-test
   (:require [clojure.test :refer :all]
+            [jest.parser :refer :all]
             [jest.utils :refer :all]))
 
 
@@ -44,3 +45,53 @@
    "if (nil) {10} elif (nil) {20} elif (true) {30} else {40};"
    ['(clojure.core/cond nil 10 nil 20 true 30 :else 40)]
    30))
+
+(deftest case-test-1
+  (test-code
+   "defn f(x) { if (x == 1) { :a } elif (x == 2) { :b } elif (\"three\" == x) { :c } else { :d }; }"
+   ['(clojure.core/defn f [x] (clojure.core/case x 1 :a 2 :b "three" :c :d))]))
+
+(deftest case-test-2
+  ;; The subject is evaluated once
+  (test-code
+   "defn f(x) { if (x.kind == :a) { 1 } elif (x.kind == :b) { 2 } elif (x.kind == :c) { 3 }; }"
+   ['(clojure.core/defn f [x]
+       (clojure.core/let [subject- (:kind x)]
+         (clojure.core/case subject- :a 1 :b 2 :c 3 nil)))]))
+
+(deftest case-test-3
+  ;; Chains that compare different expressions, or the same
+  ;; literal twice, or have only two branches stay conds
+  (test-code
+   "defn f(x, y) { if (x == 1) { :a } elif (y == 2) { :b } elif (x == 3) { :c }; }
+    defn g(x) { if (x == 1) { :a } elif (x == 1) { :b } elif (x == 3) { :c }; }
+    defn h(x) { if (x == 1) { :a } elif (x == 2) { :b }; }"
+   ['(clojure.core/defn f [x y] (clojure.core/cond (= x 1) :a (= y 2) :b (= x 3) :c))
+    '(clojure.core/defn g [x] (clojure.core/cond (= x 1) :a (= x 1) :b (= x 3) :c))
+    '(clojure.core/defn h [x] (clojure.core/cond (= x 1) :a (= x 2) :b))]))
+
+(deftest case-test-4
+  ;; A call is made again for each condition tested,
+  ;; so a chain over a call stays a cond
+  (test-code
+   "defn f(r) { if (first(r) == 1) { :a } elif (first(r) == 2) { :b } elif (first(r) == 3) { :c }; }"
+   ['(clojure.core/defn f [r]
+       (clojure.core/cond (= (first r) 1) :a (= (first r) 2) :b (= (first r) 3) :c))]))
+
+(deftest case-test-eval-1
+  (let [f "defn f(x) { if (x == 1) { :a } elif (x == 2) { :b } elif (x == \"three\") { :c } else { :d }; } "]
+    (is (= (execute-jest (str f "[f(1), f(2), f(\"three\"), f(1.0), f(nil)];"))
+           [:a :b :c :d :d]))))
+
+(deftest case-test-eval-2
+  ;; Self calls in the branches of a case loop
+  (test-eval
+   "defn down(n) { if (n == 0) { :done } elif (n == 1) { down(0) } elif (n == 2) { down(1) } else { down(n - 1) }; } down(100000);"
+   :done))
+
+(deftest case-test-eval-3
+  (test-eval
+   "import java.util.concurrent.atomic.AtomicLong;
+    def n = new AtomicLong();
+    if (n.incrementAndGet() == 5) { :a } elif (n.incrementAndGet() == 2) { :b } elif (n.incrementAndGet() == 3) { :c } else { :d };"
+   :b))
@@ -1,5 +1,6 @@
 (ns jest.function-test
   (:require [clojure.test :refer :all]
+            [jest.parser :refer :all]
             [jest.utils :refer :all]))
 
 (deftest func-test-0
@@ -39,3 +40,98 @@
       x * 2;
       };",
    ['(clojure.core/defn myFunc [ a b c ] (def x (+ (+ a b) c)) (* x 2))]))
+
+(deftest func-def-primitive-1
+  (let [[form] (jest->clojure "defn f(a, b, c): Long Double String -> Double { a * b; }")
+        params (nth form 2)]
+    (is (= (map (comp :tag meta) params) '[long double nil]))
+    (is (= (:tag (meta params)) 'double))))
+
+(deftest func-def-primitive-2
+  (let [[form] (jest->clojure "defn f(a, b, c, d, e): Long Long Long Long Long -> Long { a; }")]
+    (is (every? nil? (map (comp :tag meta) (nth form 2))))))
+
+(deftest func-def-primitive-3
+  (test-eval
+   "defn poly(x, n): Long Long -> Long { x * x + n * x + 1; } poly(3, 2);"
+   16))
+
+(deftest def-boxed-hint-1
+  (let [[form] (jest->clojure "def x: Integer = 5;")]
+    (is (= form '(def x 5)))
+    (is (= (:tag (meta (second form))) 'java.lang.Long))))
+
+(deftest tail-call-test-1
+  (test-code
+   "defn countUp(n, acc) { if (n == 0) { acc; } else { countUp(n - 1, acc + 1); }; }"
+   ['(clojure.core/defn countUp [n acc] (if (= n 0) acc (recur (- n 1) (+ acc 1))))]))
+
+(deftest tail-call-test-2
+  ;; Only calls in tail position loop
+  (test-code
+   "defn fact(n) { if (n <= 1) { 1; } else { n * fact(n - 1); }; }"
+   ['(clojure.core/defn fact [n] (if (<= n 1) 1 (* n (fact (- n 1)))))]))
+
+(deftest tail-call-test-3
+  ;; Arguments of primitive parameters are converted
+  (test-code
+   "defn sumTo(n, acc): Long Long -> Long { if (n == 0) { acc; } else { sumTo(n - 1, acc + n); }; }"
+   ['(clojure.core/defn sumTo [n acc] (if (= n 0) acc (recur (clojure.core/long (- n 1))
+                                                            (clojure.core/long (+ acc n)))))]))
+
+(deftest tail-call-test-4
+  (test-eval
+   "defn spin(n, acc) { if (n == 0) { acc; } elif (n > 0) { let m = n - 1; spin(m, acc + 1); } else { 0; }; } spin(1000000, 0);"
+   1000000))
+
+(deftest memo-test-1
+  ;; Recursive calls go through the cache
+  (test-code
+   "defn fib(n) memo { if (n < 2) { n; } else { fib(n - 1) + fib(n - 2); }; }"
+   ['(def fib (jest.runtime.MemoizedFunction/create
+               (clojure.core/fn [n] (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))
+               10000 "lru" 0))]))
+
+(deftest memo-test-2
+  (test-code
+   "defn sq(x) memo(maxSize = 100, eviction = lfu, ttl = 60000) { x * x; }"
+   ['(def sq (jest.runtime.MemoizedFunction/create (clojure.core/fn [x] (* x x)) 100 "lfu" 60000))]))
+
+(deftest memo-test-3
+  (test-eval
+   "defn fib(n) memo { if (n < 2) { n; } else { fib(n - 1) + fib(n - 2); }; } fib(80);"
+   23416728348467685)
+  (test-eval
+   "defn fib(n) memo(eviction = lfu) { if (n < 2) { n; } else { fib(n - 1) + fib(n - 2); }; } fib(80);"
+   23416728348467685))
+
+(deftest memo-test-4
+  (test-eval
+   "defn sq(x) memo { x * x; } sq(3); sq(3); sq(4); [sq.hits(), sq.misses()];"
+   [1 2])
+  (test-eval
+   "defn sq(x) memo(eviction = lfu) { x * x; } sq(3); sq(3); sq(4); [sq.hits(), sq.misses()];"
+   [1 2]))
+
+(deftest memo-test-5
+  ;; The cache never holds more than maxSize results
+  (test-eval
+   "defn sq(x) memo(maxSize = 10, eviction = lfu) { x * x; } for (i: range(100)) { sq(i); }; sq.size() <= 10;"
+   true)
+  (test-eval
+   "defn sq(x) memo(maxSize = 10) { x * x; } for (i: range(100)) { sq(i); }; sq.size() <= 10;"
+   true))
+
+(deftest memo-test-6
+  ;; A nil result is cached like any other
+  (test-eval
+   "defn none(x) memo { nil; } none(1); none(1); none.hits();"
+   1))
+
+(deftest memo-test-7
+  ;; memo is only a keyword before a function's body
+  (test-eval
+   "defn memo(x) memo { x * 2; } memo(4);"
+   8)
+  (is (thrown-with-msg? clojure.lang.ExceptionInfo #"Line 1: Syntax error at: memoize"
+                        (execute-jest-stream (java.io.StringReader. "defn f(x) memoize { x; }")))))
@@ -0,0 +1,75 @@
+(ns jest.interop-test
+  (:require [clojure.test :refer :all]
+            [jest.parser :refer :all]
+            [jest.utils :refer :all]))
+
+
+(defn- warnings
+  [jest]
+  (vec (. (compile-jest jest) getWarnings)))
+
+
+(defn- receiver-tag
+  "The type hint on the receiver of
+  the last Java call in a program"
+  [jest]
+  (->> (jest->clojure jest)
+       (tree-seq coll? seq)
+       (filter #(and (seq? %) (= '. (first %))))
+       last second meta :tag))
+
+
+(deftest interop-test-1
+  (test-code-eval
+   "\"abc\".toUpperCase();"
+   ['(. "abc" (toUpperCase))]
+   "ABC"))
+
+(deftest interop-test-2
+  (test-code-eval
+   "Math.max(3, 7);"
+   ['(. java.lang.Math (max 3 7))]
+   7))
+
+(deftest interop-test-3
+  (test-code-eval
+   "let sb = new StringBuilder(\"ab\"); sb.append(\"c\"); sb.toString();"
+   ['(clojure.core/let [sb (new java.lang.StringBuilder "ab")]
+       (. sb (append "c"))
+       (. sb (toString)))]
+   "abc"))
+
+(deftest interop-test-4
+  (test-eval
+   "import java.util.ArrayList; def xs = new ArrayList(); xs.add(\"a\".toUpperCase()); xs.size();"
+   1))
+
+(deftest interop-test-5
+  (test-code-eval
+   "Math.PI;"
+   ['(. java.lang.Math PI)]
+   Math/PI))
+
+(deftest interop-test-6
+  (is (= (receiver-tag "def s = new StringBuilder(); s.length();") 'java.lang.StringBuilder))
+  (is (= (receiver-tag "defn f(s): String -> Long { s.length(); }") 'java.lang.String))
+  (is (= (receiver-tag "def s: String = \"a\"; s.length();") 'java.lang.String)))
+
+(deftest interop-test-7
+  ;; Functions in scope are still called as functions
+  (test-code
+   "defn twice(x) { x * 2; } def y = 3; y.twice();"
+   ['(clojure.core/defn twice [x] (* x 2)) '(def y 3) '(twice y)]))
+
+(deftest reflection-warning-test-1
+  (is (= (warnings "def s = \"abc\";\ns.substring(1).toUpperCase();\nnew StringBuilder(s);") []))
+  (is (= (warnings "defn f(s): String -> Long { s.length(); }") [])))
+
+(deftest reflection-warning-test-2
+  (is (= (warnings "defn f(x) {\n  x.toUpperCase();\n}")
+         ["Reflection warning - Line 2: call to toUpperCase can't be resolved (the type of its receiver is unknown)"])))
+
+(deftest reflection-warning-test-3
+  (is (= (warnings "def xs = [1];\ndef s = \"a\";\ns.indexOf(xs.get(0));")
+         ["Reflection warning - Line 3: call to indexOf on java.lang.String can't be resolved (no single overload matches its arguments)"]))
+  (is (= (execute-jest "def xs = [\"a\"]; def s = \"ba\"; s.indexOf(xs.get(0));") 1)))
@@ -0,0 +1,65 @@
+(ns jest.interpreter-test
+  (:require [clojure.test :refer :all]
+            [jest.parser :refer :all]
+            [jest.utils :refer :all]))
+
+(import 'jest.interpreter.Interpreter 'jest.interpreter.JestFunction)
+
+
+(defn- interpret
+  [jest]
+  (execute-jest jest {:backend :interpret}))
+
+
+(deftest interpreter-test-1
+  (is (= (interpret "def x = 10; def y = x * 2 + 1; y - x;") 11)))
+
+(deftest interpreter-test-2
+  (is (= (interpret "1 + 2.5;") 3.5))
+  (is (= (interpret "1 / 2;") 1/2))
+  (is (= (interpret "[1, 2 + 3, {:a: 4 < 5}];") [1 5 {:a true}])))
+
+(deftest interpreter-test-3
+  (is (= (interpret "let a = 1; let b = a + 1; { let a = 10; a + b; };") 12)))
+
+(deftest interpreter-test-4
+  (is (= (interpret "defn fact(n) { if (n <= 1) { 1; } else { n * fact(n - 1); }; } fact(10);")
+         3628800)))
+
+(deftest interpreter-test-5
+  (is (= (interpret "defn adder(x) { (y) -> { x + y }; } def f = adder(10); f(5);") 15)))
+
+(deftest interpreter-test-6
+  (is (= (interpret "for (a, b: [1, 2, 3], [4, 5, 6]) { a * b; };") [4 10 18]))
+  (is (= (interpret "range(0, 10)->filter(even?)->map((x) -> {x + x})->take(3);") [0 4 8])))
+
+(deftest interpreter-test-7
+  (is (= (interpret "record Foo { a; b; } def f = new Foo(1, 2); def g = new Foo(a: 3, b: 4); f.b + g.a;") 5)))
+
+;; A long operation that overflows falls back to
+;; Clojure's arithmetic, which reports the overflow
+(deftest interpreter-test-8
+  (is (thrown? ArithmeticException
+               (interpret "defn twice(x) { x + x; } twice(1); twice(9223372036854775807);"))))
+
+;; A hot top-level function is compiled by Clojure
+(deftest interpreter-test-9
+  (let [tree (parse-source-code "defn sq(x) { x * x; } def a = sq(2); def b = sq(3); sq(4);")
+        value (. (new Interpreter 2) (execute tree))]
+    (is (= value 16))
+    (is (not (instance? JestFunction @(resolve 'sq))))))
+
+;; A hot function is compiled with the program's functions
+;; and records in scope, so its method calls stay calls of
+;; the program's functions
+(deftest interpreter-test-10
+  (let [tree (parse-source-code "record HotPoint { x; y; }
+                                 defn normSquared(p) { p.x * p.x + p.y * p.y; }
+                                 defn twice(x) { x * 2; }
+                                 defn hot(p) { p.normSquared().twice(); }
+                                 def a = hot(new HotPoint(1, 2));
+                                 def b = hot(new HotPoint(2, 3));
+                                 hot(new HotPoint(3, 4));")
+        value (. (new Interpreter 2) (execute tree))]
+    (is (= value 50))
+    (is (not (instance? JestFunction @(resolve 'hot))))))
@@ -1,35 +1,127 @@
 (ns jest.loop-test
   (:require [clojure.test :refer :all]
+            [jest.parser :refer :all]
             [jest.utils :refer :all]))
 
 
 (deftest for-test-1
   (test-code
    "for (a: lst) { println(a); };"
-   ['(clojure.core/doall (clojure.core/map (clojure.core/fn [ a ] (println a)) (clojure.core/seq lst)))]))
+   ['(clojure.core/let [iter-0 (jest.runtime/iterator lst)]
+       (clojure.core/loop [values- (clojure.core/transient [])]
+         (if (.hasNext iter-0)
+           (recur (clojure.core/conj! values- (clojure.core/let [a (.next iter-0)] (println a))))
+           (clojure.core/persistent! values-))))]))
 
 (deftest for-test-2
   (test-code
    "for (a: lst) { println(a); a; };"
-   ['(clojure.core/doall (clojure.core/map (clojure.core/fn [ a ] (println a) a) (clojure.core/seq lst)))]))
+   ['(clojure.core/let [iter-0 (jest.runtime/iterator lst)]
+       (clojure.core/loop [values- (clojure.core/transient [])]
+         (if (.hasNext iter-0)
+           (recur (clojure.core/conj! values- (clojure.core/let [a (.next iter-0)] (println a) a)))
+           (clojure.core/persistent! values-))))]))
 
 (deftest for-test-eval-2
   (test-code-eval
    "for (a: [1, 2, 3]) { a; };"
-   ['(clojure.core/doall (clojure.core/map (clojure.core/fn [ a ] a) (clojure.core/seq [1, 2, 3])))]
+   ['(clojure.core/let [iter-0 (jest.runtime/iterator [1, 2, 3])]
+       (clojure.core/loop [values- (clojure.core/transient [])]
+         (if (.hasNext iter-0)
+           (recur (clojure.core/conj! values- (clojure.core/let [a (.next iter-0)] a)))
+           (clojure.core/persistent! values-))))]
    [1 2 3]))
 
 (deftest for-test-3
   (test-code
    "for (x, y, z: lstX, lstY, lstZ) { println(x+y+z); z; };"
-   ['(clojure.core/doall (clojure.core/map (clojure.core/fn [ x y z ] (println (+ (+ x y) z)) z) (clojure.core/seq lstX) (clojure.core/seq lstY) (clojure.core/seq lstZ)))]))
+   ['(clojure.core/let [iter-0 (jest.runtime/iterator lstX)
+                        iter-1 (jest.runtime/iterator lstY)
+                        iter-2 (jest.runtime/iterator lstZ)]
+       (clojure.core/loop [values- (clojure.core/transient [])]
+         (if (clojure.core/and (.hasNext iter-0) (.hasNext iter-1) (.hasNext iter-2))
+           (recur (clojure.core/conj! values- (clojure.core/let [x (.next iter-0) y (.next iter-1) z (.next iter-2)]
+                                                (println (+ (+ x y) z)) z)))
+           (clojure.core/persistent! values-))))]))
 
 (deftest for-test-eval-3
   (test-code-eval
    "for (x, y, z: [1, 2, 3], [4, 5, 6], [7, 8, 9]) { x+y+z; };"
-   ['(clojure.core/doall (clojure.core/map (clojure.core/fn [ x y z ] (+ (+ x y) z)) (clojure.core/seq [1, 2, 3]) (clojure.core/seq [4, 5, 6]) (clojure.core/seq [7, 8, 9])))]
+   ['(clojure.core/let [iter-0 (jest.runtime/iterator [1, 2, 3])
+                        iter-1 (jest.runtime/iterator [4, 5, 6])
+                        iter-2 (jest.runtime/iterator [7, 8, 9])]
+       (clojure.core/loop [values- (clojure.core/transient [])]
+         (if (clojure.core/and (.hasNext iter-0) (.hasNext iter-1) (.hasNext iter-2))
+           (recur (clojure.core/conj! values- (clojure.core/let [x (.next iter-0) y (.next iter-1) z (.next iter-2)]
+                                                (+ (+ x y) z))))
+           (clojure.core/persistent! values-))))]
    [12, 15, 18]))
 
+(deftest for-test-eval-4
+  ;; Collections are walked in lock-step until the shortest runs out
+  (test-eval
+   "for (x, y: {:a : 1}, range(0, 10)) { [x.key(), y]; };"
+   [[:a 0]]))
+
+(deftest for-test-eval-5
+  (test-eval
+   "for (c: nil) { c; };"
+   []))
+
+(deftest for-discard-test-1
+  ;; A loop whose value is discarded doesn't collect it
+  (test-code
+   "defn f(lst) { for (a: lst) { println(a); }; 1; }"
+   ['(clojure.core/defn f [lst]
+       (clojure.core/let [iter-0 (jest.runtime/iterator lst)]
+         (clojure.core/loop []
+           (clojure.core/when (.hasNext iter-0)
+             (clojure.core/let [a (.next iter-0)] (println a))
+             (recur))))
+       1)]))
+
+(deftest for-discard-test-2
+  (is (= (with-out-str (execute-jest "defn f(lst) { for (a: lst) { print(a); }; 1; } f([1, 2, 3]);"))
+         "123")))
+
+
+(deftest for-range-test-1
+  (test-code-eval
+   "for (i: range(0, 10)) { i * 2; };"
+   ['(clojure.core/let [start- (clojure.core/long 0) end- (clojure.core/long 10)]
+       (clojure.core/loop [i start- values- (clojure.core/transient [])]
+         (if (clojure.core/< i end-)
+           (recur (clojure.core/+ i 1) (clojure.core/conj! values- (* i 2)))
+           (clojure.core/persistent! values-))))]
+   [0 2 4 6 8 10 12 14 16 18]))
+
+(deftest for-range-test-2
+  (test-eval
+   "for (i: range(0, 10, 3)) { i; };"
+   [0 3 6 9]))
+
+(deftest for-range-test-3
+  ;; A bound annotated as an integer is counted
+  (let [src "defn lastSquare(n): Long -> Long { last(for (i: range(n)) { i * i; }); } lastSquare(4);"]
+    (is (some #{'start-} (flatten (first (jest->clojure src)))))
+    (test-eval src 9)))
+
+(deftest for-range-test-4
+  ;; A bound that may not be an integer is left to range
+  (test-code
+   "defn f(n) { for (i: range(0, n)) { i; }; }"
+   ['(clojure.core/defn f [n]
+       (clojure.core/let [iter-0 (jest.runtime/iterator (range 0 n))]
+         (clojure.core/loop [values- (clojure.core/transient [])]
+           (if (.hasNext iter-0)
+             (recur (clojure.core/conj! values- (clojure.core/let [i (.next iter-0)] i)))
+             (clojure.core/persistent! values-)))))]))
+
+(deftest for-range-test-5
+  (test-eval
+   "defn f(n) { for (i: range(0, n)) { i; }; } f(2.5);"
+   [0 1 2]))
+
 
 (deftest for-lazy-test-1
   (test-code
@@ -37,6 +129,44 @@
    ['(clojure.core/map (clojure.core/fn [ a ] (println a)) (clojure.core/seq lst))]))
 
 
+(deftest for-parallel-test-1
+  (test-code
+   "for (a: lst) parallel { a * a; };"
+   ['(jest.runtime/parallel-map (clojure.core/fn [ a ] (* a a)) lst)]))
+
+(deftest for-parallel-test-eval-1
+  (test-code-eval
+   "for (a: range(0, 2000)) parallel { a * a; };"
+   ['(jest.runtime/parallel-map (clojure.core/fn [ a ] (* a a)) (range 0 2000))]
+   (map #(* % %) (range 0 2000))))
+
+(deftest for-parallel-test-eval-2
+  (test-code-eval
+   "for (x, y: [1, 2, 3], [4, 5, 6]) parallel { x * y; };"
+   ['(jest.runtime/parallel-map (clojure.core/fn [ x y ] (* x y)) [1, 2, 3] [4, 5, 6])]
+   [4, 10, 18]))
+
+(deftest for-parallel-test-eval-3
+  ;; A lazy collection is read a batch at a time, and
+  ;; isn't held in memory while its items are mapped
+  (let [batch (* 512 (.availableProcessors (Runtime/getRuntime)))
+        read (atom 0)
+        ahead (atom 0)
+        items (map (fn [i] (swap! read inc) i) (range (* 4 batch)))]
+    (is (= (jest.runtime/parallel-map (fn [i] (swap! ahead max (- @read i)) (* i i)) items)
+           (map #(* % %) (range (* 4 batch)))))
+    (is (<= @ahead (* 2 batch)))
+    (is (= (jest.runtime/parallel-map + items (range)) (map #(* 2 %) (range (* 4 batch)))))))
+
+(deftest for-parallel-test-eval-4
+  ;; parallel is only a keyword after a for loop's collections
+  (test-eval
+   "def parallel = 2; for (a: [1, 2]) parallel { a + parallel; };"
+   [3 4])
+  (is (thrown-with-msg? clojure.lang.ExceptionInfo #"Line 1: Syntax error at: paralel"
+                        (execute-jest-stream (java.io.StringReader. "for (a: [1, 2]) paralel { a; };")))))
+
+
 ;; TODO: Uncomment and fix
 ;; (deftest for-loop-bug-1
 ;;   (test-code
@@ -0,0 +1,78 @@
+(ns jest.optimizer-test
+  (:require [clojure.test :refer :all]
+            [jest.parser :refer :all]
+            [jest.optimizer :refer :all]
+            [jest.utils :refer :all]))
+
+
+(defn- test-optimized
+  "Test that the given jest code compiles into
+  the given clojure code after optimization"
+  [jest clojure]
+  (test-jest-vs-clojure clojure (optimize (jest->clojure jest))))
+
+
+(deftest flatten-test-1
+  (test-optimized
+   "def y = a + b + c - d;"
+   ['(def y (- (+ a b c) d))]))
+
+(deftest flatten-test-2
+  (test-optimized
+   "def y = a * b * c / d / e;"
+   ['(def y (/ (* a b c) d e))]))
+
+(deftest fold-test-1
+  (test-optimized
+   "def secondsPerDay = 60*60*24;"
+   ['(def secondsPerDay 86400)]))
+
+(deftest fold-test-2
+  (test-optimized
+   "defn f(x) { 60 * 60 * x; }"
+   ['(clojure.core/defn f [x] (* 3600 x))]))
+
+(deftest fold-test-3
+  ;; Division by zero is left to fail at runtime
+  (test-optimized
+   "def y = 1 / 0;"
+   ['(def y (/ 1 0))]))
+
+(deftest fold-test-4
+  ;; A program may shadow a core function
+  (test-optimized
+   "defn max(a, b) { a; } max(1, 2);"
+   ['(clojure.core/defn max [a b] a) '(max 1 2)]))
+
+(deftest simplify-test-1
+  (test-optimized
+   "defn f(x, y) { x * 1 * y + 0; }"
+   ['(clojure.core/defn f [x y] (* x y))]))
+
+(deftest simplify-test-2
+  ;; (+ x 0) fails if x isn't a number
+  (test-optimized
+   "defn f(x) { x + 0; }"
+   ['(clojure.core/defn f [x] (+ x 0))]))
+
+(deftest prune-test-1
+  (test-optimized
+   "def y = if (1 < 2) { :a } else { :b };"
+   ['(def y :a)]))
+
+(deftest prune-test-2
+  (test-optimized
+   "defn f(x) { if (false) { 1 } elif (x) { 2 } elif (true) { 3 } else { 4 }; }"
+   ['(clojure.core/defn f [x] (clojure.core/cond x 2 true 3))]))
+
+(deftest dump-test-1
+  (let [passes (atom [])]
+    (optimize (jest->clojure "def y = 2 * 3;") {:dump (fn [pass forms] (swap! passes conj [pass forms]))})
+    (is (= (map first @passes) [:flatten :fold :simplify :prune]))
+    (is (= (second (first @passes)) ['(def y (* 2 3))]))
+    (is (= (second (second @passes)) ['(def y 6)]))))
+
+(deftest optimize-eval-test-1
+  (is (= (execute-jest "defn f(x) { if (2 > 1) { x * 1 * 60 * 60; } else { 0 }; } f(2);") 7200))
+  (is (= (execute-jest "defn f(x) { if (2 > 1) { x * 1 * 60 * 60; } else { 0 }; } f(2);" {:optimize false})
+         7200)))
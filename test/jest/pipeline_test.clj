@@ -1,5 +1,7 @@
 (ns jest.pipeline-test
   (:require [clojure.test :refer :all]
+            [jest.parser :refer :all]
+            [jest.runtime :refer :all]
             [jest.utils :refer :all]))
 
 
@@ -9,7 +11,10 @@
      ->filter(even?)
      ->map((x)->{x+x})
      ->take(20);"
-   ['(take 20 (map (clojure.core/fn [x] (+ x x)) (filter even? (range 0 100))))]))
+   ['(jest.runtime/pipeline (range 0 100)
+                            (jest.runtime/filtering even?)
+                            (jest.runtime/mapping (clojure.core/fn [x] (+ x x)))
+                            (jest.runtime/taking 20))]))
 
 
 (deftest pipeline-test-2
@@ -18,5 +23,73 @@
      ->filter(even?)
      ->map((x)->{x+x})
      ->take(20);"
-   ['(take 20 (map (clojure.core/fn [x] (+ x x)) (filter even? (range 0 100))))]
+   ['(jest.runtime/pipeline (range 0 100)
+                            (jest.runtime/filtering even?)
+                            (jest.runtime/mapping (clojure.core/fn [x] (+ x x)))
+                            (jest.runtime/taking 20))]
    '(0 4 8 12 16 20 24 28 32 36 40 44 48 52 56 60 64 68 72 76)))
+
+
+(deftest pipeline-test-3
+  ;; A single step isn't fused
+  (test-code
+   "lst->map(inc);"
+   ['(map inc lst)]))
+
+
+(deftest pipeline-test-4
+  ;; Steps whose arguments may have side effects
+  ;; are evaluated in the order they are written
+  (test-code
+   "lst->filter(even?)->take(count(lst));"
+   ['(take (count lst) (filter even? lst))]))
+
+
+(deftest pipeline-test-5
+  ;; A program's own map isn't fused
+  (test-code
+   "defn f(lst, map) { lst->filter(even?)->map(inc); }"
+   ['(clojure.core/defn f [lst map] (map inc (filter even? lst)))]
+   true))
+
+
+(deftest pipeline-test-6
+  ;; Pipelines stay lazy
+  (is (= (execute-jest "iterate(inc, 0)->filter(even?)->map((x)->{x*x})->take(4);")
+         [0 4 16 36])))
+
+
+(deftest pipeline-test-7
+  ;; A sparse filter of an infinite source only reads
+  ;; as far as the results that are asked for
+  (is (= (execute-jest "first(iterate(inc, 0)->map(inc)->filter((x)->{x == 5}));") 5)))
+
+
+(deftest pipeline-runtime-test-1
+  (let [coll (range 0 200)
+        chains [[(take 5 (keep #(if (odd? %) %) coll))
+                 (pipeline coll (keeping #(if (odd? %) %)) (taking 5))]
+                [(take-while #(< % 50) (mapcat #(vector % %) coll))
+                 (pipeline coll (mapcatting #(vector % %)) (taking-while #(< % 50)))]
+                [(take 3 (mapcat #(vector % %) coll))
+                 (pipeline coll (mapcatting #(vector % %)) (taking 3))]
+                [(remove even? (take 0 coll))
+                 (pipeline coll (taking 0) (removing even?))]
+                [(map inc (filter odd? coll))
+                 (pipeline coll (filtering odd?) (mapping inc))]
+                [(map inc nil)
+                 (pipeline nil (mapping inc))]]]
+    (doseq [[expected fused] chains]
+      (is (= expected fused)))))
+
+
+(deftest pipeline-runtime-test-2
+  ;; A chunked source is read a chunk at a time,
+  ;; as the chain of lazy sequences reads it
+  (let [calls (atom 0)
+        track #(do (swap! calls inc) %)]
+    (is (= 40 (first (pipeline (range 1000) (mapping track) (filtering #{40})))))
+    (is (= 64 @calls))
+    (reset! calls 0)
+    (is (= 40 (first (filter #{40} (map track (range 1000))))))
+    (is (= 64 @calls))))
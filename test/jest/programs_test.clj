@@ -1,5 +1,6 @@
 (ns jest.programs-test
   (:require [clojure.test :refer :all]
+            [jest.parser :refer :all]
             [jest.utils :refer :all]))
 
 (deftest print-test
@@ -13,10 +14,42 @@
   (let [program (slurp "resources/list.jst")]
     (test-code
      program
-     ['(def lst [1, 2, 3]) '(println lst) '(println (first lst)) '(println (clojure.core/get lst 2))])))
+     ['(def lst [1, 2, 3]) '(println lst) '(println (first lst)) '(println (.nth lst (clojure.core/int 2) nil))])))
 
 (deftest map-test
   (let [program (slurp "resources/map.jst")]
     (test-code
      program
      ['(def mp {:a 10 :b 20 :c 20}) '(def x (clojure.core/get mp :a)) '(def y (clojure.core/get mp :b)) '(println x y (+ x y))])))
+
+
+(deftest stream-test-1
+  (is (= (with-out-str (with-open [reader (clojure.java.io/reader "resources/math.jst")]
+                         (execute-jest-stream reader)))
+         (with-out-str (execute-jest (slurp "resources/math.jst"))))))
+
+(deftest stream-test-2
+  (is (= (execute-jest-stream (java.io.StringReader. "def x = 10;\n def y = x * 2;\n for (a: [1, 2]) { a + y; };"))
+         [21 22])))
+
+(deftest stream-test-3
+  (let [ran (atom [])
+        error (try
+                (with-redefs [run-forms (fn [forms options] (swap! ran into forms))]
+                  (execute-jest-stream (java.io.StringReader. "def x = 10;\n def y = z;\n def w = 1;")))
+                (catch clojure.lang.ExceptionInfo e e))]
+    (is (= @ran ['(def x 10)]))
+    (is (= (count (:errors (ex-data error))) 1))
+    (is (= (.getMessage error) (first (:errors (ex-data error)))))))
+
+(deftest stream-test-4
+  (let [error (try
+                (execute-jest-stream (java.io.StringReader. "def x = 10;\n def y = ;"))
+                (catch clojure.lang.ExceptionInfo e e))]
+    (is (instance? clojure.lang.ExceptionInfo error))
+    (is (= (count (:errors (ex-data error))) 1))))
+
+(deftest stream-test-5
+  (is (= (execute-jest-stream (java.io.StringReader. "def x = 10;\n def y = x * 2;\n for (a: [1, 2]) { a + y; };")
+                              {:backend :bytecode :optimize false})
+         [21 22])))
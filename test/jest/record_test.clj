@@ -1,5 +1,6 @@
 (ns jest.record-test
   (:require [clojure.test :refer :all]
+            [jest.parser :refer :all]
             [jest.utils :refer :all]))
 
 (deftest record-test-1
@@ -15,7 +16,7 @@
       bob.name;"
      ['(clojure.core/defrecord Student [name class])
       '(def bob (->Student "Bob" "History"))
-      '(:name bob)]
+      '(. bob -name)]
      "Bob"))
 
 (deftest record-test-3
@@ -29,7 +30,7 @@
       '(clojure.core/defrecord CollegeClass [time day])
       '(def history (->CollegeClass "Noon" "Wednesday"))
       '(def bob (->Student "Bob" history))
-      '(:time (:class bob))]
+      '(:time (. bob -class))]
      "Noon"))
 
 (deftest record-test-4
@@ -39,10 +40,52 @@
       bob.name;")
      ['(clojure.core/defrecord Student [name class])
       '(def bob (map->Student {:name "Bob" :class "History"}))
-      '(:name bob)]
+      '(. bob -name)]
      "Bob"))
 
 
+(deftest record-test-5
+  ;; A record named like a java.lang class is the record
+  (test-code
+   "record Error{ msg; }
+    def e = new Error(\"x\");"
+   ['(clojure.core/defrecord Error [msg])
+    '(def e (->Error "x"))]))
+
+(deftest record-test-6
+  (test-code
+   "def e = new Error(\"x\");"
+   ['(def e (new java.lang.Error "x"))]))
+(deftest record-field-test-1
+  ;; A field of a value whose record isn't known is looked up
+  (test-code
+   "record Student{ name; class; }
+    defn studentName(s) { s.name; }"
+   ['(clojure.core/defrecord Student [name class])
+    '(clojure.core/defn studentName [s] (:name s))]))
+
+(deftest record-field-test-2
+  (test-code-eval
+   "record Student{ name; class; }
+    defn studentName(s): Student -> String { s.name; }
+    studentName(new Student(\"Bob\", \"History\"));"
+   ['(clojure.core/defrecord Student [name class])
+    '(clojure.core/defn studentName [s] (. s -name))
+    '(studentName (->Student "Bob" "History"))]
+   "Bob"))
+
+(deftest record-field-test-3
+  (let [[_ form] (jest->clojure "record Point{ x; y; } let p = new Point(1, 2); p.y;")]
+    (is (= form '(clojure.core/let [p (->Point 1 2)] (. p -y))))
+    (is (= 'Point (:tag (meta (second (last form))))))))
+
+(deftest vector-get-test-1
+  (test-code-eval
+   "let v = [10, 20, 30]; vector(v[1], v[5], v[0 + 1]);"
+   ['(clojure.core/let [v [10 20 30]]
+       (vector (.nth v (clojure.core/int 1) nil) (.nth v (clojure.core/int 5) nil) (clojure.core/get v (+ 0 1))))]
+   [20 nil 20]))
+
 
 (deftest implements-test-1
     (test-code
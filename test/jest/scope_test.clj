@@ -1,6 +1,7 @@
 
 (ns jest.scope-test
   (:require [clojure.test :refer :all]
+            [jest.parser :refer :all]
             [jest.utils :refer :all]))
 
 (import 'jest.compiler.JestCompiler)
@@ -72,3 +73,45 @@
    "def a = 10; {def b = 20;} b;" false))
 
 
+
+
+(defn compile-errors
+  "Compile the code in a single pass and
+  return the messages of all errors found"
+  [src]
+  (map #(. % getMessage) (. (compile-jest src) getErrors)))
+
+
+(deftest scope-errors-test-1
+  (is (empty? (compile-errors "def a = 10; defn foo(x) { x + a; } foo(a);"))))
+
+(deftest scope-errors-test-2
+  (is (= 2 (count (compile-errors "def a = 10; b; defn foo() { c; }")))))
+
+(deftest scope-errors-test-3
+  (is (= 4 (count (compile-errors "def a = 10; def a = 20; b; for (x: y) { z; };")))))
+
+(deftest scope-errors-test-4
+  (let [result (compile-jest "def a = 10; b;")]
+    (is (not (. result isValid)))
+    (is (= (. result getForms) ['(def a 10) 'b]))))
+
+(deftest scope-shadow-test-1
+  (validate-code
+   "def a = 10; defn foo(a) { (b) -> { { { a + b; } } }; } a;"))
+
+(deftest scope-shadow-test-2
+  (validate-code
+   "def a = 10; defn foo(a) { (b) -> { a + b; }; } b;" false))
+
+(deftest scope-memo-test-1
+  (validate-code
+   "defn sq(x) memo(maxSize = 10, eviction = lfu, ttl = 1000) { x * x; }"))
+
+(deftest scope-memo-test-2
+  (validate-code
+   "defn sq(x) memo(eviction = mru) { x * x; }" false)
+  (validate-code
+   "defn sq(x) memo(size = 10) { x * x; }" false)
+  (validate-code
+   "defn sq(x) memo(maxSize = 0) { x * x; }" false))
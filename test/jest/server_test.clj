@@ -0,0 +1,32 @@
+(ns jest.server-test
+  (:require [clojure.test :refer :all]
+            [jest.server :refer :all]))
+
+
+(defn- run-source
+  "Run a program with the server's run-program, returning
+  its exit status and what it printed"
+  [src options]
+  (let [file (java.io.File/createTempFile "server-test" ".jst")]
+    (try
+      (spit file src)
+      (let [status (atom nil)
+            out (with-out-str
+                  (reset! status (run-in-fresh-namespace
+                                  #(#'jest.server/run-program (.getPath file) options))))]
+        [@status out])
+      (finally
+        (.delete file)))))
+
+
+(deftest server-test-1
+  ;; A program that would stop the server is refused
+  (let [[status out] (run-source "println(1);\n System.exit(0);" {})]
+    (is (= status 1))
+    (is (= out "Error - Line 2: The Jest server can't run a program that calls exit\n"))))
+
+(deftest server-test-2
+  ;; Programs are run with the server's options
+  (doseq [options [{} {:backend :bytecode :optimize false} {:backend :interpret} {:tree-shake true}]]
+    (is (= (run-source "def x = 10; println(x + 1);" options) [0 "11\n"])))
+  (is (= (first (run-source "println(y);" {:backend :interpret})) 1)))
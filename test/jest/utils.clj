@@ -5,6 +5,14 @@
   (:import (clojure.lang ExceptionInfo)))
 
 
+(def backend-options
+  "The backend that runs the code of test-eval
+  and test-code-eval, set by the :backend key
+  of the environment (see the bytecode and
+  interpret profiles)"
+  {:backend (keyword (or (env :backend) "clojure"))})
+
+
 (defn test-println [& log]
   "Print the line if the :verbose
    keyword is set in the environment
@@ -51,7 +59,7 @@
     (test-println clojure)
     (test-println "")
 
-    (let [code-val (execute-jest jest)]
+    (let [code-val (execute-jest jest backend-options)]
       (test-println "Code Val:")
       (test-println code-val)
       (is (= code-val val)))))
@@ -64,7 +72,7 @@
   the code gives the supplied 'val'."
   [jest clojure val]
   (test-code jest clojure true)
-  (let [code-val (execute-jest jest)]
+  (let [code-val (execute-jest jest backend-options)]
     (test-println "Code Val:")
     (test-println code-val)
     (is (= code-val val))))